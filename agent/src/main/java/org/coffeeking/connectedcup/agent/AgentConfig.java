@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings of the agent. A value is looked up in this order: a {@code key=value} command line argument, the JVM
+ * system property {@code agent.<key>}, the properties file named by the {@code config} argument (by default
+ * {@code agent.properties} in the working directory, if present), and finally the default given by the caller.
+ */
+public class AgentConfig {
+    private static final Log log = LogFactory.getLog(AgentConfig.class);
+
+    private static final String SYSTEM_PROPERTY_PREFIX = "agent.";
+    private static final String CONFIG_FILE_KEY = "config";
+    private static final String DEFAULT_CONFIG_FILE = "agent.properties";
+
+    private final Properties arguments;
+    private final Properties file;
+
+    private AgentConfig(Properties arguments, Properties file) {
+        this.arguments = arguments;
+        this.file = file;
+    }
+
+    public static AgentConfig load(String[] args) {
+        Properties arguments = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) {
+                arguments.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+            } else {
+                log.warn("Ignoring argument [" + arg + "], expected key=value");
+            }
+        }
+        Properties file = new Properties();
+        String configFile = arguments.getProperty(CONFIG_FILE_KEY,
+                System.getProperty(SYSTEM_PROPERTY_PREFIX + CONFIG_FILE_KEY, DEFAULT_CONFIG_FILE));
+        try (InputStream in = new FileInputStream(configFile)) {
+            file.load(in);
+        } catch (IOException e) {
+            if (arguments.containsKey(CONFIG_FILE_KEY)) {
+                log.warn("Unable to read agent configuration from " + configFile, e);
+            }
+        }
+        return new AgentConfig(arguments, file);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = arguments.getProperty(key);
+        if (value == null) {
+            value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        }
+        if (value == null) {
+            value = file.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for " + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for " + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for " + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
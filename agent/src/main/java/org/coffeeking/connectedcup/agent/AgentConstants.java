@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent;
+
+/**
+ * Names shared with the Connected Cup server.
+ */
+public class AgentConstants {
+
+    public static final String DEVICE_TYPE = "connectedcup";
+
+    public static final String SENSOR_TEMPERATURE = "temperature";
+    public static final String SENSOR_LEVEL = "level";
+    // sensors in the order the server numbers them in binary payloads
+    public static final String[] SENSORS = {SENSOR_TEMPERATURE, SENSOR_LEVEL};
+
+    // resources of the read commands the server publishes, e.g. "LEVEL:"
+    public static final String RESOURCE_TEMPERATURE = "TEMPERATURE";
+    public static final String RESOURCE_LEVEL = "LEVEL";
+    // overrides the sampling policy of the agent, e.g. "SAMPLING:5000" or "SAMPLING:auto"
+    public static final String RESOURCE_SAMPLING = "SAMPLING";
+
+    public static final String PUSH_TEMPERATURE_CONTEXT = "/controller/push_temperature";
+    public static final String PUSH_LEVEL_CONTEXT = "/controller/push_level";
+    public static final String PUSH_BATCH_CONTEXT = "/controller/push_batch";
+
+    public static final String TELEMETRY_CONTENT_TYPE = "application/x-connectedcup-telemetry";
+
+    public static final String PUBLISHER_TOPIC_SUFFIX = "publisher";
+
+    private AgentConstants() {
+    }
+
+    /**
+     * Topic on which the server publishes commands to a device.
+     */
+    public static String getCommandTopic(String serverName, String owner, String deviceId) {
+        return serverName + "/" + owner + "/" + DEVICE_TYPE + "/" + deviceId;
+    }
+
+    /**
+     * Topic on which a device publishes its readings.
+     */
+    public static String getPublisherTopic(String serverName, String owner, String deviceId) {
+        return getCommandTopic(serverName, owner, deviceId) + "/" + PUBLISHER_TOPIC_SUFFIX;
+    }
+
+    /**
+     * Payload of a reading published over MQTT, {@code sensor:value:time}.
+     */
+    public static String getReadingPayload(String sensor, float value, long time) {
+        return sensor + ":" + value + ":" + time;
+    }
+
+    /**
+     * @return the position of the sensor in {@link #SENSORS}, or -1 if it is not a Connected Cup sensor.
+     */
+    public static int getSensorIndex(String sensor) {
+        for (int i = 0; i < SENSORS.length; i++) {
+            if (SENSORS[i].equals(sensor)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The sensor a read command asks for, or null if the command is not a read.
+     */
+    public static String getRequestedSensor(String command) {
+        int separator = command.indexOf(':');
+        String resource = separator < 0 ? command : command.substring(0, separator);
+        if (RESOURCE_LEVEL.equalsIgnoreCase(resource)) {
+            return SENSOR_LEVEL;
+        } else if (RESOURCE_TEMPERATURE.equalsIgnoreCase(resource)) {
+            return SENSOR_TEMPERATURE;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.coffeeking.connectedcup.agent.device.CupAgent;
+import org.coffeeking.connectedcup.agent.simulator.FleetSimulator;
+
+/**
+ * Entry point of the Connected Cup agent. Settings are read as described in {@link AgentConfig}. With
+ * {@code mode=device} it runs the agent of a single cup, e.g.
+ * {@code java -jar wso2-connectedcup-virtual-agent.jar mode=device owner=admin device.id=cup1}; by default it runs
+ * the {@link FleetSimulator}, e.g. {@code simulator.cups=20000 simulator.transport=mqtt}.
+ */
+public class Bootstrap {
+    private static final Log log = LogFactory.getLog(Bootstrap.class);
+
+    private static final String MODE_DEVICE = "device";
+    private static final String MODE_SIMULATOR = "simulator";
+
+    public static void main(String[] args) throws Exception {
+        AgentConfig config = AgentConfig.load(args);
+        if (MODE_DEVICE.equals(config.getString("mode", MODE_SIMULATOR))) {
+            runDevice(config);
+        } else {
+            runSimulator(config);
+        }
+    }
+
+    private static void runDevice(AgentConfig config) throws Exception {
+        final CupAgent agent = new CupAgent(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                agent.stop();
+            }
+        }, "connectedcup-agent-shutdown"));
+        agent.start();
+        agent.awaitTermination();
+    }
+
+    private static void runSimulator(AgentConfig config) throws Exception {
+        final FleetSimulator simulator = new FleetSimulator(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                simulator.stop();
+            }
+        }, "connectedcup-agent-shutdown"));
+        simulator.start();
+        simulator.awaitTermination();
+        log.info("Simulation finished");
+    }
+}
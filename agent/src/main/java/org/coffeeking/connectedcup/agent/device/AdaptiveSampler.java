@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.device;
+
+import org.coffeeking.connectedcup.agent.AgentConfig;
+
+/**
+ * Chooses how often the agent samples and pushes from how fast the cup is changing.
+ *
+ * The sampling interval aims at one resolution step ({@code sample.temperature.resolution} degrees or
+ * {@code sample.level.resolution} percent, whichever is reached first) between two readings, at the rate of
+ * change seen between the last two samples. It shrinks at once when the cup starts changing, e.g. on a sip or a
+ * refill, and grows by half per sample while it is still, always within {@code sample.interval.min} and
+ * {@code sample.interval.max}. Readings are pushed every {@code push.samples} samples, within
+ * {@code push.interval.min} and {@code push.interval.max}.
+ *
+ * The server can override the policy with a {@code SAMPLING} command: {@code SAMPLING:<ms>} samples at a fixed
+ * interval, {@code SAMPLING:<min>-<max>} adapts within other bounds, and {@code SAMPLING:auto} returns to the
+ * configured bounds.
+ */
+public class AdaptiveSampler {
+
+    public static final String POLICY_AUTO = "auto";
+
+    private static final double GROWTH = 1.5;
+    private static final long MIN_INTERVAL = 100;
+
+    private final long configuredMin;
+    private final long configuredMax;
+    private final double temperatureResolution;
+    private final double levelResolution;
+    private final int pushSamples;
+    private final long minPushInterval;
+    private final long maxPushInterval;
+
+    private long minInterval;
+    private long maxInterval;
+    private long interval;
+    private long lastTime = -1;
+    private double lastTemperature;
+    private double lastLevel;
+
+    public AdaptiveSampler(AgentConfig config) {
+        this.configuredMin = Math.max(MIN_INTERVAL, config.getLong("sample.interval.min", 1000));
+        this.configuredMax = Math.max(configuredMin, config.getLong("sample.interval.max", 60000));
+        this.temperatureResolution = Math.max(0.01, config.getDouble("sample.temperature.resolution", 0.5));
+        this.levelResolution = Math.max(0.01, config.getDouble("sample.level.resolution", 1));
+        this.pushSamples = Math.max(1, config.getInt("push.samples", 12));
+        this.minPushInterval = Math.max(0, config.getLong("push.interval.min", 5000));
+        this.maxPushInterval = Math.max(minPushInterval, config.getLong("push.interval.max", 300000));
+        this.minInterval = configuredMin;
+        this.maxInterval = configuredMax;
+        this.interval = configuredMin;
+    }
+
+    /**
+     * Takes a new sample into account.
+     *
+     * @return the time to wait for the next sample in milliseconds.
+     */
+    public synchronized long update(long time, float temperature, float level) {
+        if (lastTime >= 0 && time > lastTime) {
+            double steps = Math.max(Math.abs(temperature - lastTemperature) / temperatureResolution,
+                                    Math.abs(level - lastLevel) / levelResolution);
+            long target = steps > 0 ? (long) ((time - lastTime) / steps) : maxInterval;
+            if (target < interval) {
+                interval = target;
+            } else {
+                interval = Math.min((long) (interval * GROWTH), target);
+            }
+            interval = Math.max(minInterval, Math.min(maxInterval, interval));
+        }
+        lastTime = time;
+        lastTemperature = temperature;
+        lastLevel = level;
+        return interval;
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public synchronized long getPushInterval() {
+        return Math.max(minPushInterval, Math.min(maxPushInterval, interval * pushSamples));
+    }
+
+    /**
+     * Applies a policy sent by the server, see the class description.
+     *
+     * @return false if the policy is not understood; the current one is kept then.
+     */
+    public synchronized boolean override(String policy) {
+        long min;
+        long max;
+        policy = policy.trim();
+        try {
+            if (POLICY_AUTO.equalsIgnoreCase(policy)) {
+                min = configuredMin;
+                max = configuredMax;
+            } else {
+                int separator = policy.indexOf('-');
+                if (separator < 0) {
+                    min = Long.parseLong(policy);
+                    max = min;
+                } else {
+                    min = Long.parseLong(policy.substring(0, separator).trim());
+                    max = Long.parseLong(policy.substring(separator + 1).trim());
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (min <= 0 || max < min) {
+            return false;
+        }
+        min = Math.max(MIN_INTERVAL, min);
+        max = Math.max(min, max);
+        minInterval = min;
+        maxInterval = max;
+        interval = Math.max(min, Math.min(max, interval));
+        return true;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.device;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.coffeeking.connectedcup.agent.AgentConfig;
+import org.coffeeking.connectedcup.agent.AgentConstants;
+import org.coffeeking.connectedcup.agent.sensor.CupModel;
+import org.coffeeking.connectedcup.agent.spool.ReadingSpool;
+import org.coffeeking.connectedcup.agent.transport.HttpPusher;
+import org.coffeeking.connectedcup.agent.transport.MqttChannel;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The agent of a single cup. It samples temperature and level as often as the {@link AdaptiveSampler} decides and
+ * hands the readings to a {@link SpoolForwarder}, which sends them in batches of {@code batch.size} or once they
+ * have waited the push interval, and keeps them in the spool under {@code spool.dir} until the server has them.
+ *
+ * With {@code broker.url} set the agent also listens for the server's commands: a {@code LEVEL} or
+ * {@code TEMPERATURE} read is answered with a fresh sample that is sent straight away, and {@code SAMPLING}
+ * overrides the sampling policy.
+ */
+public class CupAgent {
+    private static final Log log = LogFactory.getLog(CupAgent.class);
+
+    private final String owner;
+    private final String deviceId;
+    private final String serverName;
+    private final String brokerUrl;
+    private final String brokerUser;
+    private final String brokerPassword;
+    private final AdaptiveSampler sampler;
+    private final CupModel model;
+    private final ReadingSpool spool;
+    private final SpoolForwarder forwarder;
+    private final ScheduledExecutorService scheduler;
+    private final Thread forwarderThread;
+    private ScheduledFuture<?> nextSample;
+    private MqttChannel commandChannel;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean stopped;
+
+    public CupAgent(AgentConfig config) throws IOException {
+        this.owner = config.getString("owner", null);
+        this.deviceId = config.getString("device.id", null);
+        if (owner == null || deviceId == null) {
+            throw new IllegalArgumentException("Both owner and device.id must be configured");
+        }
+        this.serverName = config.getString("server.name", "iotserver");
+        this.brokerUrl = config.getString("broker.url", null);
+        this.brokerUser = config.getString("broker.user", null);
+        this.brokerPassword = config.getString("broker.password", null);
+        this.sampler = new AdaptiveSampler(config);
+        this.model = new CupModel(new Random(), System.currentTimeMillis());
+        this.spool = new ReadingSpool(new File(config.getString("spool.dir", "spool")),
+                                      config.getInt("spool.segment.size", 1024 * 1024),
+                                      config.getInt("spool.max.segments", 64));
+        HttpPusher pusher = new HttpPusher(config.getString("server.url", "http://localhost:9763/connectedcup"),
+                                           config.getString("server.authorization", null));
+        this.forwarder = new SpoolForwarder(spool, pusher, owner, deviceId,
+                                            config.getInt("batch.size", 60),
+                                            sampler.getPushInterval(),
+                                            config.getLong("replay.bandwidth", 16 * 1024),
+                                            config.getLong("retry.max.delay", 60000));
+        this.forwarderThread = new Thread(forwarder, "connectedcup-agent-forwarder");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-agent-sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() throws MqttException {
+        log.info("Starting agent of cup " + deviceId);
+        forwarderThread.start();
+        if (brokerUrl != null) {
+            commandChannel = new MqttChannel(brokerUrl, deviceId, brokerUser, brokerPassword);
+            commandChannel.subscribe(AgentConstants.getCommandTopic(serverName, owner, deviceId),
+                                     new CommandListener());
+            Thread connector = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    commandChannel.connect();
+                }
+            }, "connectedcup-agent-mqtt-connect");
+            connector.setDaemon(true);
+            connector.start();
+        }
+        scheduleSample(0);
+    }
+
+    private synchronized void scheduleSample(long delay) {
+        if (stopped) {
+            return;
+        }
+        if (nextSample != null) {
+            nextSample.cancel(false);
+        }
+        nextSample = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleSample(sample(false));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a sample of both sensors.
+     *
+     * @param flush whether to send it without waiting for the batch to fill
+     * @return the time to wait for the next sample.
+     */
+    private long sample(boolean flush) {
+        try {
+            long now = System.currentTimeMillis();
+            float temperature;
+            float level;
+            synchronized (model) {
+                model.advance(now);
+                temperature = model.getTemperature();
+                level = model.getLevel();
+            }
+            forwarder.offer(AgentConstants.SENSOR_TEMPERATURE, temperature, now);
+            forwarder.offer(AgentConstants.SENSOR_LEVEL, level, now);
+            long interval = sampler.update(now, temperature, level);
+            forwarder.setFlushInterval(sampler.getPushInterval());
+            if (flush) {
+                forwarder.flushNow();
+            }
+            return interval;
+        } catch (RuntimeException e) {
+            // keep sampling, at the slowest rate
+            log.error("Failed to sample cup " + deviceId, e);
+            return sampler.getInterval();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * Stops sampling and sending. Readings that were not sent stay in the spool for the next start.
+     */
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        scheduler.shutdownNow();
+        if (commandChannel != null) {
+            commandChannel.close();
+        }
+        forwarder.stop();
+        try {
+            forwarderThread.join(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped agent of cup " + deviceId + ": " + forwarder.getSentCount() + " readings sent, " +
+                 spool.getPending() + " left in the spool, " + spool.getDropped() + " dropped");
+        spool.close();
+        finished.countDown();
+    }
+
+    private class CommandListener implements MqttChannel.MessageListener {
+
+        @Override
+        public void messageArrived(String topic, String payload) {
+            int separator = payload.indexOf(':');
+            String resource = separator < 0 ? payload : payload.substring(0, separator);
+            String state = separator < 0 ? "" : payload.substring(separator + 1);
+            if (AgentConstants.RESOURCE_SAMPLING.equalsIgnoreCase(resource)) {
+                if (sampler.override(state)) {
+                    log.info("Sampling policy set to [" + state + "] by the server");
+                    scheduleSample(0);
+                } else {
+                    log.warn("Ignoring invalid sampling policy [" + state + "]");
+                }
+            } else if (AgentConstants.getRequestedSensor(payload) != null) {
+                try {
+                    // sample on the scheduler so that samples and the adaptive schedule stay in order
+                    scheduler.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sample(true);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // stopping
+                }
+            } else if (log.isDebugEnabled()) {
+                log.debug("Ignoring unknown command [" + payload + "]");
+            }
+        }
+    }
+}
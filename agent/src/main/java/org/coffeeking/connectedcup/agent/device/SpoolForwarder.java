@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.device;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.coffeeking.connectedcup.agent.AgentConstants;
+import org.coffeeking.connectedcup.agent.spool.ReadingSpool;
+import org.coffeeking.connectedcup.agent.spool.SpooledReading;
+import org.coffeeking.connectedcup.agent.transport.HttpPusher;
+import org.coffeeking.connectedcup.agent.transport.TelemetryEncoder;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores readings in the {@link ReadingSpool} and forwards them to the server in batches.
+ *
+ * A batch is sent once {@code batchSize} readings are waiting or once the oldest of them has waited
+ * {@code flushInterval} milliseconds, as one binary push_batch request. Readings are only removed from the spool
+ * when the server accepted them, so they are delivered at least once. While the server cannot be reached the
+ * readings pile up in the spool and sending is retried with an exponential backoff, or after the Retry-After the
+ * server asked for. Once it is back the backlog is sent in full batches, paced to {@code bandwidth} bytes per
+ * second so that a long outage does not end in a burst.
+ */
+public class SpoolForwarder implements Runnable {
+    private static final Log log = LogFactory.getLog(SpoolForwarder.class);
+
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    private final ReadingSpool spool;
+    private final HttpPusher pusher;
+    private final String owner;
+    private final String deviceId;
+    private final int batchSize;
+    private volatile long flushInterval;
+    private final long bandwidth;
+    private final long maxRetryDelay;
+
+    private final Object lock = new Object();
+    private final List<SpooledReading> batch = new ArrayList<>();
+    private volatile boolean stopped;
+    private volatile boolean flushRequested;
+    private long notBefore;
+    private long retryDelay;
+    private boolean offline;
+    private volatile long sentCount;
+
+    /**
+     * @param bandwidth     bytes per second the forwarder sends at most, 0 for no limit
+     * @param maxRetryDelay the longest wait between attempts while the server cannot be reached
+     */
+    public SpoolForwarder(ReadingSpool spool, HttpPusher pusher, String owner, String deviceId, int batchSize,
+                          long flushInterval, long bandwidth, long maxRetryDelay) {
+        this.spool = spool;
+        this.pusher = pusher;
+        this.owner = owner;
+        this.deviceId = deviceId;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(0, flushInterval);
+        this.bandwidth = Math.max(0, bandwidth);
+        this.maxRetryDelay = Math.max(MIN_RETRY_DELAY, maxRetryDelay);
+    }
+
+    /**
+     * Spools a reading; it is sent with the next batch.
+     */
+    public void offer(String sensor, float value, long time) {
+        int sensorIndex = AgentConstants.getSensorIndex(sensor);
+        if (sensorIndex < 0) {
+            throw new IllegalArgumentException("Unknown sensor " + sensor);
+        }
+        try {
+            spool.append(sensorIndex, value, time);
+        } catch (IOException e) {
+            log.error("Failed to spool " + sensor + " reading, it is lost", e);
+            return;
+        }
+        long pending = spool.getPending();
+        // wake the forwarder to start the flush interval or to send a full batch
+        if (pending == 1 || pending >= batchSize) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                long flushAt = getFlushTime(now);
+                if (flushAt > now) {
+                    try {
+                        lock.wait(flushAt == Long.MAX_VALUE ? flushInterval + 1 : flushAt - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Changes how long readings may wait before they are sent.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(0, flushInterval);
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Sends the waiting readings without waiting for the batch to fill, e.g. to answer a read command. Backoff
+     * and pacing still apply.
+     */
+    public void flushNow() {
+        flushRequested = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return when the next batch is due, {@link Long#MAX_VALUE} if nothing is waiting.
+     */
+    private long getFlushTime(long now) {
+        long pending = spool.getPending();
+        if (pending == 0) {
+            return Long.MAX_VALUE;
+        }
+        long flushAt = 0;
+        if (pending < batchSize && !flushRequested) {
+            // a reading stamped in the future, after the clock was set back, must not hold the batch back
+            flushAt = Math.min(spool.getOldestTime(), now) + flushInterval;
+        }
+        return Math.max(flushAt, notBefore);
+    }
+
+    private void flush() {
+        flushRequested = false;
+        long position = spool.peek(batchSize, batch);
+        int count = TelemetryEncoder.getEncodableCount(batch);
+        if (count == 0) {
+            return;
+        }
+        byte[] body = TelemetryEncoder.encode(owner, deviceId, batch, count);
+        long startTime = System.currentTimeMillis();
+        try {
+            HttpPusher.Response response = pusher.post(AgentConstants.PUSH_BATCH_CONTEXT,
+                                                       AgentConstants.TELEMETRY_CONTENT_TYPE, body);
+            if (response.isSuccessful()) {
+                spool.acknowledge(position, count);
+                onDelivered(count);
+            } else if (response.getStatus() == HttpURLConnection.HTTP_BAD_REQUEST) {
+                // retrying would fail the same way and block every later reading
+                spool.acknowledge(position, count);
+                log.error("Server rejected a batch of " + count + " readings as invalid, it is discarded");
+            } else if (response.getRetryAfter() > 0) {
+                notBefore = startTime + response.getRetryAfter() * 1000;
+                if (log.isDebugEnabled()) {
+                    log.debug("Server is busy (" + response.getStatus() + "), retrying after " +
+                              response.getRetryAfter() + "s");
+                }
+                return;
+            } else {
+                onFailure("server answered " + response.getStatus());
+                return;
+            }
+        } catch (IOException e) {
+            onFailure(e.getMessage());
+            return;
+        }
+        if (bandwidth > 0) {
+            notBefore = startTime + body.length * 1000L / bandwidth;
+        }
+    }
+
+    private void onDelivered(int count) {
+        sentCount += count;
+        retryDelay = 0;
+        if (offline) {
+            offline = false;
+            log.info("Server is reachable again, sending " + spool.getPending() + " spooled readings");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Sent " + count + " readings, " + spool.getPending() + " waiting");
+        }
+    }
+
+    private void onFailure(String reason) {
+        retryDelay = retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(retryDelay * 2, maxRetryDelay);
+        notBefore = System.currentTimeMillis() + retryDelay;
+        if (!offline) {
+            offline = true;
+            log.warn("Unable to send readings (" + reason + "), spooling them until the server is reachable");
+        } else if (log.isDebugEnabled()) {
+            log.debug("Unable to send readings (" + reason + "), retrying in " + retryDelay + "ms");
+        }
+    }
+
+    /**
+     * @return the number of readings the server accepted.
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.sensor;
+
+import org.coffeeking.connectedcup.agent.AgentConstants;
+
+import java.util.Random;
+
+/**
+ * Physical model of a cup, used in place of real sensors.
+ *
+ * A fresh drink is poured at 70 to 85 degrees and cools towards the room temperature following Newton's law of
+ * cooling. It is drunk in sips that take 3 to 8 percent of the cup, on average every 90 seconds; once the cup is
+ * empty it stands for 5 to 30 minutes before it is refilled. Readings carry a little sensor noise.
+ */
+public class CupModel {
+
+    private static final double AMBIENT = 22;
+    private static final double COOLING_RATE = 1 / (20 * 60 * 1000.0);
+    private static final long MEAN_SIP_INTERVAL = 90 * 1000;
+    private static final long MIN_IDLE = 5 * 60 * 1000;
+    private static final long MAX_IDLE = 30 * 60 * 1000;
+    private static final double NOISE = 0.05;
+
+    private final Random random;
+    private double temperature;
+    private double level;
+    private long time;
+    private long nextSipAt;
+    private long refillAt;
+
+    /**
+     * @param random source of randomness, owned by the caller; the model never shares it
+     * @param now    current time in milliseconds
+     */
+    public CupModel(Random random, long now) {
+        this.random = random;
+        this.time = now;
+        // start somewhere in the life of a drink so that a fleet is not in lockstep
+        this.temperature = AMBIENT + (60 - AMBIENT) * random.nextDouble();
+        this.level = 100 * random.nextDouble();
+        this.nextSipAt = now + nextSipDelay();
+    }
+
+    /**
+     * Moves the cup forward to the given time.
+     */
+    public synchronized void advance(long now) {
+        long event = level > 0 ? nextSipAt : refillAt;
+        while (event <= now) {
+            cool(event - time);
+            time = event;
+            if (level > 0) {
+                sip();
+            } else {
+                refill();
+            }
+            event = level > 0 ? nextSipAt : refillAt;
+        }
+        if (now > time) {
+            cool(now - time);
+            time = now;
+        }
+    }
+
+    private void cool(long elapsed) {
+        temperature = AMBIENT + (temperature - AMBIENT) * Math.exp(-COOLING_RATE * elapsed);
+    }
+
+    private void sip() {
+        level -= 3 + 5 * random.nextDouble();
+        if (level <= 0) {
+            level = 0;
+            refillAt = time + MIN_IDLE + (long) ((MAX_IDLE - MIN_IDLE) * random.nextDouble());
+        } else {
+            nextSipAt = time + nextSipDelay();
+        }
+    }
+
+    private void refill() {
+        level = 90 + 10 * random.nextDouble();
+        temperature = 70 + 15 * random.nextDouble();
+        nextSipAt = time + nextSipDelay();
+    }
+
+    private long nextSipDelay() {
+        // exponentially distributed, so sips arrive as a Poisson process
+        return 1 + (long) (-MEAN_SIP_INTERVAL * Math.log(1 - random.nextDouble()));
+    }
+
+    public synchronized float getTemperature() {
+        return (float) (temperature + NOISE * random.nextGaussian());
+    }
+
+    public synchronized float getLevel() {
+        return (float) Math.max(0, Math.min(100, level + NOISE * random.nextGaussian()));
+    }
+
+    public synchronized float getValue(String sensor) {
+        return AgentConstants.SENSOR_LEVEL.equals(sensor) ? getLevel() : getTemperature();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.simulator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.coffeeking.connectedcup.agent.AgentConfig;
+import org.coffeeking.connectedcup.agent.AgentConstants;
+import org.coffeeking.connectedcup.agent.sensor.CupModel;
+import org.coffeeking.connectedcup.agent.transport.HttpPusher;
+import org.coffeeking.connectedcup.agent.transport.MqttChannel;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a fleet of virtual cups in one JVM to load-test the server.
+ *
+ * Cups are split into shards and every shard is ticked by a small scheduler pool ({@code simulator.threads}), so
+ * tens of thousands of cups do not need a thread each. A cup that is due takes a temperature and a level reading
+ * every {@code simulator.interval} milliseconds and pushes them over HTTP or MQTT ({@code simulator.transport}).
+ * HTTP pushes run on a bounded pool of {@code simulator.http.threads}; when it cannot keep up, readings are
+ * counted as backlogged rather than queued without bound, so the report shows what the server really sustains.
+ * MQTT readings are spread over {@code simulator.mqtt.connections} connections.
+ *
+ * Read commands published by the server ({@code LEVEL:} or {@code TEMPERATURE:}) are received on one
+ * wildcard subscription and answered with a fresh reading over the configured transport. This is on by default
+ * with MQTT; set {@code simulator.commands=true} to enable it with HTTP. Throughput and the latency of pushes
+ * (until the server or broker acknowledged them) and of command replies are logged every
+ * {@code simulator.report.interval} seconds.
+ */
+public class FleetSimulator {
+    private static final Log log = LogFactory.getLog(FleetSimulator.class);
+
+    private static final String TRANSPORT_HTTP = "http";
+    private static final String TRANSPORT_MQTT = "mqtt";
+    private static final long TICK = 100;
+    private static final int CUPS_PER_SHARD = 1000;
+
+    private final int cupCount;
+    private final long interval;
+    private final String transport;
+    private final String owner;
+    private final String serverName;
+    private final int qos;
+    private final long duration;
+    private final long reportInterval;
+
+    private final VirtualCup[] cups;
+    private final Map<String, VirtualCup> cupsById;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor ioExecutor;
+    private final HttpPusher httpPusher;
+    private final String brokerUrl;
+    private final String brokerUser;
+    private final String brokerPassword;
+    private final int mqttConnections;
+    private final boolean answerCommands;
+    private MqttChannel[] channels = new MqttChannel[0];
+    private MqttChannel commandChannel;
+    private final SimulatorStats stats = new SimulatorStats();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean stopped;
+
+    public FleetSimulator(AgentConfig config) {
+        this.cupCount = Math.max(1, config.getInt("simulator.cups", 10000));
+        this.interval = Math.max(TICK, config.getLong("simulator.interval", 10000));
+        this.transport = config.getString("simulator.transport", TRANSPORT_HTTP);
+        this.owner = config.getString("owner", "admin");
+        this.serverName = config.getString("server.name", "iotserver");
+        this.qos = config.getInt("simulator.mqtt.qos", 1);
+        this.duration = config.getLong("simulator.duration", 0);
+        this.reportInterval = Math.max(1, config.getLong("simulator.report.interval", 10));
+        this.brokerUrl = config.getString("broker.url", "tcp://localhost:1883");
+        this.brokerUser = config.getString("broker.user", null);
+        this.brokerPassword = config.getString("broker.password", null);
+        this.mqttConnections = Math.max(1, config.getInt("simulator.mqtt.connections", 8));
+        this.answerCommands = config.getBoolean("simulator.commands", TRANSPORT_MQTT.equals(transport));
+
+        int httpThreads = Math.max(1, config.getInt("simulator.http.threads", 32));
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(httpThreads));
+        }
+        this.httpPusher = new HttpPusher(config.getString("server.url", "http://localhost:9763/connectedcup"),
+                                         config.getString("server.authorization", null));
+        this.ioExecutor = new ThreadPoolExecutor(httpThreads, httpThreads, 0, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<Runnable>(httpThreads * 4),
+                                                 new NamedThreadFactory("connectedcup-simulator-io"));
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, config.getInt("simulator.threads", 4)),
+                                                          new NamedThreadFactory("connectedcup-simulator"));
+
+        String prefix = config.getString("simulator.device.prefix", "sim");
+        long seed = config.getLong("simulator.seed", System.nanoTime());
+        long now = System.currentTimeMillis();
+        this.cups = new VirtualCup[cupCount];
+        this.cupsById = new HashMap<>(cupCount * 2);
+        Random spread = new Random(seed);
+        for (int i = 0; i < cupCount; i++) {
+            String deviceId = prefix + i;
+            CupModel model = new CupModel(new Random(seed + i), now);
+            // spread the first readings over one interval so the fleet does not push in bursts
+            cups[i] = new VirtualCup(i, deviceId, model, now + (long) (interval * spread.nextDouble()));
+            cupsById.put(deviceId, cups[i]);
+        }
+    }
+
+    public void start() throws MqttException {
+        log.info("Starting " + cupCount + " virtual cups pushing over " + transport + " every " + interval + "ms");
+        if (TRANSPORT_MQTT.equals(transport)) {
+            channels = new MqttChannel[mqttConnections];
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = new MqttChannel(brokerUrl, "sim-" + owner + "-" + i + "-" + System.nanoTime() % 100000,
+                                              brokerUser, brokerPassword);
+                channels[i].connect();
+            }
+            commandChannel = channels[0];
+        } else if (answerCommands) {
+            commandChannel = new MqttChannel(brokerUrl, "sim-" + owner + "-commands-" + System.nanoTime() % 100000,
+                                             brokerUser, brokerPassword);
+            commandChannel.connect();
+        }
+        if (answerCommands) {
+            commandChannel.subscribe(AgentConstants.getCommandTopic(serverName, owner, "+"),
+                                     new CommandListener());
+        }
+
+        for (int from = 0; from < cupCount; from += CUPS_PER_SHARD) {
+            scheduler.scheduleAtFixedRate(new Shard(from, Math.min(cupCount, from + CUPS_PER_SHARD)),
+                                          0, TICK, TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                stats.report(cupCount);
+            }
+        }, reportInterval, reportInterval, TimeUnit.SECONDS);
+        if (duration > 0) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            }, duration, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Waits until the run has ended, after {@code simulator.duration} seconds or when stopped.
+     */
+    public void awaitTermination() throws InterruptedException {
+        finished.await();
+    }
+
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        scheduler.shutdownNow();
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (commandChannel != null && channels.length == 0) {
+            commandChannel.close();
+        }
+        for (MqttChannel channel : channels) {
+            channel.close();
+        }
+        stats.reportTotals(cupCount);
+        finished.countDown();
+    }
+
+    /**
+     * @param startTime nano time from which the latency of the reading is measured, i.e. when it was generated or
+     *                  when the command it answers was received.
+     */
+    private void send(VirtualCup cup, String sensor, float value, long time, LatencyRecorder latency,
+                      long startTime) {
+        stats.generated.incrementAndGet();
+        if (TRANSPORT_MQTT.equals(transport)) {
+            publish(cup, sensor, value, time, latency, startTime);
+        } else {
+            try {
+                ioExecutor.execute(new HttpPush(cup.deviceId, sensor, value, time, latency, startTime));
+            } catch (RejectedExecutionException e) {
+                stats.backlogged.incrementAndGet();
+            }
+        }
+    }
+
+    private void publish(VirtualCup cup, String sensor, float value, long time, LatencyRecorder latency,
+                         long startTime) {
+        MqttChannel channel = channels[cup.index % channels.length];
+        try {
+            channel.publish(AgentConstants.getPublisherTopic(serverName, owner, cup.deviceId),
+                            AgentConstants.getReadingPayload(sensor, value, time), qos,
+                            new long[]{startTime}, new PublishListener(latency));
+        } catch (MqttException e) {
+            if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+                stats.backlogged.incrementAndGet();
+            } else {
+                stats.failed.incrementAndGet();
+            }
+        }
+    }
+
+    private class Shard implements Runnable {
+        private final int from;
+        private final int to;
+
+        Shard(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (int i = from; i < to; i++) {
+                VirtualCup cup = cups[i];
+                if (cup.nextSampleAt > now) {
+                    continue;
+                }
+                cup.model.advance(now);
+                send(cup, AgentConstants.SENSOR_TEMPERATURE, cup.model.getTemperature(), now, stats.pushLatency,
+                     System.nanoTime());
+                send(cup, AgentConstants.SENSOR_LEVEL, cup.model.getLevel(), now, stats.pushLatency,
+                     System.nanoTime());
+                cup.nextSampleAt += interval;
+                if (cup.nextSampleAt <= now) {
+                    // fell behind by more than an interval, do not try to catch up with a burst
+                    cup.nextSampleAt = now + interval;
+                }
+            }
+        }
+    }
+
+    private class HttpPush implements Runnable {
+        private final String deviceId;
+        private final String sensor;
+        private final float value;
+        private final long time;
+        private final LatencyRecorder latency;
+        private final long startTime;
+
+        HttpPush(String deviceId, String sensor, float value, long time, LatencyRecorder latency, long startTime) {
+            this.deviceId = deviceId;
+            this.sensor = sensor;
+            this.value = value;
+            this.time = time;
+            this.latency = latency;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int status = httpPusher.push(owner, deviceId, sensor, value, time);
+                if (status >= 200 && status < 300) {
+                    stats.delivered.incrementAndGet();
+                    latency.record(System.nanoTime() - startTime);
+                } else {
+                    stats.failed.incrementAndGet();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Push of " + sensor + " of " + deviceId + " was refused with status " + status);
+                    }
+                }
+            } catch (IOException e) {
+                stats.failed.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Push of " + sensor + " of " + deviceId + " failed", e);
+                }
+            }
+        }
+    }
+
+    private class PublishListener implements IMqttActionListener {
+        private final LatencyRecorder latency;
+
+        PublishListener(LatencyRecorder latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            stats.delivered.incrementAndGet();
+            latency.record(System.nanoTime() - ((long[]) token.getUserContext())[0]);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            stats.failed.incrementAndGet();
+        }
+    }
+
+    private class CommandListener implements MqttChannel.MessageListener {
+
+        @Override
+        public void messageArrived(String topic, String payload) {
+            final long receivedAt = System.nanoTime();
+            final VirtualCup cup = cupsById.get(topic.substring(topic.lastIndexOf('/') + 1));
+            final String sensor = AgentConstants.getRequestedSensor(payload);
+            if (cup == null || sensor == null) {
+                return;
+            }
+            stats.commands.incrementAndGet();
+            Runnable reply = new Runnable() {
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    cup.model.advance(now);
+                    // measured from the receipt of the command, so time spent queued for an I/O thread counts
+                    send(cup, sensor, cup.model.getValue(sensor), now, stats.commandLatency, receivedAt);
+                }
+            };
+            try {
+                // answer off the MQTT callback thread, which must not block
+                ioExecutor.execute(reply);
+            } catch (RejectedExecutionException e) {
+                stats.backlogged.incrementAndGet();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
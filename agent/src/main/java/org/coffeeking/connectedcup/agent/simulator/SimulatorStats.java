@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.simulator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a simulation run, reported periodically as rates over the last interval and once more as totals
+ * when the run ends.
+ */
+class SimulatorStats {
+    private static final Log log = LogFactory.getLog(SimulatorStats.class);
+
+    // readings the cups produced
+    final AtomicLong generated = new AtomicLong();
+    // readings the server or broker acknowledged
+    final AtomicLong delivered = new AtomicLong();
+    // readings refused by the server or lost on the way
+    final AtomicLong failed = new AtomicLong();
+    // readings that were not sent because the transport was saturated
+    final AtomicLong backlogged = new AtomicLong();
+    // read commands received and answered
+    final AtomicLong commands = new AtomicLong();
+
+    final LatencyRecorder pushLatency = new LatencyRecorder();
+    final LatencyRecorder commandLatency = new LatencyRecorder();
+
+    private final long startTime = System.nanoTime();
+    private long lastReportTime = startTime;
+    private long lastGenerated;
+    private long lastDelivered;
+    private double worstPush;
+
+    synchronized void report(int cups) {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportTime) / 1e9;
+        long generatedNow = generated.get();
+        long deliveredNow = delivered.get();
+        LatencyRecorder.Snapshot push = pushLatency.drain();
+        LatencyRecorder.Snapshot command = commandLatency.drain();
+        worstPush = Math.max(worstPush, push.getMax());
+        log.info(String.format("cups=%d offered=%.0f/s achieved=%.0f/s failed=%d backlogged=%d | " +
+                               "push p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms | " +
+                               "commands=%d p50=%.1fms p99=%.1fms",
+                               cups, (generatedNow - lastGenerated) / seconds,
+                               (deliveredNow - lastDelivered) / seconds, failed.get(), backlogged.get(),
+                               push.getQuantile(0.5), push.getQuantile(0.99), push.getQuantile(0.999), push.getMax(),
+                               command.getCount(), command.getQuantile(0.5), command.getQuantile(0.99)));
+        lastReportTime = now;
+        lastGenerated = generatedNow;
+        lastDelivered = deliveredNow;
+    }
+
+    synchronized void reportTotals(int cups) {
+        report(cups);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        log.info(String.format("Simulated %d cups for %.0fs: generated=%d delivered=%d (%.0f/s) failed=%d " +
+                               "backlogged=%d commands=%d worst push=%.1fms",
+                               cups, seconds, generated.get(), delivered.get(), delivered.get() / seconds,
+                               failed.get(), backlogged.get(), commands.get(), worstPush));
+    }
+}
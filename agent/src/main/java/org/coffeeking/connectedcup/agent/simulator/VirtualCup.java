@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.simulator;
+
+import org.coffeeking.connectedcup.agent.sensor.CupModel;
+
+/**
+ * One simulated cup: its model and when it takes its next reading. The schedule is only touched by the scheduler
+ * thread that owns the cup.
+ */
+class VirtualCup {
+    final int index;
+    final String deviceId;
+    final CupModel model;
+    long nextSampleAt;
+
+    VirtualCup(int index, String deviceId, CupModel model, long firstSampleAt) {
+        this.index = index;
+        this.deviceId = deviceId;
+        this.model = model;
+        this.nextSampleAt = firstSampleAt;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.spool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Append-only store of the readings that have not reached the server yet, kept in memory-mapped files so that it
+ * survives a restart of the agent.
+ *
+ * Readings are appended to fixed-size segment files named by a sequence number. Every record is
+ * {@value #RECORD_BYTES} bytes:
+ * <pre>
+ *   u8  state, 1 once the record is complete
+ *   u8  sensor, the position in AgentConstants.SENSORS
+ *   u16 unused
+ *   f32 value
+ *   i64 time in milliseconds
+ * </pre>
+ * New segments are zero-filled and the state byte is written last, so a record torn by a crash is never read back
+ * and the end of a segment is found again by scanning for the first incomplete record. How far the server has
+ * acknowledged the readings is kept in a separate {@code ack} file as the sequence number of the oldest segment
+ * and the record offset within it; segments that are fully acknowledged are deleted.
+ *
+ * The spool is bounded by {@code maxSegments}. When it is full the oldest segment is dropped, so an agent that is
+ * offline for too long loses its oldest readings rather than its newest.
+ *
+ * Writes reach the page cache immediately and so survive a crash of the agent; segments are forced to the device
+ * when they are full and when the spool is closed, not after every reading.
+ */
+public class ReadingSpool implements Closeable {
+    private static final Log log = LogFactory.getLog(ReadingSpool.class);
+
+    public static final int RECORD_BYTES = 16;
+
+    private static final byte COMPLETE = 1;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String ACK_FILE = "ack";
+    private static final int ACK_BYTES = 12;
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    // oldest first, the last one is written to
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final RandomAccessFile ackFile;
+    private final MappedByteBuffer ackBuffer;
+    private long nextSequence;
+    // offset of the oldest unacknowledged record in the first segment
+    private int readOffset;
+    // number of records ever consumed, by acknowledgement or by dropping, since the spool was opened
+    private long consumed;
+    private long pending;
+    private long dropped;
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int writeOffset;
+
+        Segment(long sequence, File file, int capacity) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            this.capacity = capacity;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            if (randomAccessFile.length() < (long) capacity * RECORD_BYTES) {
+                randomAccessFile.setLength((long) capacity * RECORD_BYTES);
+            }
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                            (long) capacity * RECORD_BYTES);
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                log.warn("Failed to close spool segment " + file, e);
+            }
+        }
+
+        void delete() {
+            close();
+            // the mapping stays valid until it is garbage collected, which does not prevent deletion on POSIX
+            if (!file.delete()) {
+                log.warn("Failed to delete spool segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Opens the spool in the directory, creating it if needed, and recovers the readings that were not
+     * acknowledged before the agent stopped.
+     *
+     * @param segmentSize size of a segment file in bytes
+     * @param maxSegments the number of segment files kept at most
+     */
+    public ReadingSpool(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentRecords = Math.max(1, segmentSize / RECORD_BYTES);
+        this.maxSegments = Math.max(2, maxSegments);
+
+        this.ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        this.ackBuffer = ackFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, ACK_BYTES);
+        long ackSequence = ackBuffer.getLong(0);
+        int ackOffset = ackBuffer.getInt(8);
+        recover(ackSequence, ackOffset);
+        if (pending > 0) {
+            log.info("Recovered " + pending + " unsent readings from " + directory);
+        }
+    }
+
+    private void recover(long ackSequence, int ackOffset) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        long[] sequences = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < sequences.length; i++) {
+            String name = files[i].getName();
+            try {
+                sequences[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                sequences[i] = -1;
+            }
+        }
+        Arrays.sort(sequences);
+
+        nextSequence = ackSequence;
+        for (long sequence : sequences) {
+            if (sequence < 0) {
+                continue;
+            }
+            File file = getSegmentFile(sequence);
+            if (sequence < ackSequence) {
+                if (!file.delete()) {
+                    log.warn("Failed to delete acknowledged spool segment " + file);
+                }
+                continue;
+            }
+            // keep the size a segment was created with, the configured size may have changed since
+            Segment segment = new Segment(sequence, file, (int) Math.max(1, file.length() / RECORD_BYTES));
+            while (segment.writeOffset < segment.capacity &&
+                   segment.buffer.get(segment.writeOffset * RECORD_BYTES) == COMPLETE) {
+                segment.writeOffset++;
+            }
+            segments.addLast(segment);
+            pending += segment.writeOffset;
+            nextSequence = sequence + 1;
+        }
+
+        Segment first = segments.peekFirst();
+        if (first != null && first.sequence == ackSequence) {
+            readOffset = Math.min(Math.max(0, ackOffset), first.writeOffset);
+            pending -= readOffset;
+        }
+    }
+
+    private File getSegmentFile(long sequence) {
+        return new File(directory, String.format("%016d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Appends a reading. It is visible to {@link #peek} as soon as this returns.
+     */
+    public synchronized void append(int sensor, float value, long time) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writeOffset == segment.capacity) {
+            segment = roll();
+        }
+        int position = segment.writeOffset * RECORD_BYTES;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(position + 1, (byte) sensor);
+        buffer.putFloat(position + 4, value);
+        buffer.putLong(position + 8, time);
+        buffer.put(position, COMPLETE);
+        segment.writeOffset++;
+        pending++;
+    }
+
+    private Segment roll() throws IOException {
+        Segment last = segments.peekLast();
+        if (last != null) {
+            last.buffer.force();
+        }
+        Segment first = segments.peekFirst();
+        if (first != null && readOffset == first.capacity) {
+            segments.removeFirst().delete();
+            readOffset = 0;
+        }
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            int lost = oldest.writeOffset - readOffset;
+            dropped += lost;
+            pending -= lost;
+            consumed += lost;
+            readOffset = 0;
+            oldest.delete();
+            log.warn("Spool is full, dropped " + lost + " unsent readings");
+        }
+        Segment segment = new Segment(nextSequence, getSegmentFile(nextSequence), segmentRecords);
+        nextSequence++;
+        segments.addLast(segment);
+        writeAcknowledgement();
+        return segment;
+    }
+
+    /**
+     * Copies up to {@code max} of the oldest unacknowledged readings into {@code readings}, without removing them.
+     *
+     * @return the position of the first reading, to be passed to {@link #acknowledge}.
+     */
+    public synchronized long peek(int max, List<SpooledReading> readings) {
+        readings.clear();
+        int offset = readOffset;
+        for (Segment segment : segments) {
+            MappedByteBuffer buffer = segment.buffer;
+            for (int i = offset; i < segment.writeOffset && readings.size() < max; i++) {
+                int position = i * RECORD_BYTES;
+                readings.add(new SpooledReading(buffer.get(position + 1), buffer.getFloat(position + 4),
+                                                buffer.getLong(position + 8)));
+            }
+            if (readings.size() == max) {
+                break;
+            }
+            offset = 0;
+        }
+        return consumed;
+    }
+
+    /**
+     * @return the time of the oldest unacknowledged reading, or -1 if there is none.
+     */
+    public synchronized long getOldestTime() {
+        Segment first = segments.peekFirst();
+        if (first == null || pending == 0) {
+            return -1;
+        }
+        if (readOffset < first.writeOffset) {
+            return first.buffer.getLong(readOffset * RECORD_BYTES + 8);
+        }
+        for (Segment segment : segments) {
+            if (segment != first && segment.writeOffset > 0) {
+                return segment.buffer.getLong(8);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes readings that reached the server. Readings that were dropped meanwhile because the spool was full
+     * are not counted twice.
+     *
+     * @param position the position returned by the {@link #peek} that returned the readings
+     * @param count    the number of readings, from that position, that were acknowledged
+     */
+    public synchronized void acknowledge(long position, int count) {
+        long advance = Math.min(position + count - consumed, pending);
+        if (advance <= 0) {
+            return;
+        }
+        consumed += advance;
+        pending -= advance;
+        while (advance > 0) {
+            Segment first = segments.peekFirst();
+            int step = (int) Math.min(advance, first.writeOffset - readOffset);
+            readOffset += step;
+            advance -= step;
+            if (readOffset == first.capacity && segments.size() > 1) {
+                segments.removeFirst().delete();
+                readOffset = 0;
+            }
+        }
+        writeAcknowledgement();
+    }
+
+    private void writeAcknowledgement() {
+        Segment first = segments.peekFirst();
+        ackBuffer.putLong(0, first == null ? nextSequence : first.sequence);
+        ackBuffer.putInt(8, readOffset);
+    }
+
+    /**
+     * @return the number of readings waiting to be acknowledged.
+     */
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    /**
+     * @return the number of readings dropped since the spool was opened because it was full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Forces the spool to the device and closes its files.
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.close();
+        }
+        segments.clear();
+        ackBuffer.force();
+        try {
+            ackFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close spool acknowledgement file", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.spool;
+
+/**
+ * A reading read back from the {@link ReadingSpool}.
+ */
+public class SpooledReading {
+    private final int sensor;
+    private final float value;
+    private final long time;
+
+    SpooledReading(int sensor, float value, long time) {
+        this.sensor = sensor;
+        this.value = value;
+        this.time = time;
+    }
+
+    /**
+     * @return the position of the sensor in {@link org.coffeeking.connectedcup.agent.AgentConstants#SENSORS}.
+     */
+    public int getSensor() {
+        return sensor;
+    }
+
+    public float getValue() {
+        return value;
+    }
+
+    public long getTime() {
+        return time;
+    }
+}
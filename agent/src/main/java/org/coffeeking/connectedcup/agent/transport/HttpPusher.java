@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.transport;
+
+import org.coffeeking.connectedcup.agent.AgentConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pushes readings to the controller service over HTTP. Connections are kept alive and reused by the JDK, up to
+ * {@code http.maxConnections} per server; the response body is always drained so that reuse is possible.
+ */
+public class HttpPusher {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final String serverUrl;
+    private final String authorization;
+
+    /**
+     * @param serverUrl     base URL of the controller service, e.g. http://localhost:9763/connectedcup
+     * @param authorization value of the Authorization header, or null to send none
+     */
+    public HttpPusher(String serverUrl, String authorization) {
+        this.serverUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+        this.authorization = authorization;
+    }
+
+    /**
+     * Pushes a single reading.
+     *
+     * @return the HTTP status of the response.
+     */
+    public int push(String owner, String deviceId, String sensor, float value, long time) throws IOException {
+        String context = AgentConstants.SENSOR_LEVEL.equals(sensor) ?
+                         AgentConstants.PUSH_LEVEL_CONTEXT : AgentConstants.PUSH_TEMPERATURE_CONTEXT;
+        String body = "{\"owner\":" + quote(owner) + ",\"deviceId\":" + quote(deviceId) +
+                      ",\"reply\":\"\",\"value\":" + value + ",\"time\":" + time + "}";
+        return post(context, "application/json", body.getBytes(StandardCharsets.UTF_8)).getStatus();
+    }
+
+    /**
+     * Posts a body to a context of the controller service.
+     */
+    public Response post(String context, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + context).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", contentType);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        long retryAfter = connection.getHeaderFieldLong("Retry-After", 0);
+        InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ?
+                         connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new Response(status, retryAfter);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Status of a push and, when the server asked for it, the number of seconds to wait before the next one.
+     */
+    public static class Response {
+        private final int status;
+        private final long retryAfter;
+
+        Response(int status, long retryAfter) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        public boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+    }
+}
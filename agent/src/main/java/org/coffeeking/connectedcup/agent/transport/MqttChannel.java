@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One MQTT connection of the agent. Publishing is asynchronous; the connection is re-established, and its
+ * subscriptions renewed, in the background whenever it is lost.
+ */
+public class MqttChannel implements MqttCallback {
+    private static final Log log = LogFactory.getLog(MqttChannel.class);
+
+    private static final int KEEP_ALIVE = 60;
+    private static final long RECONNECT_INTERVAL = 5000;
+    private static final long CONNECT_TIMEOUT = 30000;
+
+    /**
+     * Receives the messages of the subscriptions of a channel.
+     */
+    public interface MessageListener {
+        void messageArrived(String topic, String payload);
+    }
+
+    private final MqttAsyncClient client;
+    private final MqttConnectOptions options;
+    private final List<String> subscriptions = new ArrayList<>();
+    private volatile MessageListener messageListener;
+    private volatile boolean closed;
+
+    public MqttChannel(String brokerUrl, String clientId, String userName, String password) throws MqttException {
+        this.client = new MqttAsyncClient(brokerUrl, clientId, new MemoryPersistence());
+        this.options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setKeepAliveInterval(KEEP_ALIVE);
+        if (userName != null) {
+            options.setUserName(userName);
+            options.setPassword(password == null ? new char[0] : password.toCharArray());
+        }
+        client.setCallback(this);
+    }
+
+    /**
+     * Connects, retrying until the broker accepts the connection or the channel is closed.
+     */
+    public void connect() {
+        while (!closed && !client.isConnected()) {
+            try {
+                client.connect(options).waitForCompletion(CONNECT_TIMEOUT);
+                synchronized (subscriptions) {
+                    for (String topic : subscriptions) {
+                        client.subscribe(topic, 1);
+                    }
+                }
+                log.info("Connected to MQTT broker as " + client.getClientId());
+            } catch (MqttException e) {
+                log.warn("Unable to connect to MQTT broker as " + client.getClientId() + ", retrying in " +
+                         RECONNECT_INTERVAL + "ms");
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void subscribe(String topic, MessageListener listener) throws MqttException {
+        this.messageListener = listener;
+        synchronized (subscriptions) {
+            subscriptions.add(topic);
+        }
+        if (client.isConnected()) {
+            client.subscribe(topic, 1);
+        }
+    }
+
+    /**
+     * Publishes without waiting. The listener, if any, is told once the broker has the message (QoS 1 and 2) or
+     * once it has been written out (QoS 0).
+     *
+     * @throws MqttException if the message could not be handed to the client, e.g. while disconnected or when
+     *                       too many messages are in flight.
+     */
+    public void publish(String topic, String payload, int qos, Object context, IMqttActionListener listener)
+            throws MqttException {
+        MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+        message.setQos(qos);
+        message.setRetained(false);
+        client.publish(topic, message, context, listener);
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion(CONNECT_TIMEOUT);
+            }
+            client.close();
+        } catch (MqttException e) {
+            log.warn("Error while closing MQTT connection " + client.getClientId(), e);
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        log.warn("Lost connection to MQTT broker as " + client.getClientId() + ", reconnecting");
+        Thread reconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, "connectedcup-agent-mqtt-reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.messageArrived(topic, new String(message.getPayload(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // publishers are told through their action listener
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.agent.transport;
+
+import org.coffeeking.connectedcup.agent.spool.SpooledReading;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes readings of one device in the compact binary format the push endpoints accept as
+ * {@value org.coffeeking.connectedcup.agent.AgentConstants#TELEMETRY_CONTENT_TYPE}: a header with the owner,
+ * the device and a base time, then 11 bytes per reading holding the sensor, the milliseconds since the previous
+ * reading and the value.
+ */
+public class TelemetryEncoder {
+
+    private static final int VERSION = 1;
+    private static final int READING_BYTES = 11;
+    private static final long MAX_DELTA = 0xFFFFFFFFL;
+
+    private TelemetryEncoder() {
+    }
+
+    /**
+     * Time deltas are unsigned, so a payload can only carry readings in time order.
+     *
+     * @return how many of the first readings can go into one payload.
+     */
+    public static int getEncodableCount(List<SpooledReading> readings) {
+        for (int i = 1; i < readings.size(); i++) {
+            long delta = readings.get(i).getTime() - readings.get(i - 1).getTime();
+            if (delta < 0 || delta > MAX_DELTA) {
+                return i;
+            }
+        }
+        return readings.size();
+    }
+
+    /**
+     * Encodes the first {@code count} readings, which must be in time order.
+     */
+    public static byte[] encode(String owner, String deviceId, List<SpooledReading> readings, int count) {
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        byte[] deviceBytes = deviceId.getBytes(StandardCharsets.UTF_8);
+        if (ownerBytes.length > 0xFF || deviceBytes.length > 0xFF) {
+            throw new IllegalArgumentException("Owner and device id must not be longer than 255 bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + ownerBytes.length + 2 + 1 + deviceBytes.length + 8 +
+                                                count * READING_BYTES);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) ownerBytes.length).put(ownerBytes);
+        buffer.putShort((short) 1);
+        buffer.put((byte) deviceBytes.length).put(deviceBytes);
+        long time = count == 0 ? 0 : readings.get(0).getTime();
+        buffer.putLong(time);
+        for (int i = 0; i < count; i++) {
+            SpooledReading reading = readings.get(i);
+            buffer.putShort((short) 0);
+            buffer.put((byte) reading.getSensor());
+            buffer.putInt((int) (reading.getTime() - time));
+            buffer.putFloat(reading.getValue());
+            time = reading.getTime();
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.coffeeking.connectedcup.agent.spool;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Recovery, acknowledgement and dropping of the oldest readings of the spool, against a temporary directory.
+ */
+public class ReadingSpoolTest {
+
+    private static final int SEGMENT_RECORDS = 4;
+    private static final int SEGMENT_SIZE = SEGMENT_RECORDS * ReadingSpool.RECORD_BYTES;
+    private static final long BASE_TIME = 1453274400000L;
+
+    private File directory;
+    private ReadingSpool spool;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("connectedcup-spool").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecoversUnacknowledgedReadings() throws IOException {
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, 8);
+        append(0, 10);
+        spool.acknowledge(spool.peek(3, new ArrayList<SpooledReading>()), 3);
+        reopen(8);
+
+        assertEquals(spool.getPending(), 7L);
+        assertReadings(peek(100), 3, 10);
+        assertEquals(spool.getOldestTime(), BASE_TIME + 3);
+
+        // appending continues after the recovered readings
+        append(10, 12);
+        reopen(8);
+        assertReadings(peek(100), 3, 12);
+    }
+
+    @Test
+    public void testTornRecordIsNotRecovered() throws IOException {
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, 8);
+        append(0, 3);
+        spool.close();
+        spool = null;
+
+        // a crash before the state byte of the last record was written
+        File[] segments = getSegmentFiles();
+        assertEquals(segments.length, 1);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(2 * ReadingSpool.RECORD_BYTES);
+            file.write(0);
+        }
+
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, 8);
+        assertEquals(spool.getPending(), 2L);
+        assertReadings(peek(100), 0, 2);
+        append(2, 4);
+        assertReadings(peek(100), 0, 4);
+    }
+
+    @Test
+    public void testAcknowledgeDeletesSegments() throws IOException {
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, 8);
+        append(0, 10);
+        assertEquals(getSegmentFiles().length, 3);
+
+        List<SpooledReading> readings = new ArrayList<>();
+        long position = spool.peek(9, readings);
+        assertReadings(readings, 0, 9);
+        spool.acknowledge(position, 9);
+        assertEquals(spool.getPending(), 1L);
+        assertEquals(getSegmentFiles().length, 1);
+        assertReadings(peek(100), 9, 10);
+
+        // acknowledging the same readings again does nothing
+        spool.acknowledge(position, 9);
+        assertEquals(spool.getPending(), 1L);
+
+        position = spool.peek(100, readings);
+        spool.acknowledge(position, readings.size());
+        assertEquals(spool.getPending(), 0L);
+        assertEquals(spool.getOldestTime(), -1L);
+        reopen(8);
+        assertEquals(spool.getPending(), 0L);
+    }
+
+    @Test
+    public void testFullSpoolDropsOldest() throws IOException {
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, 2);
+        append(0, 3);
+        List<SpooledReading> readings = new ArrayList<>();
+        long position = spool.peek(3, readings);
+
+        // the third segment pushes out the first one, including the readings peeked above
+        append(3, 12);
+        assertEquals(spool.getDropped(), 4L);
+        assertEquals(spool.getPending(), 8L);
+        assertEquals(getSegmentFiles().length, 2);
+        assertReadings(peek(100), 4, 12);
+
+        // an acknowledgement of readings that were dropped meanwhile is not counted twice
+        spool.acknowledge(position, readings.size());
+        assertEquals(spool.getPending(), 8L);
+        assertReadings(peek(100), 4, 12);
+
+        reopen(2);
+        assertEquals(spool.getPending(), 8L);
+        assertReadings(peek(100), 4, 12);
+    }
+
+    private void reopen(int maxSegments) throws IOException {
+        spool.close();
+        spool = new ReadingSpool(directory, SEGMENT_SIZE, maxSegments);
+    }
+
+    /**
+     * Appends the readings numbered from until to, reading i being of sensor i % 2 with value i / 4 and a time of
+     * i milliseconds after the base time.
+     */
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            spool.append(i % 2, i / 4f, BASE_TIME + i);
+        }
+    }
+
+    private List<SpooledReading> peek(int max) {
+        List<SpooledReading> readings = new ArrayList<>();
+        spool.peek(max, readings);
+        return readings;
+    }
+
+    private static void assertReadings(List<SpooledReading> readings, int from, int to) {
+        assertEquals(readings.size(), to - from);
+        for (int i = from; i < to; i++) {
+            SpooledReading reading = readings.get(i - from);
+            assertEquals(reading.getSensor(), i % 2, "sensor of reading " + i);
+            assertEquals(reading.getValue(), i / 4f, "value of reading " + i);
+            assertEquals(reading.getTime(), BASE_TIME + i, "time of reading " + i);
+        }
+    }
+
+    private File[] getSegmentFiles() {
+        return directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".spool");
+            }
+        });
+    }
+}
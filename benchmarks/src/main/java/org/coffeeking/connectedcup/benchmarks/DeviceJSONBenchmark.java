@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.benchmarks;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.DeviceJSON;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding of a push_temperature / push_level request body to {@link DeviceJSON}, the way the JAX-RS JSON provider
+ * does it with a shared mapper.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceJSONBenchmark {
+
+    private static final byte[] READING = ("{\"owner\":\"admin\",\"deviceId\":\"1h3qpf8w4xk2a\"," +
+            "\"reply\":\"\",\"value\":23.5}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TIMED_READING = ("{\"owner\":\"admin\",\"deviceId\":\"1h3qpf8w4xk2a\"," +
+            "\"reply\":\"\",\"time\":1446000000000,\"key\":\"temperature\",\"value\":23.5}")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNKNOWN_FIELDS = ("{\"owner\":\"admin\",\"deviceId\":\"1h3qpf8w4xk2a\"," +
+            "\"reply\":\"\",\"firmware\":\"1.2.0\",\"battery\":87,\"value\":23.5}").getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Benchmark
+    public DeviceJSON reading() throws IOException {
+        return mapper.readValue(READING, DeviceJSON.class);
+    }
+
+    @Benchmark
+    public DeviceJSON timedReading() throws IOException {
+        return mapper.readValue(TIMED_READING, DeviceJSON.class);
+    }
+
+    @Benchmark
+    public DeviceJSON unknownFields() throws IOException {
+        return mapper.readValue(UNKNOWN_FIELDS, DeviceJSON.class);
+    }
+}
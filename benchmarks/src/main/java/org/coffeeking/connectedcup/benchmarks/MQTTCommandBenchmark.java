@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Topic and payload construction of a device command, the per-command work of
+ * {@code ConnectedCupMQTTConnector.publishDeviceData} ahead of the broker round trip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MQTTCommandBenchmark {
+
+    private String serverName = "iotserver";
+    private String owner = "admin";
+    private String deviceId = "1h3qpf8w4xk2a";
+    private String resource = "temperature";
+    private String state = "";
+
+    @Benchmark
+    public String topic() {
+        return ConnectedCupServiceUtils.getCommandTopic(serverName, owner, deviceId);
+    }
+
+    @Benchmark
+    public byte[] payload() {
+        return ConnectedCupServiceUtils.getCommandPayload(resource, state);
+    }
+
+    @Benchmark
+    public void command(Blackhole blackhole) {
+        blackhole.consume(ConnectedCupServiceUtils.getCommandTopic(serverName, owner, deviceId));
+        blackhole.consume(ConnectedCupServiceUtils.getCommandPayload(resource, state));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.device.mgt.analytics.service.DeviceAnalyticsService;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEventPublisher;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectedCupServiceUtils#publishToDAS(String, String, float, long)} from several request threads at once,
+ * with the publisher workers draining into a {@link DeviceAnalyticsService} stub that accepts every event. The
+ * score includes events dropped on a full queue; compare it with the DASEventPublisher MBean counters when the
+ * queue settings are changed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PublishToDASBenchmark {
+
+    private static final String OWNER = "admin";
+    private static final String DEVICE_ID = "1h3qpf8w4xk2a";
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DASEventPublisher.getInstance().setAnalyticsService(createStubService());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DASEventPublisher.shutdown();
+    }
+
+    @Benchmark
+    public boolean publishToDAS() {
+        return ConnectedCupServiceUtils.publishToDAS(OWNER, DEVICE_ID, 23.5f, System.currentTimeMillis());
+    }
+
+    private static DeviceAnalyticsService createStubService() {
+        return (DeviceAnalyticsService) Proxy.newProxyInstance(
+                DeviceAnalyticsService.class.getClassLoader(), new Class[]{DeviceAnalyticsService.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                    }
+                });
+    }
+}
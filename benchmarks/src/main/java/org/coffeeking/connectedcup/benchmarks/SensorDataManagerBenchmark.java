@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.coffeeking.connectedcup.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorDataManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latest-reading update every ingested reading makes, spread over a fleet of {@code devices} devices and
+ * done from several request threads at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SensorDataManagerBenchmark {
+
+    @Param({"100", "10000"})
+    public int devices;
+
+    private String[] deviceIds;
+    private SensorDataManager sensorDataManager;
+
+    @Setup
+    public void setUp() {
+        deviceIds = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = Long.toString(0x1000000000L + i * 7919L, Character.MAX_RADIX);
+        }
+        sensorDataManager = SensorDataManager.getInstance();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean setSensorRecord(Cursor cursor) {
+        int index = cursor.next;
+        cursor.next = index + 1 == deviceIds.length ? 0 : index + 1;
+        return sensorDataManager.setSensorRecord(deviceIds[index], ConnectedCupConstants.SENSOR_TEMPERATURE,
+                                                 "23.5", System.currentTimeMillis());
+    }
+}
@@ -2,16 +2,41 @@ package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.continuations.ContinuationProvider;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.wso2.carbon.apimgt.annotations.api.API;
 import org.wso2.carbon.apimgt.annotations.device.DeviceType;
 import org.wso2.carbon.apimgt.annotations.device.feature.Feature;
-import org.wso2.carbon.device.mgt.common.DeviceIdentifier;
+import org.wso2.carbon.device.mgt.common.Device;
 import org.wso2.carbon.device.mgt.common.DeviceManagementException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.auth.DeviceAuthorizationCache;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.FanOutRead;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.FanOutReadCoordinator;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingRead;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingReadRegistry;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.BatchReadJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.BatchReadRequestJSON;
 import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.DeviceJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.DeviceReadJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.IngestReportJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorHistoryJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorRollupJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history.SensorHistory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history.SensorHistoryStore;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.BinaryTelemetryDecoder;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.NdjsonTelemetryIngester;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.TelemetryProcessor;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit.RateLimiter;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupEngine;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupGranularity;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupWindow;
 import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport.ConnectedCupMQTTConnector;
-import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
-import org.wso2.carbon.device.mgt.iot.DeviceValidator;
+import org.wso2.carbon.device.mgt.iot.DeviceManagement;
 import org.wso2.carbon.device.mgt.iot.exception.DeviceControllerException;
 import org.wso2.carbon.device.mgt.iot.sensormgt.SensorDataManager;
 import org.wso2.carbon.device.mgt.iot.sensormgt.SensorRecord;
@@ -19,15 +44,25 @@ import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -52,6 +87,15 @@ public class ConnectedCupControllerService {
     private static final String SUPER_TENANT = "carbon.super";
     private ConnectedCupMQTTConnector connectedCupMQTTConnector;
 
+    public ConnectedCupMQTTConnector getConnectedCupMQTTConnector() {
+        return connectedCupMQTTConnector;
+    }
+
+    public void setConnectedCupMQTTConnector(final ConnectedCupMQTTConnector connectedCupMQTTConnector) {
+        this.connectedCupMQTTConnector = connectedCupMQTTConnector;
+        connectedCupMQTTConnector.connect();
+    }
+
     /**
      * @param owner
      * @param deviceId
@@ -67,84 +111,447 @@ public class ConnectedCupControllerService {
     public SensorRecord requestLevel(@HeaderParam("owner") String owner,
                                         @HeaderParam("deviceId") String deviceId,
                                         @Context HttpServletResponse response) {
-        SensorRecord sensorRecord = null;
-        DeviceValidator deviceValidator = new DeviceValidator();
-        try {
-            if (!deviceValidator.isExist(owner, SUPER_TENANT, new DeviceIdentifier(
-                    deviceId, ConnectedCupConstants.DEVICE_TYPE))) {
-                response.setStatus(Response.Status.UNAUTHORIZED.getStatusCode());
-            }
-        } catch (DeviceManagementException e) {
-            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
-        }
+        return readSensor(owner, deviceId, ConnectedCupConstants.SENSOR_LEVEL,
+                          ConnectedCupConstants.LEVEL_CONTEXT, response);
+    }
+
+    /**
+     * @param owner
+     * @param deviceId
+     * @param response
+     * @return
+     */
+    @Path("controller/readtemperature")
+    @GET
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Feature( code="readtemperature", name="Temperature", type="monitor",
+            description="Request Temperature reading from Connected Cup")
+    public SensorRecord requestTemperature(@HeaderParam("owner") String owner,
+                                           @HeaderParam("deviceId") String deviceId,
+                                           @Context HttpServletResponse response) {
+        return readSensor(owner, deviceId, ConnectedCupConstants.SENSOR_TEMPERATURE,
+                          ConnectedCupConstants.TEMPERATURE_CONTEXT, response);
+    }
 
+    /**
+     * Overrides the sampling policy of the device's agent over MQTT. The policy is {@code auto} to let the agent
+     * adapt within its configured bounds again, an interval in milliseconds to sample at a fixed rate, or
+     * {@code <min>-<max>} to adapt within other bounds.
+     *
+     * @param owner
+     * @param deviceId
+     * @param policy
+     * @param response
+     */
+    @Path("controller/sampling")
+    @POST
+    @Feature(code = "sampling", name = "Sampling", type = "operation",
+            description = "Set how often the Connected Cup samples its sensors")
+    public void setSamplingPolicy(@HeaderParam("owner") String owner,
+                                  @HeaderParam("deviceId") String deviceId,
+                                  @QueryParam("policy") String policy,
+                                  @Context HttpServletResponse response) {
+        if (!isValidSamplingPolicy(policy)) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return;
+        }
+        if (!isAuthorized(owner, deviceId, response)) {
+            return;
+        }
 
         if (log.isDebugEnabled()) {
-            log.debug("Sending request to read liquid level value of device [" + deviceId + "] via MQTT");
+            log.debug("Setting sampling policy of device [" + deviceId + "] to [" + policy + "] via MQTT");
         }
+        try {
+            connectedCupMQTTConnector.publishDeviceData(owner, deviceId,
+                                                        ConnectedCupConstants.SAMPLING_CONTEXT.replace("/", ""),
+                                                        policy.trim());
+        } catch (TransportHandlerException e) {
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+            return;
+        }
+        response.setStatus(Response.Status.OK.getStatusCode());
+    }
 
+    private static boolean isValidSamplingPolicy(String policy) {
+        if (policy == null) {
+            return false;
+        }
+        policy = policy.trim();
+        if (ConnectedCupConstants.SAMPLING_AUTO.equalsIgnoreCase(policy)) {
+            return true;
+        }
+        int separator = policy.indexOf('-');
         try {
-            String mqttResource = ConnectedCupConstants.LEVEL_CONTEXT.replace("/", "");
-            connectedCupMQTTConnector.publishDeviceData(owner, deviceId, mqttResource, "");
+            if (separator < 0) {
+                return Long.parseLong(policy) > 0;
+            }
+            long min = Long.parseLong(policy.substring(0, separator).trim());
+            long max = Long.parseLong(policy.substring(separator + 1).trim());
+            return min > 0 && max >= min;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
-            sensorRecord = SensorDataManager.getInstance().getSensorRecord(deviceId,
-                                                                           ConnectedCupConstants.SENSOR_LEVEL);
-        } catch ( DeviceControllerException | TransportHandlerException e ) {
-            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+    /**
+     * Returns recent readings of a sensor from the in-memory history, without going to DAS.
+     *
+     * @param owner
+     * @param deviceId
+     * @param sensor   temperature or level
+     * @param limit    maximum number of readings, counted back from the newest
+     * @param from     earliest reading time in milliseconds, inclusive
+     * @param to       latest reading time in milliseconds, inclusive
+     * @param response
+     * @return
+     */
+    @Path("controller/history")
+    @GET
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public SensorHistoryJSON getHistory(@HeaderParam("owner") String owner,
+                                        @HeaderParam("deviceId") String deviceId,
+                                        @QueryParam("sensor") String sensor,
+                                        @QueryParam("limit") @DefaultValue("100") int limit,
+                                        @QueryParam("from") @DefaultValue("0") long from,
+                                        @QueryParam("to") @DefaultValue("9223372036854775807") long to,
+                                        @Context HttpServletResponse response) {
+        if (!TelemetryProcessor.isSupportedSensor(sensor) || limit < 0 || from > to) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+        if (!isAuthorized(owner, deviceId, response)) {
+            return null;
         }
 
+        SensorHistoryJSON history = new SensorHistoryJSON();
+        history.deviceId = deviceId;
+        history.sensor = sensor;
+        SensorHistory sensorHistory = SensorHistoryStore.getInstance().getHistory(deviceId, sensor, from, to, limit);
+        if (sensorHistory != null) {
+            history.times = sensorHistory.getTimes();
+            history.values = sensorHistory.getValues();
+        } else {
+            history.times = new long[0];
+            history.values = new float[0];
+        }
         response.setStatus(Response.Status.OK.getStatusCode());
-        return sensorRecord;
+        return history;
     }
 
     /**
+     * Returns the closed per-minute, per-hour or per-day aggregates of a sensor.
+     *
      * @param owner
      * @param deviceId
+     * @param sensor      temperature or level
+     * @param granularity minute, hour or day
+     * @param limit       maximum number of windows, counted back from the most recent
      * @param response
      * @return
      */
-    @Path("controller/readtemperature")
+    @Path("controller/rollups")
     @GET
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    @Feature( code="readtemperature", name="Temperature", type="monitor",
-            description="Request Temperature reading from Connected Cup")
-    public SensorRecord requestTemperature(@HeaderParam("owner") String owner,
-                                           @HeaderParam("deviceId") String deviceId,
-                                           @Context HttpServletResponse response) {
-        SensorRecord sensorRecord = null;
+    public SensorRollupJSON getRollups(@HeaderParam("owner") String owner,
+                                       @HeaderParam("deviceId") String deviceId,
+                                       @QueryParam("sensor") String sensor,
+                                       @QueryParam("granularity") @DefaultValue("minute") String granularity,
+                                       @QueryParam("limit") @DefaultValue("60") int limit,
+                                       @Context HttpServletResponse response) {
+        RollupGranularity rollupGranularity = RollupGranularity.fromString(granularity);
+        if (!TelemetryProcessor.isSupportedSensor(sensor) || rollupGranularity == null || limit < 0) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+        if (!isAuthorized(owner, deviceId, response)) {
+            return null;
+        }
 
-        DeviceValidator deviceValidator = new DeviceValidator();
-        try {
-            if (!deviceValidator.isExist(owner, SUPER_TENANT,
-                                         new DeviceIdentifier(deviceId, ConnectedCupConstants.DEVICE_TYPE))) {
-                response.setStatus(Response.Status.UNAUTHORIZED.getStatusCode());
+        RollupWindow[] windows = RollupEngine.getInstance().getClosedWindows(deviceId, sensor, rollupGranularity,
+                                                                              limit);
+        if (windows == null) {
+            windows = new RollupWindow[0];
+        }
+        SensorRollupJSON rollups = new SensorRollupJSON();
+        rollups.deviceId = deviceId;
+        rollups.sensor = sensor;
+        rollups.granularity = rollupGranularity.name().toLowerCase();
+        rollups.windowStarts = new long[windows.length];
+        rollups.counts = new int[windows.length];
+        rollups.min = new float[windows.length];
+        rollups.max = new float[windows.length];
+        rollups.avg = new float[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            rollups.windowStarts[i] = windows[i].getWindowStart();
+            rollups.counts[i] = windows[i].getCount();
+            rollups.min[i] = windows[i].getMin();
+            rollups.max[i] = windows[i].getMax();
+            rollups.avg[i] = windows[i].getAverage();
+        }
+        response.setStatus(Response.Status.OK.getStatusCode());
+        return rollups;
+    }
+
+    /**
+     * Reads a sensor of many devices at once and answers with the reading of each device, or the reason there is
+     * none. Without device IDs every Connected Cup of the owner is read. Commands are sent a window at a time
+     * rather than all at once. Devices that have not replied when the fan-out times out are reported as timed
+     * out (or not sent, if their turn never came) and the response is marked partial.
+     *
+     * @param owner
+     * @param request  sensor (temperature or level) and, optionally, the device IDs to read
+     * @param response
+     * @return
+     */
+    @Path("controller/read_batch")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public BatchReadJSON readBatch(@HeaderParam("owner") String owner, final BatchReadRequestJSON request,
+                                   @Context HttpServletResponse response) {
+        Continuation continuation = getContinuation();
+        if (continuation != null) {
+            synchronized (continuation) {
+                if (!continuation.isNew()) {
+                    // resumed because every device answered, or timed out
+                    FanOutRead fanOutRead = (FanOutRead) continuation.getObject();
+                    fanOutRead.finish();
+                    return createBatchRead(fanOutRead, response);
+                }
             }
-        } catch (DeviceManagementException e) {
-            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+        }
+
+        if (owner == null || request == null || !TelemetryProcessor.isSupportedSensor(request.sensor)) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+        String[] deviceIds = getDeviceIds(owner, request.deviceIds, response);
+        if (deviceIds == null) {
+            return null;
+        }
+        FanOutReadCoordinator coordinator = FanOutReadCoordinator.getInstance();
+        if (deviceIds.length > coordinator.getMaxDevices()) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return null;
         }
 
         if (log.isDebugEnabled()) {
-            log.debug("Sending request to read connected cup temperature of device " +
-                      "[" + deviceId + "] via MQTT");
+            log.debug("Reading " + request.sensor + " of " + deviceIds.length + " devices of owner [" + owner + "]");
+        }
+        FanOutRead fanOutRead = coordinator.start(owner, request.sensor, getResource(request.sensor), deviceIds,
+                                                  connectedCupMQTTConnector);
+        if (continuation == null) {
+            try {
+                fanOutRead.await(coordinator.getTimeout());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            fanOutRead.finish();
+            return createBatchRead(fanOutRead, response);
         }
 
-        try {
+        synchronized (continuation) {
+            continuation.setObject(fanOutRead);
+            final Continuation suspended = continuation;
+            fanOutRead.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (suspended) {
+                        if (suspended.isPending()) {
+                            suspended.resume();
+                        }
+                    }
+                }
+            });
+            if (fanOutRead.isDone()) {
+                return createBatchRead(fanOutRead, response);
+            }
+            continuation.suspend(coordinator.getTimeout());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a read command for the sensor to the device and answers with the reading the device replies with.
+     *
+     * The request is suspended with a CXF continuation while the device replies, so no servlet thread is held
+     * by waiting callers. Concurrent callers for the same sensor of the same device share one outstanding
+     * command. If the device does not reply within the read timeout the caller gets a 504 (Gateway Timeout).
+     * Without continuation support the previous behaviour applies: the command is sent and the last known
+     * reading is returned straight away.
+     */
+    private SensorRecord readSensor(String owner, String deviceId, String sensor,
+                                    String resourceContext, HttpServletResponse response) {
+        Continuation continuation = getContinuation();
+        if (continuation == null) {
+            return readSensorSync(owner, deviceId, sensor, resourceContext, response);
+        }
+
+        synchronized (continuation) {
+            if (!continuation.isNew()) {
+                PendingRead pendingRead = (PendingRead) continuation.getObject();
+                if (pendingRead == null || !pendingRead.isDone() || pendingRead.isExpired()) {
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    return null;
+                }
+                response.setStatus(Response.Status.OK.getStatusCode());
+                return pendingRead.getSensorRecord();
+            }
+
+            if (!isAuthorized(owner, deviceId, response)) {
+                return null;
+            }
+
+            PendingReadRegistry pendingReadRegistry = PendingReadRegistry.getInstance();
+            PendingRead pendingRead = pendingReadRegistry.register(deviceId, sensor);
+            try {
+                connectedCupMQTTConnector.sendReadCommand(owner, deviceId, resourceContext.replace("/", ""),
+                                                          pendingRead);
+            } catch (TransportHandlerException e) {
+                response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+                return null;
+            }
+
+            continuation.setObject(pendingRead);
+            final Continuation suspended = continuation;
+            pendingRead.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (suspended) {
+                        if (suspended.isPending()) {
+                            suspended.resume();
+                        }
+                    }
+                }
+            });
+            if (pendingRead.isDone()) {
+                // the reply was already in before suspending, answer on this thread
+                if (pendingRead.isExpired()) {
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    return null;
+                }
+                response.setStatus(Response.Status.OK.getStatusCode());
+                return pendingRead.getSensorRecord();
+            }
+            continuation.suspend(pendingReadRegistry.getReadTimeout());
+            return null;
+        }
+    }
 
+    private SensorRecord readSensorSync(String owner, String deviceId, String sensor, String resourceContext,
+                                        HttpServletResponse response) {
+        if (!isAuthorized(owner, deviceId, response)) {
+            return null;
+        }
 
-            String mqttResource = ConnectedCupConstants.TEMPERATURE_CONTEXT.replace("/", "");
-            connectedCupMQTTConnector.publishDeviceData(owner, deviceId, mqttResource, "");
+        if (log.isDebugEnabled()) {
+            log.debug("Sending request to read " + sensor + " of device [" + deviceId + "] via MQTT");
+        }
 
-            sensorRecord = SensorDataManager.getInstance().getSensorRecord(deviceId,
-                                                                           ConnectedCupConstants.SENSOR_TEMPERATURE);
-        } catch ( DeviceControllerException | TransportHandlerException e) {
+        SensorRecord sensorRecord;
+        try {
+            connectedCupMQTTConnector.publishDeviceData(owner, deviceId, resourceContext.replace("/", ""), "");
+            sensorRecord = SensorDataManager.getInstance().getSensorRecord(deviceId, sensor);
+        } catch (DeviceControllerException | TransportHandlerException e) {
             response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+            return null;
         }
 
         response.setStatus(Response.Status.OK.getStatusCode());
         return sensorRecord;
     }
 
+    private boolean isAuthorized(String owner, String deviceId, HttpServletResponse response) {
+        try {
+            if (!DeviceAuthorizationCache.getInstance().isExist(owner, SUPER_TENANT, deviceId)) {
+                response.setStatus(Response.Status.UNAUTHORIZED.getStatusCode());
+                return false;
+            }
+        } catch (DeviceManagementException e) {
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the distinct device IDs of the request, or every Connected Cup of the owner if the request has none.
+     *         Null if the devices of the owner could not be listed.
+     */
+    private String[] getDeviceIds(String owner, List<String> requested, HttpServletResponse response) {
+        Set<String> deviceIds = new LinkedHashSet<>();
+        if (requested != null && !requested.isEmpty()) {
+            for (String deviceId : requested) {
+                if (deviceId != null) {
+                    deviceIds.add(deviceId);
+                }
+            }
+            return deviceIds.toArray(new String[deviceIds.size()]);
+        }
+
+        DeviceManagement deviceManagement = new DeviceManagement(SUPER_TENANT);
+        try {
+            List<Device> devices = deviceManagement.getDeviceManagementService().getDevicesOfUser(owner);
+            if (devices != null) {
+                for (Device device : devices) {
+                    if (ConnectedCupConstants.DEVICE_TYPE.equals(device.getType())) {
+                        deviceIds.add(device.getDeviceIdentifier());
+                    }
+                }
+            }
+        } catch (DeviceManagementException e) {
+            log.error("Failed to list the devices of owner [" + owner + "]", e);
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+            return null;
+        } finally {
+            deviceManagement.endTenantFlow();
+        }
+        return deviceIds.toArray(new String[deviceIds.size()]);
+    }
+
+    private static String getResource(String sensor) {
+        String resourceContext = ConnectedCupConstants.SENSOR_LEVEL.equals(sensor) ?
+                ConnectedCupConstants.LEVEL_CONTEXT : ConnectedCupConstants.TEMPERATURE_CONTEXT;
+        return resourceContext.replace("/", "");
+    }
+
+    private static BatchReadJSON createBatchRead(FanOutRead fanOutRead, HttpServletResponse response) {
+        String[] deviceIds = fanOutRead.getDeviceIds();
+        BatchReadJSON batchRead = new BatchReadJSON();
+        batchRead.sensor = fanOutRead.getSensor();
+        batchRead.requested = deviceIds.length;
+        batchRead.partial = fanOutRead.isPartial();
+        batchRead.readings = new ArrayList<>(deviceIds.length);
+        for (int i = 0; i < deviceIds.length; i++) {
+            DeviceReadJSON deviceRead = new DeviceReadJSON();
+            deviceRead.deviceId = deviceIds[i];
+            FanOutRead.Status status = fanOutRead.getStatus(i);
+            deviceRead.status = status.name().toLowerCase();
+            SensorRecord sensorRecord = fanOutRead.getSensorRecord(i);
+            if (sensorRecord != null) {
+                deviceRead.value = sensorRecord.getSensorValue();
+                deviceRead.time = sensorRecord.getTime();
+                batchRead.completed++;
+            }
+            batchRead.readings.add(deviceRead);
+        }
+        response.setStatus(Response.Status.OK.getStatusCode());
+        return batchRead;
+    }
+
+    private static Continuation getContinuation() {
+        Message message = PhaseInterceptorChain.getCurrentMessage();
+        if (message == null) {
+            return null;
+        }
+        ContinuationProvider provider = (ContinuationProvider) message.get(ContinuationProvider.class.getName());
+        return provider == null ? null : provider.getContinuation();
+    }
+
     /**
      * @param dataMsg
      * @param response
@@ -154,14 +561,13 @@ public class ConnectedCupControllerService {
     @Consumes(MediaType.APPLICATION_JSON)
     public void pushTemperatureData(final DeviceJSON dataMsg,
                                     @Context HttpServletResponse response) {
-        String deviceId = dataMsg.deviceId;
-        float temperature = dataMsg.value;
-
-        SensorDataManager.getInstance().setSensorRecord(deviceId, ConnectedCupConstants.SENSOR_TEMPERATURE,
-                                                        String.valueOf(temperature),
-                                                        Calendar.getInstance().getTimeInMillis());
-
-        if (!ConnectedCupServiceUtils.publishToDAS(dataMsg.owner, dataMsg.deviceId, dataMsg.value)) {
+        if (isRateLimited(dataMsg.owner, dataMsg.deviceId, 1, response)) {
+            return;
+        }
+        TelemetryProcessor telemetryProcessor = TelemetryProcessor.getInstance();
+        long time = telemetryProcessor.resolveTime(dataMsg.time, Calendar.getInstance().getTimeInMillis());
+        if (!telemetryProcessor.process(dataMsg.owner, dataMsg.deviceId, ConnectedCupConstants.SENSOR_TEMPERATURE,
+                                        dataMsg.value, time)) {
             response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
         }
 
@@ -176,19 +582,234 @@ public class ConnectedCupControllerService {
     @Consumes(MediaType.APPLICATION_JSON)
     public void pushLevelData(final DeviceJSON dataMsg,
                                     @Context HttpServletResponse response) {
-        String deviceId = dataMsg.deviceId;
-        float temperature = dataMsg.value;
+        if (isRateLimited(dataMsg.owner, dataMsg.deviceId, 1, response)) {
+            return;
+        }
+        TelemetryProcessor telemetryProcessor = TelemetryProcessor.getInstance();
+        long time = telemetryProcessor.resolveTime(dataMsg.time, Calendar.getInstance().getTimeInMillis());
+        if (!telemetryProcessor.process(dataMsg.owner, dataMsg.deviceId, ConnectedCupConstants.SENSOR_LEVEL,
+                                        dataMsg.value, time)) {
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+        }
+
+    }
+
+    /**
+     * Binary counterpart of push_temperature, see {@link BinaryTelemetryDecoder} for the format. Every reading in
+     * the payload must be a temperature reading.
+     *
+     * @param body
+     * @param response
+     */
+    @Path("controller/push_temperature")
+    @POST
+    @Consumes(BinaryTelemetryDecoder.CONTENT_TYPE)
+    public void pushBinaryTemperatureData(final InputStream body, @Context HttpServletResponse response) {
+        pushBinarySensorData(body, ConnectedCupConstants.SENSOR_TEMPERATURE, response);
+    }
+
+    /**
+     * Binary counterpart of push_level, see {@link BinaryTelemetryDecoder} for the format. Every reading in the
+     * payload must be a level reading.
+     *
+     * @param body
+     * @param response
+     */
+    @Path("controller/push_level")
+    @POST
+    @Consumes(BinaryTelemetryDecoder.CONTENT_TYPE)
+    public void pushBinaryLevelData(final InputStream body, @Context HttpServletResponse response) {
+        pushBinarySensorData(body, ConnectedCupConstants.SENSOR_LEVEL, response);
+    }
+
+    /**
+     * Pushes readings of any number of devices and sensors in one request. The batch is rejected as a whole
+     * if any reading is missing its device or names an unknown sensor.
+     *
+     * @param readings
+     * @param response
+     */
+    @Path("controller/push_batch")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public void pushBatchData(final List<SensorReadingJSON> readings,
+                              @Context HttpServletResponse response) {
+        if (readings == null || readings.isEmpty()) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return;
+        }
+
+        for (SensorReadingJSON reading : readings) {
+            if (reading == null || reading.deviceId == null || !TelemetryProcessor.isSupportedSensor(reading.sensor)) {
+                response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+                return;
+            }
+        }
+
+        if (isRateLimited(readings, response)) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Received a batch of " + readings.size() + " sensor readings");
+        }
+
+        int accepted = TelemetryProcessor.getInstance().processBatch(readings,
+                                                                     Calendar.getInstance().getTimeInMillis());
+        if (accepted < readings.size()) {
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+        }
+    }
+
+    /**
+     * Binary counterpart of push_batch, see {@link BinaryTelemetryDecoder} for the format.
+     *
+     * @param body
+     * @param response
+     */
+    @Path("controller/push_batch")
+    @POST
+    @Consumes(BinaryTelemetryDecoder.CONTENT_TYPE)
+    public void pushBinaryBatchData(final InputStream body, @Context HttpServletResponse response) {
+        List<SensorReadingJSON> readings = decodeBinary(body, response);
+        if (readings == null) {
+            return;
+        }
+
+        if (isRateLimited(readings, response)) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Received a binary batch of " + readings.size() + " sensor readings");
+        }
+
+        int accepted = TelemetryProcessor.getInstance().processBatch(readings,
+                                                                     Calendar.getInstance().getTimeInMillis());
+        if (accepted < readings.size()) {
+            response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+        }
+    }
+
+    /**
+     * Streamed counterpart of push_batch for large uploads, e.g. a gateway replaying hours of buffered readings.
+     * The body holds one reading per line, in the JSON form of push_batch, and is ingested in chunks while it is
+     * read. Lines that cannot be ingested are skipped and listed in the report with their line numbers. Ingest
+     * stops at the first chunk that is over the push rate limits, with status 429, a Retry-After header and the
+     * number of leading lines committed, after which the client resumes.
+     *
+     * @param body
+     * @param response
+     * @return
+     */
+    @Path("controller/push_batch")
+    @POST
+    @Consumes(NdjsonTelemetryIngester.CONTENT_TYPE)
+    @Produces(MediaType.APPLICATION_JSON)
+    public IngestReportJSON pushStreamedData(final InputStream body, @Context HttpServletResponse response) {
+        IngestReportJSON report;
+        try {
+            report = new NdjsonTelemetryIngester().ingest(body, Calendar.getInstance().getTimeInMillis());
+        } catch (IOException e) {
+            log.error("Failed to read streamed sensor readings", e);
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Received a stream of " + report.lines + " lines, " + report.accepted + " readings ingested, " +
+                      report.rejected + " lines rejected, " + report.committedLines + " lines committed");
+        }
+        if (!rejectIfLimited(report.retryAfter, response)) {
+            response.setStatus(Response.Status.OK.getStatusCode());
+        }
+        return report;
+    }
 
-        SensorDataManager.getInstance().setSensorRecord(deviceId, ConnectedCupConstants.SENSOR_LEVEL,
-                                                        String.valueOf(temperature),
-                                                        Calendar.getInstance().getTimeInMillis());
+    /**
+     * Handles a binary push to a single-sensor endpoint the way the JSON push does, including the choice between
+     * the device's time and the receive time.
+     */
+    private void pushBinarySensorData(InputStream body, String sensor, HttpServletResponse response) {
+        List<SensorReadingJSON> readings = decodeBinary(body, response);
+        if (readings == null) {
+            return;
+        }
+        TelemetryProcessor telemetryProcessor = TelemetryProcessor.getInstance();
+        long receiveTime = Calendar.getInstance().getTimeInMillis();
+        for (SensorReadingJSON reading : readings) {
+            if (!sensor.equals(reading.sensor)) {
+                response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+                return;
+            }
+            reading.time = telemetryProcessor.resolveTime(reading.time, receiveTime);
+        }
+        if (isRateLimited(readings, response)) {
+            return;
+        }
 
-        if (!ConnectedCupServiceUtils.publishToDAS(dataMsg.owner, dataMsg.deviceId, dataMsg.value)) {
+        int accepted = telemetryProcessor.processBatch(readings, receiveTime);
+        if (accepted < readings.size()) {
             response.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
         }
+    }
+
+    /**
+     * Applies the push rate limits to a single device and answers 429 (Too Many Requests) with a Retry-After
+     * header if they are exceeded.
+     */
+    private static boolean isRateLimited(String owner, String deviceId, int readings, HttpServletResponse response) {
+        return rejectIfLimited(RateLimiter.getInstance().acquire(owner, deviceId, readings), response);
+    }
+
+    /**
+     * Applies the push rate limits to every device and owner of a batch.
+     */
+    private static boolean isRateLimited(List<SensorReadingJSON> readings, HttpServletResponse response) {
+        Map<String, Integer> devicePermits = new HashMap<>();
+        Map<String, Integer> ownerPermits = new HashMap<>();
+        for (SensorReadingJSON reading : readings) {
+            addPermit(devicePermits, reading.deviceId);
+            if (reading.owner != null) {
+                addPermit(ownerPermits, reading.owner);
+            }
+        }
+        return rejectIfLimited(RateLimiter.getInstance().acquire(devicePermits, ownerPermits), response);
+    }
 
+    private static void addPermit(Map<String, Integer> permits, String key) {
+        Integer count = permits.get(key);
+        permits.put(key, count == null ? 1 : count + 1);
     }
 
+    private static boolean rejectIfLimited(long retryAfter, HttpServletResponse response) {
+        if (retryAfter == 0) {
+            return false;
+        }
+        response.setStatus(RateLimiter.STATUS_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        return true;
+    }
 
+    /**
+     * @return the readings of a binary payload, or null if it is empty or malformed.
+     */
+    private static List<SensorReadingJSON> decodeBinary(InputStream body, HttpServletResponse response) {
+        List<SensorReadingJSON> readings;
+        try {
+            readings = BinaryTelemetryDecoder.decode(body);
+        } catch (ConnectedCupException | IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Rejected binary telemetry payload", e);
+            }
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+        if (readings.isEmpty()) {
+            response.setStatus(Response.Status.BAD_REQUEST.getStatusCode());
+            return null;
+        }
+        return readings;
+    }
 
 }
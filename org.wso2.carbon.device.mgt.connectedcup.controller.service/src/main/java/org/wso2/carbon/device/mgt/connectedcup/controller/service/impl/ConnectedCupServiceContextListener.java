@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEventPublisher;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.auth.DeviceAuthorizationCache;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.FanOutReadCoordinator;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingReadRegistry;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history.SensorHistoryStore;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.DeadBandFilter;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.MqttIngestPool;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.TelemetryProcessor;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupEngine;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream.ReadingStreamHub;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Releases the background resources of the controller service when the webapp is undeployed.
+ */
+public class ConnectedCupServiceContextListener implements ServletContextListener {
+    private static final Log log = LogFactory.getLog(ConnectedCupServiceContextListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        // background workers are started lazily on first use
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        if (log.isDebugEnabled()) {
+            log.debug("Stopping Connected Cup controller service background workers");
+        }
+        ReadingStreamHub.getInstance().shutdown();
+        FanOutReadCoordinator.getInstance().shutdown();
+        PendingReadRegistry.getInstance().shutdown();
+        DeviceAuthorizationCache.getInstance().shutdown();
+        MqttIngestPool.getInstance().shutdown();
+        TelemetryProcessor.getInstance().shutdown();
+        RollupEngine.getInstance().shutdown();
+        SensorHistoryStore.getInstance().shutdown();
+        DeadBandFilter.getInstance().shutdown();
+        DASEventPublisher.shutdown();
+        // the webapp has its own copy of the registry, its MBeans would otherwise outlive it
+        LatencyMetrics.getInstance().shutdown();
+    }
+}
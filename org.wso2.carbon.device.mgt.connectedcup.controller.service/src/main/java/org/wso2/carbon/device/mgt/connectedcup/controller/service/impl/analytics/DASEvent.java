@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics;
+
+/**
+ * A single event waiting in the {@link DASEventPublisher} queue.
+ */
+public class DASEvent {
+    private final String streamDefinition;
+    private final String streamVersion;
+    private final Object[] metaData;
+    private final Object[] payloadData;
+
+    public DASEvent(String streamDefinition, String streamVersion, Object[] metaData, Object[] payloadData) {
+        this.streamDefinition = streamDefinition;
+        this.streamVersion = streamVersion;
+        this.metaData = metaData;
+        this.payloadData = payloadData;
+    }
+
+    public String getStreamDefinition() {
+        return streamDefinition;
+    }
+
+    public String getStreamVersion() {
+        return streamVersion;
+    }
+
+    public Object[] getMetaData() {
+        return metaData;
+    }
+
+    public Object[] getPayloadData() {
+        return payloadData;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+import org.wso2.carbon.device.mgt.analytics.exception.DataPublisherConfigurationException;
+import org.wso2.carbon.device.mgt.analytics.service.DeviceAnalyticsService;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes events to DAS off the request thread.
+ *
+ * Events are put on a bounded in-memory queue and drained by a small pool of background workers. A worker
+ * sends a batch once it holds {@code das.batch.size} events or once {@code das.flush.interval} milliseconds have
+ * passed since the first event of the batch was taken. Each worker keeps one tenant flow open for its whole
+ * lifetime and the {@link DeviceAnalyticsService} handle is looked up once and shared, so neither is paid per
+ * event. When the queue is full new events are dropped and counted rather than blocking the caller. Once the
+ * publisher has been shut down it stays closed and drops every new event the same way.
+ */
+public class DASEventPublisher implements DASEventPublisherMXBean {
+    private static final Log log = LogFactory.getLog(DASEventPublisher.class);
+
+    private static final String SUPER_TENANT = "carbon.super";
+    private static final String MBEAN_TYPE = "DASEventPublisher";
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 200;
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final int DEFAULT_WORKER_COUNT = 1;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final LatencyHistogram FLUSH_LATENCY = LatencyMetrics.getInstance().getHistogram("das.flush");
+
+    private static volatile DASEventPublisher instance;
+    // guarded by the class lock, set for good by shutdown()
+    private static boolean shutDown;
+
+    private final BlockingQueue<DASEvent> queue;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long flushInterval;
+    private final Thread[] workers;
+    private volatile boolean running;
+    private volatile boolean accepting;
+    private volatile DeviceAnalyticsService analyticsService;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private volatile long recentFlushNanos;
+    private volatile int lastBatchSize;
+
+    private DASEventPublisher() {
+        this.queueCapacity = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.DAS_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+        this.batchSize = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.DAS_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.flushInterval = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.DAS_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        int workerCount = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.DAS_WORKER_COUNT, DEFAULT_WORKER_COUNT));
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workers = new Thread[workerCount];
+    }
+
+    public static DASEventPublisher getInstance() {
+        if (instance == null) {
+            synchronized (DASEventPublisher.class) {
+                if (instance == null) {
+                    DASEventPublisher publisher = new DASEventPublisher();
+                    if (!shutDown) {
+                        publisher.start();
+                    }
+                    instance = publisher;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the workers of the running publisher, if any, after the events already queued have been sent. Events
+     * published afterwards, e.g. by a request that was still running, are dropped instead of starting a new
+     * publisher that would never be stopped.
+     */
+    public static void shutdown() {
+        DASEventPublisher publisher;
+        synchronized (DASEventPublisher.class) {
+            publisher = instance;
+            shutDown = true;
+        }
+        if (publisher != null) {
+            publisher.stop();
+        }
+    }
+
+    /**
+     * Queues an event for publishing.
+     *
+     * @return false if the queue is full and the event was dropped.
+     */
+    public boolean publish(DASEvent event) {
+        if (!accepting) {
+            droppedCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("DAS event publisher is shut down, dropping event for stream " +
+                          event.getStreamDefinition());
+            }
+            return false;
+        }
+        if (queue.offer(event)) {
+            enqueuedCount.incrementAndGet();
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("DAS publish queue is full, dropping event for stream " + event.getStreamDefinition());
+        }
+        return false;
+    }
+
+    /**
+     * Queues a group of events in one pass.
+     *
+     * @return the number of events that were queued; the rest were dropped because the queue is full.
+     */
+    public int publish(List<DASEvent> events) {
+        if (!accepting) {
+            droppedCount.addAndGet(events.size());
+            if (log.isDebugEnabled()) {
+                log.debug("DAS event publisher is shut down, dropping " + events.size() + " events");
+            }
+            return 0;
+        }
+        int accepted = 0;
+        for (DASEvent event : events) {
+            if (!queue.offer(event)) {
+                break;
+            }
+            accepted++;
+        }
+        enqueuedCount.addAndGet(accepted);
+        int dropped = events.size() - accepted;
+        if (dropped > 0) {
+            droppedCount.addAndGet(dropped);
+            if (log.isDebugEnabled()) {
+                log.debug("DAS publish queue is full, dropping " + dropped + " of " + events.size() + " events");
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Uses the given service instead of looking it up from the OSGi registry, e.g. to publish into a stub
+     * outside of the server. It is dropped like a looked up one if publishing to it fails.
+     */
+    public void setAnalyticsService(DeviceAnalyticsService analyticsService) {
+        this.analyticsService = analyticsService;
+    }
+
+    private void start() {
+        running = true;
+        accepting = true;
+        for (int i = 0; i < workers.length; i++) {
+            Thread worker = new Thread(new Worker(), "connectedcup-das-publisher-" + i);
+            worker.setDaemon(true);
+            workers[i] = worker;
+            worker.start();
+        }
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    private void stop() {
+        accepting = false;
+        running = false;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!queue.isEmpty()) {
+            log.warn(queue.size() + " DAS events were not published before shutdown");
+        }
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private DeviceAnalyticsService getAnalyticsService(PrivilegedCarbonContext ctx) {
+        DeviceAnalyticsService service = analyticsService;
+        if (service == null) {
+            service = (DeviceAnalyticsService) ctx.getOSGiService(DeviceAnalyticsService.class, null);
+            analyticsService = service;
+        }
+        return service;
+    }
+
+    private void flush(List<DASEvent> batch) {
+        long startTime = System.nanoTime();
+        DeviceAnalyticsService service =
+                getAnalyticsService(PrivilegedCarbonContext.getThreadLocalCarbonContext());
+        if (service == null) {
+            log.error("DeviceAnalyticsService is not available, dropping " + batch.size() + " events");
+            failedCount.addAndGet(batch.size());
+        } else {
+            int failed = 0;
+            for (DASEvent event : batch) {
+                try {
+                    service.publishEvent(event.getStreamDefinition(), event.getStreamVersion(),
+                                         event.getMetaData(), new Object[0], event.getPayloadData());
+                } catch (DataPublisherConfigurationException e) {
+                    failed++;
+                    if (log.isDebugEnabled()) {
+                        log.debug("Failed to publish event to stream " + event.getStreamDefinition(), e);
+                    }
+                }
+            }
+            if (failed > 0) {
+                log.warn("Failed to publish " + failed + " of " + batch.size() + " events to DAS");
+                // the service may have been re-deployed, look it up again for the next batch
+                analyticsService = null;
+            }
+            failedCount.addAndGet(failed);
+            publishedCount.addAndGet(batch.size() - failed);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        FLUSH_LATENCY.record(elapsed);
+        batchCount.incrementAndGet();
+        lastBatchSize = batch.size();
+        lastFlushNanos = elapsed;
+        // moving average that follows a slowdown within a few batches but is not thrown by a single outlier
+        long recent = recentFlushNanos;
+        recentFlushNanos = recent == 0 ? elapsed : recent + (elapsed - recent) / 4;
+        totalFlushNanos.addAndGet(elapsed);
+        long max = maxFlushNanos.get();
+        while (elapsed > max && !maxFlushNanos.compareAndSet(max, elapsed)) {
+            max = maxFlushNanos.get();
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            List<DASEvent> batch = new ArrayList<>(batchSize);
+            PrivilegedCarbonContext.startTenantFlow();
+            try {
+                PrivilegedCarbonContext.getThreadLocalCarbonContext().setTenantDomain(SUPER_TENANT, true);
+                while (running || !queue.isEmpty()) {
+                    try {
+                        collect(batch);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                    if (!batch.isEmpty()) {
+                        try {
+                            flush(batch);
+                        } catch (RuntimeException e) {
+                            log.error("Unexpected error while publishing " + batch.size() + " events to DAS", e);
+                            failedCount.addAndGet(batch.size());
+                        }
+                        batch.clear();
+                    }
+                }
+            } finally {
+                PrivilegedCarbonContext.endTenantFlow();
+            }
+        }
+
+        /**
+         * Fills the batch until it reaches the batch size or the flush interval elapses after the first event.
+         */
+        private void collect(List<DASEvent> batch) throws InterruptedException {
+            DASEvent first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+            while (batch.size() < batchSize) {
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !running) {
+                    return;
+                }
+                DASEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            }
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public long getLastFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos);
+    }
+
+    @Override
+    public long getRecentFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(recentFlushNanos);
+    }
+
+    @Override
+    public long getMaxFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get());
+    }
+
+    @Override
+    public double getAverageFlushLatencyMillis() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : totalFlushNanos.get() / (batches * 1000000.0);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.auth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.common.DeviceIdentifier;
+import org.wso2.carbon.device.mgt.common.DeviceManagementException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+import org.wso2.carbon.device.mgt.iot.DeviceValidator;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the outcome of {@link DeviceValidator#isExist} so that the read path does not go to the
+ * device-management database for devices that have already been checked.
+ *
+ * Decisions are kept per (owner, tenant, deviceId). Allowed decisions live for {@code auth.cache.ttl}
+ * milliseconds and denied ones for the much shorter {@code auth.cache.negative.ttl}, so a device that is enrolled
+ * right after a denied read becomes readable quickly even if the enrolment notification is missed. Errors are
+ * never cached. The cache is split into segments by device id, each a small LRU map, and holds at most
+ * {@code auth.cache.size} devices. All decisions of a device are dropped when the plugin reports that its
+ * enrolment changed. Each segment counts its invalidations, and a decision looked up while its segment was
+ * invalidated is returned but not cached, as it may predate the change.
+ */
+public class DeviceAuthorizationCache implements DeviceAuthorizationCacheMXBean {
+    private static final Log log = LogFactory.getLog(DeviceAuthorizationCache.class);
+
+    private static final String MBEAN_TYPE = "DeviceAuthorizationCache";
+    private static final int SEGMENT_COUNT = 16;
+    private static final int DEFAULT_MAX_SIZE = 100000;
+    private static final long DEFAULT_POSITIVE_TTL = 300000;
+    private static final long DEFAULT_NEGATIVE_TTL = 10000;
+    private static final long SUBSCRIBE_RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final DeviceAuthorizationCache instance = new DeviceAuthorizationCache();
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final int maxSize;
+    private final long positiveTTLNanos;
+    private final long negativeTTLNanos;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private volatile boolean subscribed;
+    // nano time before which isExist does not try to subscribe again
+    private volatile long nextSubscribeAttempt;
+
+    private final NotificationListener enrolmentListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (ConnectedCupConstants.ENROLMENT_CHANGED_NOTIFICATION.equals(notification.getType()) &&
+                notification.getUserData() instanceof String) {
+                invalidate((String) notification.getUserData());
+            }
+        }
+    };
+
+    private DeviceAuthorizationCache() {
+        this.maxSize = Math.max(SEGMENT_COUNT, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.AUTH_CACHE_SIZE, DEFAULT_MAX_SIZE));
+        this.positiveTTLNanos = TimeUnit.MILLISECONDS.toNanos(ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.AUTH_CACHE_TTL, DEFAULT_POSITIVE_TTL));
+        this.negativeTTLNanos = TimeUnit.MILLISECONDS.toNanos(ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.AUTH_CACHE_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL));
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxSize / SEGMENT_COUNT);
+        }
+        long now = System.nanoTime();
+        this.nextSubscribeAttempt = now;
+        subscribe(now);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static DeviceAuthorizationCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Cached equivalent of {@link DeviceValidator#isExist(String, String, DeviceIdentifier)} for Connected Cup
+     * devices.
+     */
+    public boolean isExist(String owner, String tenantDomain, String deviceId) throws DeviceManagementException {
+        long now = System.nanoTime();
+        if (!subscribed && now - nextSubscribeAttempt >= 0) {
+            // the plugin may have been activated after this webapp, keep trying until its notifier shows up
+            subscribe(now);
+        }
+        String decisionKey = owner + "@" + tenantDomain;
+        Segment segment = getSegment(deviceId);
+        long generation = segment.getGeneration();
+        Boolean allowed = segment.getDecision(deviceId, decisionKey, now);
+        if (allowed != null) {
+            hitCount.incrementAndGet();
+            return allowed;
+        }
+
+        missCount.incrementAndGet();
+        boolean exists = new DeviceValidator().isExist(
+                owner, tenantDomain, new DeviceIdentifier(deviceId, ConnectedCupConstants.DEVICE_TYPE));
+        long ttl = exists ? positiveTTLNanos : negativeTTLNanos;
+        if (ttl > 0) {
+            segment.putDecision(deviceId, decisionKey, exists, now + ttl, generation);
+        }
+        return exists;
+    }
+
+    public void invalidate(String deviceId) {
+        if (deviceId == null) {
+            return;
+        }
+        getSegment(deviceId).removeDevice(deviceId);
+        invalidationCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Dropped cached authorization decisions of device [" + deviceId + "]");
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public void shutdown() {
+        if (subscribed) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().removeNotificationListener(
+                        new ObjectName(ConnectedCupConstants.ENROLMENT_NOTIFIER_MBEAN), enrolmentListener);
+            } catch (Exception e) {
+                log.warn("Unable to unsubscribe from Connected Cup enrolment notifications", e);
+            }
+            subscribed = false;
+        }
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private synchronized void subscribe(long now) {
+        if (subscribed || now - nextSubscribeAttempt < 0) {
+            return;
+        }
+        nextSubscribeAttempt = now + SUBSCRIBE_RETRY_INTERVAL_NANOS;
+        try {
+            ManagementFactory.getPlatformMBeanServer().addNotificationListener(
+                    new ObjectName(ConnectedCupConstants.ENROLMENT_NOTIFIER_MBEAN), enrolmentListener, null, null);
+            subscribed = true;
+            // anything cached before subscribing may have missed an enrolment change
+            clear();
+        } catch (InstanceNotFoundException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Connected Cup enrolment notifier is not registered yet");
+            }
+        } catch (MalformedObjectNameException e) {
+            log.error("Invalid enrolment notifier name " + ConnectedCupConstants.ENROLMENT_NOTIFIER_MBEAN, e);
+            subscribed = true;
+        }
+    }
+
+    private Segment getSegment(String deviceId) {
+        int hash = deviceId.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getPositiveTTL() {
+        return TimeUnit.NANOSECONDS.toMillis(positiveTTLNanos);
+    }
+
+    @Override
+    public long getNegativeTTL() {
+        return TimeUnit.NANOSECONDS.toMillis(negativeTTLNanos);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @Override
+    public boolean isSubscribedToEnrolmentChanges() {
+        return subscribed;
+    }
+
+    /**
+     * Decisions of a device, keyed by owner and tenant.
+     */
+    private static class DeviceDecisions {
+        private final Map<String, Decision> decisions = new HashMap<>(2);
+    }
+
+    private static class Decision {
+        private final boolean allowed;
+        private final long expiryTime;
+
+        private Decision(boolean allowed, long expiryTime) {
+            this.allowed = allowed;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * LRU map of devices, evicting the least recently used device once it holds more than its capacity.
+     */
+    private static class Segment extends LinkedHashMap<String, DeviceDecisions> {
+        private static final long serialVersionUID = 2469307226470123917L;
+        private final int capacity;
+        // bumped by every invalidation, written under the segment lock
+        private volatile long generation;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = Math.max(1, capacity);
+        }
+
+        private synchronized Boolean getDecision(String deviceId, String decisionKey, long now) {
+            DeviceDecisions deviceDecisions = super.get(deviceId);
+            if (deviceDecisions == null) {
+                return null;
+            }
+            Decision decision = deviceDecisions.decisions.get(decisionKey);
+            if (decision == null) {
+                return null;
+            }
+            if (now - decision.expiryTime >= 0) {
+                deviceDecisions.decisions.remove(decisionKey);
+                if (deviceDecisions.decisions.isEmpty()) {
+                    super.remove(deviceId);
+                }
+                return null;
+            }
+            return decision.allowed;
+        }
+
+        private long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Does nothing if the segment was invalidated since generation was read, so a decision looked up before
+         * an enrolment change is not cached after it.
+         */
+        private synchronized void putDecision(String deviceId, String decisionKey, boolean allowed, long expiryTime,
+                                              long generation) {
+            if (generation != this.generation) {
+                return;
+            }
+            DeviceDecisions deviceDecisions = super.get(deviceId);
+            if (deviceDecisions == null) {
+                deviceDecisions = new DeviceDecisions();
+                super.put(deviceId, deviceDecisions);
+            }
+            deviceDecisions.decisions.put(decisionKey, new Decision(allowed, expiryTime));
+        }
+
+        private synchronized void removeDevice(String deviceId) {
+            generation++;
+            super.remove(deviceId);
+        }
+
+        @Override
+        public synchronized void clear() {
+            generation++;
+            super.clear();
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeviceDecisions> eldest) {
+            return size() > capacity;
+        }
+    }
+}
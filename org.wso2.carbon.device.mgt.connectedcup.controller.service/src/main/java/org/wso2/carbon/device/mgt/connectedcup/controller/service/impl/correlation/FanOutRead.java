@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.common.DeviceManagementException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.auth.DeviceAuthorizationCache;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport.ConnectedCupMQTTConnector;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorRecord;
+import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads one sensor of many devices of an owner.
+ *
+ * At most {@code window} reads are outstanding at a time; each one that finishes frees a slot for the next device.
+ * Reads go through the {@link PendingReadRegistry}, so a device that is already being read by another caller
+ * is not sent a second command. Sending is done on the coordinator's executor, never on the thread that
+ * ingested a reply.
+ */
+public class FanOutRead {
+    private static final Log log = LogFactory.getLog(FanOutRead.class);
+
+    private static final String SUPER_TENANT = "carbon.super";
+
+    /**
+     * Outcome of the read of a single device.
+     */
+    public enum Status {
+        OK,
+        TIMEOUT,
+        UNAUTHORIZED,
+        ERROR,
+        NOT_SENT
+    }
+
+    private final String owner;
+    private final String sensor;
+    private final String resource;
+    private final String[] deviceIds;
+    private final Status[] statuses;
+    private final SensorRecord[] sensorRecords;
+    private final int window;
+    private final Executor executor;
+    private final ConnectedCupMQTTConnector connector;
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    private int next;
+    private int inFlight;
+    private int remaining;
+    private boolean pumping;
+    private boolean done;
+
+    FanOutRead(String owner, String sensor, String resource, String[] deviceIds, int window, Executor executor,
+               ConnectedCupMQTTConnector connector) {
+        this.owner = owner;
+        this.sensor = sensor;
+        this.resource = resource;
+        this.deviceIds = deviceIds;
+        this.statuses = new Status[deviceIds.length];
+        this.sensorRecords = new SensorRecord[deviceIds.length];
+        this.window = window;
+        this.executor = executor;
+        this.connector = connector;
+        this.remaining = deviceIds.length;
+        this.done = deviceIds.length == 0;
+    }
+
+    public String getSensor() {
+        return sensor;
+    }
+
+    public String[] getDeviceIds() {
+        return deviceIds;
+    }
+
+    /**
+     * @return the outcome of the read of the device at the index, or null while it is still outstanding.
+     */
+    public synchronized Status getStatus(int index) {
+        return statuses[index];
+    }
+
+    public synchronized SensorRecord getSensorRecord(int index) {
+        return sensorRecords[index];
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return true if some devices were given up on, either timed out or never sent a command.
+     */
+    public synchronized boolean isPartial() {
+        for (Status status : statuses) {
+            if (status == null || status == Status.TIMEOUT || status == Status.NOT_SENT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a callback to run once every device has been read or the fan-out has been finished early. Runs
+     * immediately, on the calling thread, if that has already happened.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Waits until every device has been read or the timeout elapses.
+     */
+    public synchronized void await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remainingTime = timeout;
+        while (!done && remainingTime > 0) {
+            wait(remainingTime);
+            remainingTime = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gives up on the devices that have not answered yet: reads already sent are marked as timed out and devices
+     * that were never sent a command as not sent. Readings that arrive afterwards are ignored by this fan-out.
+     */
+    public void finish() {
+        List<Runnable> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == null) {
+                    statuses[i] = i < next ? Status.TIMEOUT : Status.NOT_SENT;
+                }
+            }
+            toNotify = markDone();
+        }
+        notifyListeners(toNotify);
+    }
+
+    void start() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            pumping = true;
+        }
+        executor.execute(new Pump());
+    }
+
+    private void send(final int index) {
+        String deviceId = deviceIds[index];
+        try {
+            if (!DeviceAuthorizationCache.getInstance().isExist(owner, SUPER_TENANT, deviceId)) {
+                deviceFinished(index, Status.UNAUTHORIZED, null);
+                return;
+            }
+        } catch (DeviceManagementException e) {
+            log.error("Failed to authorize read of device [" + deviceId + "]", e);
+            deviceFinished(index, Status.ERROR, null);
+            return;
+        }
+
+        final PendingRead pendingRead = PendingReadRegistry.getInstance().register(deviceId, sensor);
+        try {
+            connector.sendReadCommand(owner, deviceId, resource, pendingRead);
+        } catch (TransportHandlerException e) {
+            deviceFinished(index, Status.ERROR, null);
+            return;
+        }
+        pendingRead.addListener(new Runnable() {
+            @Override
+            public void run() {
+                SensorRecord sensorRecord = pendingRead.getSensorRecord();
+                deviceFinished(index, sensorRecord != null ? Status.OK : Status.TIMEOUT, sensorRecord);
+            }
+        });
+    }
+
+    private void deviceFinished(int index, Status status, SensorRecord sensorRecord) {
+        List<Runnable> toNotify = null;
+        boolean schedulePump = false;
+        synchronized (this) {
+            if (done || statuses[index] != null) {
+                return;
+            }
+            statuses[index] = status;
+            sensorRecords[index] = sensorRecord;
+            inFlight--;
+            remaining--;
+            if (remaining == 0) {
+                toNotify = markDone();
+            } else if (!pumping && next < deviceIds.length) {
+                pumping = true;
+                schedulePump = true;
+            }
+        }
+        if (toNotify != null) {
+            notifyListeners(toNotify);
+        } else if (schedulePump) {
+            executor.execute(new Pump());
+        }
+    }
+
+    private List<Runnable> markDone() {
+        done = true;
+        notifyAll();
+        List<Runnable> toNotify = new ArrayList<>(listeners);
+        listeners.clear();
+        return toNotify;
+    }
+
+    private void notifyListeners(List<Runnable> toNotify) {
+        for (Runnable listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.error("Error while notifying the waiter of " + sensor + " fan-out read of owner [" + owner + "]", e);
+        }
+    }
+
+    /**
+     * Sends commands until the window is full or every device has been sent one.
+     */
+    private class Pump implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                int index;
+                synchronized (FanOutRead.this) {
+                    if (done || inFlight >= window || next >= deviceIds.length) {
+                        pumping = false;
+                        return;
+                    }
+                    index = next++;
+                    inFlight++;
+                }
+                try {
+                    send(index);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error while reading device [" + deviceIds[index] + "]", e);
+                    deviceFinished(index, Status.ERROR, null);
+                }
+            }
+        }
+    }
+}
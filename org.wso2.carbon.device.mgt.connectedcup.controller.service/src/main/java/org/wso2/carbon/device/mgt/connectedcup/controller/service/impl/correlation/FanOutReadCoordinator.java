@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport.ConnectedCupMQTTConnector;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts {@link FanOutRead}s and owns the small thread pool that sends their commands.
+ *
+ * The in-flight window ({@code fanout.window}) bounds how many reads of one fan-out are outstanding at once, so
+ * reading a whole floor of cups does not put hundreds of commands on the broker in one burst.
+ */
+public class FanOutReadCoordinator implements FanOutReadCoordinatorMXBean {
+
+    private static final String MBEAN_TYPE = "FanOutReadCoordinator";
+    private static final int DEFAULT_WINDOW = 50;
+    private static final int DEFAULT_MAX_DEVICES = 1000;
+    private static final long DEFAULT_TIMEOUT = 30000;
+    private static final int DEFAULT_THREADS = 2;
+
+    private static final FanOutReadCoordinator instance = new FanOutReadCoordinator();
+
+    private final int window;
+    private final int maxDevices;
+    private final long timeout;
+    private final ExecutorService executor;
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong requestedDeviceCount = new AtomicLong();
+    private final AtomicLong partialCount = new AtomicLong();
+
+    private FanOutReadCoordinator() {
+        this.window = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.FANOUT_WINDOW, DEFAULT_WINDOW));
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.FANOUT_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+        this.timeout = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.FANOUT_TIMEOUT, DEFAULT_TIMEOUT));
+        int threads = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.FANOUT_THREADS, DEFAULT_THREADS));
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-fanout-read-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static FanOutReadCoordinator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts reading the sensor of the devices. The caller waits on the returned fan-out for at most
+     * {@link #getTimeout()} milliseconds and then calls {@link FanOutRead#finish()} to collect partial results.
+     */
+    public FanOutRead start(String owner, String sensor, String resource, String[] deviceIds,
+                            ConnectedCupMQTTConnector connector) {
+        final FanOutRead fanOutRead = new FanOutRead(owner, sensor, resource, deviceIds, window, executor,
+                                                     connector);
+        activeCount.incrementAndGet();
+        startedCount.incrementAndGet();
+        requestedDeviceCount.addAndGet(deviceIds.length);
+        fanOutRead.addListener(new Runnable() {
+            @Override
+            public void run() {
+                activeCount.decrementAndGet();
+                if (fanOutRead.isPartial()) {
+                    partialCount.incrementAndGet();
+                }
+            }
+        });
+        fanOutRead.start();
+        return fanOutRead;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    @Override
+    public long getStartedCount() {
+        return startedCount.get();
+    }
+
+    @Override
+    public long getRequestedDeviceCount() {
+        return requestedDeviceCount.get();
+    }
+
+    @Override
+    public long getPartialCount() {
+        return partialCount.get();
+    }
+}
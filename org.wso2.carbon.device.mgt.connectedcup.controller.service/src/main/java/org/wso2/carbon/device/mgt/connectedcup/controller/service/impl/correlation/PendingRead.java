@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read command that has been sent to a device and is waiting for the device's reply. Every caller that
+ * asks for the same sensor of the same device while the command is outstanding shares this instance.
+ */
+public class PendingRead {
+    private static final Log log = LogFactory.getLog(PendingRead.class);
+
+    private final String deviceId;
+    private final String sensor;
+    private final List<Runnable> listeners = new ArrayList<>();
+    private SensorRecord sensorRecord;
+    private long commandTime = Long.MAX_VALUE;
+    private boolean done;
+    private boolean expired;
+    private boolean commandClaimed;
+
+    PendingRead(String deviceId, String sensor) {
+        this.deviceId = deviceId;
+        this.sensor = sensor;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getSensor() {
+        return sensor;
+    }
+
+    /**
+     * @return true for exactly one caller, the one responsible for sending the read command.
+     */
+    public synchronized boolean claimCommand() {
+        if (commandClaimed) {
+            return false;
+        }
+        commandClaimed = true;
+        commandTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * @return when the read command was sent, or {@link Long#MAX_VALUE} while it has not been.
+     */
+    public synchronized long getCommandTime() {
+        return commandTime;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return true if the read finished without a reply from the device.
+     */
+    public synchronized boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * @return the reading the device replied with, or null if the read has not completed or has expired.
+     */
+    public synchronized SensorRecord getSensorRecord() {
+        return sensorRecord;
+    }
+
+    /**
+     * Registers a callback to run once the read completes or expires. Runs immediately, on the calling
+     * thread, if that has already happened.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    boolean complete(SensorRecord sensorRecord) {
+        return finish(sensorRecord, false);
+    }
+
+    boolean expire() {
+        return finish(null, true);
+    }
+
+    private boolean finish(SensorRecord sensorRecord, boolean expired) {
+        List<Runnable> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.sensorRecord = sensorRecord;
+            this.expired = expired;
+            this.done = true;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toNotify) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private void notifyListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.error("Error while notifying the waiter of " + sensor + " read of device [" + deviceId + "]", e);
+        }
+    }
+}
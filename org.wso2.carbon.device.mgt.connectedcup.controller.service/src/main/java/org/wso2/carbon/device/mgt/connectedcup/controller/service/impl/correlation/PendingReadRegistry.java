@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorRecord;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Correlates read commands sent to devices with the readings the devices push back.
+ *
+ * A {@link PendingRead} is registered per (deviceId, sensor) before the command is sent and is completed by the
+ * first reading of that sensor taken after the command was sent; earlier readings that are still arriving, e.g.
+ * from a spool or a delayed batch, leave it waiting. Reads that get no reply within
+ * {@code read.timeout} milliseconds are expired so that waiters are released and the entry is dropped.
+ */
+public class PendingReadRegistry {
+
+    private static final long DEFAULT_READ_TIMEOUT = 5000;
+
+    private static final PendingReadRegistry instance = new PendingReadRegistry();
+
+    private final ConcurrentMap<String, PendingRead> pendingReads = new ConcurrentHashMap<>();
+    private final long readTimeout;
+    private final ScheduledExecutorService expiryScheduler;
+
+    private PendingReadRegistry() {
+        this.readTimeout = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
+        this.expiryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-pending-read-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static PendingReadRegistry getInstance() {
+        return instance;
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getPendingCount() {
+        return pendingReads.size();
+    }
+
+    /**
+     * Returns the outstanding read for the sensor of the device, creating one if there is none. Only the caller
+     * for which {@link PendingRead#claimCommand()} returns true sends the read command to the device.
+     */
+    public PendingRead register(String deviceId, String sensor) {
+        String key = getKey(deviceId, sensor);
+        PendingRead pendingRead = pendingReads.get(key);
+        if (pendingRead != null) {
+            return pendingRead;
+        }
+
+        final PendingRead newRead = new PendingRead(deviceId, sensor);
+        pendingRead = pendingReads.putIfAbsent(key, newRead);
+        if (pendingRead != null) {
+            return pendingRead;
+        }
+
+        expiryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(newRead);
+            }
+        }, readTimeout, TimeUnit.MILLISECONDS);
+        return newRead;
+    }
+
+    /**
+     * Completes the outstanding read, if any, for the sensor of the device with a reading that has just arrived,
+     * provided it was taken no earlier than the read command was sent.
+     */
+    public void complete(String deviceId, String sensor, SensorRecord sensorRecord) {
+        if (pendingReads.isEmpty()) {
+            return;
+        }
+        String key = getKey(deviceId, sensor);
+        PendingRead pendingRead = pendingReads.get(key);
+        if (pendingRead != null && sensorRecord.getTime() >= pendingRead.getCommandTime() &&
+            pendingReads.remove(key, pendingRead)) {
+            pendingRead.complete(sensorRecord);
+        }
+    }
+
+    /**
+     * Releases the waiters of a read whose command could not be delivered.
+     */
+    public void expire(PendingRead pendingRead) {
+        pendingReads.remove(getKey(pendingRead.getDeviceId(), pendingRead.getSensor()), pendingRead);
+        pendingRead.expire();
+    }
+
+    public void shutdown() {
+        expiryScheduler.shutdownNow();
+        for (PendingRead pendingRead : pendingReads.values()) {
+            expire(pendingRead);
+        }
+    }
+
+    private static String getKey(String deviceId, String sensor) {
+        return deviceId + ":" + sensor;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * Outcome of a streamed upload. Only the first errors are listed; errorsTruncated tells whether there were more.
+ *
+ * The first committedLines lines of the upload have been dealt with. When a chunk is over the push rate limits,
+ * ingest stops there: limited is the number of readings of that chunk, which were not ingested, and retryAfter the
+ * number of seconds to wait before sending the lines after the committed ones again.
+ */
+@XmlRootElement
+public class IngestReportJSON {
+    @XmlElement public long lines;
+    @XmlElement public long committedLines;
+    @XmlElement public long accepted;
+    @XmlElement public long rejected;
+    @XmlElement public long dropped;
+    @XmlElement public long limited;
+    @XmlElement public long retryAfter;
+    @XmlElement public List<LineErrorJSON> errors;
+    @XmlElement public boolean errorsTruncated;
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Closed rollup windows of one sensor of a device, oldest first. Entry i of every array describes the window
+ * starting at windowStarts[i].
+ */
+@XmlRootElement
+public class SensorRollupJSON {
+    @XmlElement public String deviceId;
+    @XmlElement public String sensor;
+    @XmlElement public String granularity;
+    @XmlElement public long[] windowStarts;
+    @XmlElement public int[] counts;
+    @XmlElement public float[] min;
+    @XmlElement public float[] max;
+    @XmlElement public float[] avg;
+}
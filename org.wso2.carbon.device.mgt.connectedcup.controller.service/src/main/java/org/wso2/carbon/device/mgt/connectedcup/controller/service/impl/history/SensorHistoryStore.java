@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.TelemetryProcessor;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory history of the latest readings of every device, so recent history can be served without going to
+ * DAS.
+ *
+ * Each device gets one {@link SensorRingBuffer} per sensor holding the last {@code history.capacity} readings as
+ * a long time and a float value, i.e. 12 bytes per reading. The number of devices tracked is capped at
+ * {@code history.max.devices}; readings of further devices are not recorded. Memory use is therefore bounded
+ * by roughly max.devices * sensors * capacity * 12 bytes plus a small per-device overhead, e.g. about 300MB for
+ * 100,000 cups with the default capacity of 120. A device that has not reported for {@code history.idle.timeout}
+ * milliseconds (default one hour) is dropped along with its history, so retired devices do not keep their slots.
+ */
+public class SensorHistoryStore implements SensorHistoryStoreMXBean {
+    private static final Log log = LogFactory.getLog(SensorHistoryStore.class);
+
+    private static final String MBEAN_TYPE = "SensorHistoryStore";
+    private static final int DEFAULT_CAPACITY = 120;
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 3600000;
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+    // map entry, device id string, buffer objects and array headers
+    private static final int DEVICE_OVERHEAD_BYTES = 256;
+    private static final int READING_BYTES = 12;
+
+    private static final SensorHistoryStore instance = new SensorHistoryStore();
+
+    private final ConcurrentMap<String, DeviceHistory> devices = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final int maxDevices;
+    private final long idleTimeout;
+    private final ScheduledExecutorService sweeper;
+    private final AtomicLong rejectedDeviceCount = new AtomicLong();
+    private final AtomicLong evictedDeviceCount = new AtomicLong();
+
+    private SensorHistoryStore() {
+        this.capacity = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.HISTORY_CAPACITY, DEFAULT_CAPACITY));
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.HISTORY_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+        this.idleTimeout = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.HISTORY_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+
+        long sweepInterval = Math.max(MIN_SWEEP_INTERVAL, idleTimeout / 4);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-history-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("Error while dropping the history of idle devices", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static SensorHistoryStore getInstance() {
+        return instance;
+    }
+
+    public void record(String deviceId, String sensor, float value, long time) {
+        int sensorIndex = TelemetryProcessor.getSensorIndex(sensor);
+        if (sensorIndex < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            DeviceHistory deviceHistory = devices.get(deviceId);
+            if (deviceHistory == null) {
+                deviceHistory = addDevice(deviceId);
+                if (deviceHistory == null) {
+                    return;
+                }
+            }
+            if (deviceHistory.touch(now)) {
+                deviceHistory.buffers[sensorIndex].add(time, value);
+                return;
+            }
+            // the device was dropped as idle in the meantime, start a new history
+        }
+    }
+
+    /**
+     * @return the readings of the sensor taken within [from, to], at most limit of them counting back from the
+     * newest, or null if nothing has been recorded for the device.
+     */
+    public SensorHistory getHistory(String deviceId, String sensor, long from, long to, int limit) {
+        int sensorIndex = TelemetryProcessor.getSensorIndex(sensor);
+        DeviceHistory deviceHistory = devices.get(deviceId);
+        if (sensorIndex < 0 || deviceHistory == null) {
+            return null;
+        }
+        return deviceHistory.buffers[sensorIndex].read(from, to, Math.max(0, limit));
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private DeviceHistory addDevice(String deviceId) {
+        if (devices.size() >= maxDevices) {
+            if (rejectedDeviceCount.getAndIncrement() == 0) {
+                log.warn("Sensor history is full with " + maxDevices + " devices, history of device [" + deviceId +
+                         "] and further devices will not be recorded");
+            }
+            return null;
+        }
+        DeviceHistory deviceHistory = new DeviceHistory(capacity);
+        DeviceHistory existing = devices.putIfAbsent(deviceId, deviceHistory);
+        return existing != null ? existing : deviceHistory;
+    }
+
+    private void sweep(long now) {
+        Iterator<DeviceHistory> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().evictIfIdle(now, idleTimeout)) {
+                iterator.remove();
+                evictedDeviceCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The sensor histories of one device and the time it last reported, on the server clock.
+     */
+    private static class DeviceHistory {
+        private final SensorRingBuffer[] buffers;
+        private long lastWrite;
+        private boolean evicted;
+
+        private DeviceHistory(int capacity) {
+            this.buffers = new SensorRingBuffer[TelemetryProcessor.SENSORS.length];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = new SensorRingBuffer(capacity);
+            }
+        }
+
+        /**
+         * @return false if the device has been dropped and must not be written to any more.
+         */
+        private synchronized boolean touch(long now) {
+            if (evicted) {
+                return false;
+            }
+            lastWrite = Math.max(lastWrite, now);
+            return true;
+        }
+
+        private synchronized boolean evictIfIdle(long now, long idleTimeout) {
+            if (now - lastWrite < idleTimeout) {
+                return false;
+            }
+            evicted = true;
+            return true;
+        }
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getRejectedDeviceCount() {
+        return rejectedDeviceCount.get();
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public long getEvictedDeviceCount() {
+        return evictedDeviceCount.get();
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        long deviceBytes = DEVICE_OVERHEAD_BYTES + (long) TelemetryProcessor.SENSORS.length * capacity * READING_BYTES;
+        return devices.size() * deviceBytes;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history;
+
+/**
+ * Fixed-capacity history of one sensor of one device, kept in primitive arrays. Once full, every new
+ * reading overwrites the oldest one.
+ */
+public class SensorRingBuffer {
+    private final long[] times;
+    private final float[] values;
+    private int next;
+    private int size;
+
+    public SensorRingBuffer(int capacity) {
+        this.times = new long[capacity];
+        this.values = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void add(long time, float value) {
+        times[next] = time;
+        values[next] = value;
+        next = next + 1 == times.length ? 0 : next + 1;
+        if (size < times.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Copies the most recent readings taken within [from, to], oldest first, into a new {@link SensorHistory}.
+     *
+     * @param limit maximum number of readings to return, counted back from the newest matching reading.
+     */
+    public synchronized SensorHistory read(long from, long to, int limit) {
+        int count = 0;
+        int capacity = times.length;
+        int matching = Math.min(limit, size);
+        long[] resultTimes = new long[matching];
+        float[] resultValues = new float[matching];
+        // walk from the newest reading backwards and fill the result from its end
+        for (int i = 0; i < size && count < matching; i++) {
+            int index = next - 1 - i;
+            if (index < 0) {
+                index += capacity;
+            }
+            long time = times[index];
+            if (time < from || time > to) {
+                continue;
+            }
+            count++;
+            resultTimes[matching - count] = time;
+            resultValues[matching - count] = values[index];
+        }
+        if (count < matching) {
+            long[] trimmedTimes = new long[count];
+            float[] trimmedValues = new float[count];
+            System.arraycopy(resultTimes, matching - count, trimmedTimes, 0, count);
+            System.arraycopy(resultValues, matching - count, trimmedValues, 0, count);
+            resultTimes = trimmedTimes;
+            resultValues = trimmedValues;
+        }
+        return new SensorHistory(resultTimes, resultValues);
+    }
+}
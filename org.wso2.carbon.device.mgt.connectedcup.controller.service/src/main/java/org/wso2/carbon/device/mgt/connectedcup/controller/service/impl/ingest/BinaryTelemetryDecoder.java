@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the compact binary telemetry format accepted by the push endpoints next to JSON.
+ *
+ * All numbers are big-endian. A payload is a header followed by fixed-width readings up to the end of the body:
+ * <pre>
+ *   header:  u8  version (1)
+ *            u8  owner length, owner (UTF-8)
+ *            u16 device count, then per device: u8 id length, device id (UTF-8)
+ *            i64 base time in milliseconds, 0 if the readings carry no time
+ *   reading: u16 index into the device table
+ *            u8  sensor, the position in {@link TelemetryProcessor#SENSORS}
+ *            u32 milliseconds since the previous reading (the base time for the first one)
+ *            f32 value
+ * </pre>
+ * The owner and device ids are turned into strings once per payload; readings are decoded straight from the
+ * stream into {@link SensorReadingJSON}s so they take exactly the same path as the JSON ones.
+ */
+public class BinaryTelemetryDecoder {
+
+    public static final String CONTENT_TYPE = "application/x-connectedcup-telemetry";
+
+    private static final int VERSION = 1;
+    private static final int READING_BYTES = 11;
+
+    private BinaryTelemetryDecoder() {
+    }
+
+    /**
+     * @throws ConnectedCupException if the payload is not valid.
+     * @throws IOException           if the payload could not be read.
+     */
+    public static List<SensorReadingJSON> decode(InputStream inputStream) throws ConnectedCupException, IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        int version = in.read();
+        if (version != VERSION) {
+            throw new ConnectedCupException("Unsupported telemetry payload version " + version);
+        }
+
+        String owner;
+        String[] deviceIds;
+        long time;
+        try {
+            owner = readString(in);
+            deviceIds = new String[in.readUnsignedShort()];
+            for (int i = 0; i < deviceIds.length; i++) {
+                deviceIds[i] = readString(in);
+            }
+            time = in.readLong();
+        } catch (EOFException e) {
+            throw new ConnectedCupException("Telemetry payload header is truncated", e);
+        }
+        boolean timed = time != 0;
+
+        List<SensorReadingJSON> readings = new ArrayList<>();
+        byte[] record = new byte[READING_BYTES];
+        int read;
+        while ((read = readRecord(in, record)) == READING_BYTES) {
+            int deviceIndex = ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+            int sensorIndex = record[2] & 0xFF;
+            if (deviceIndex >= deviceIds.length || sensorIndex >= TelemetryProcessor.SENSORS.length) {
+                throw new ConnectedCupException("Invalid device or sensor in reading " + readings.size());
+            }
+            time += getInt(record, 3) & 0xFFFFFFFFL;
+
+            SensorReadingJSON reading = new SensorReadingJSON();
+            reading.owner = owner;
+            reading.deviceId = deviceIds[deviceIndex];
+            reading.sensor = TelemetryProcessor.SENSORS[sensorIndex];
+            reading.time = timed ? time : null;
+            reading.value = Float.intBitsToFloat(getInt(record, 7));
+            readings.add(reading);
+        }
+        if (read != 0) {
+            throw new ConnectedCupException("Telemetry payload ends within reading " + readings.size());
+        }
+        return readings;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of bytes read, less than the record length only at the end of the stream.
+     */
+    private static int readRecord(InputStream in, byte[] record) throws IOException {
+        int total = 0;
+        while (total < record.length) {
+            int count = in.read(record, total, record.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+               ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which readings are worth forwarding to analytics.
+ *
+ * A reading is forwarded if it differs from the last forwarded reading of the same sensor of the device by more
+ * than the sensor's dead-band, or if nothing has been forwarded for the sensor's heartbeat interval. The dead-band
+ * is the larger of an absolute band ({@code filter.<sensor>.deadband.absolute}) and a band relative to the last
+ * forwarded value ({@code filter.<sensor>.deadband.relative}, e.g. 0.02 for 2%). With both at their default of 0
+ * only readings that repeat the last forwarded value are held back. The heartbeat interval
+ * ({@code filter.<sensor>.heartbeat}, default one minute) makes sure a steady device still shows up downstream;
+ * 0 disables filtering of the sensor. The last forwarded reading is kept for at most {@code filter.max.devices}
+ * devices; readings of further devices are always forwarded. A device that has sent nothing for the longest
+ * heartbeat interval is dropped, as its next reading would be forwarded anyway.
+ */
+public class DeadBandFilter implements DeadBandFilterMXBean {
+    private static final Log log = LogFactory.getLog(DeadBandFilter.class);
+
+    private static final String MBEAN_TYPE = "DeadBandFilter";
+    private static final long DEFAULT_HEARTBEAT = 60000;
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+
+    private static final DeadBandFilter instance = new DeadBandFilter();
+
+    private final float[] absoluteDeadBands;
+    private final float[] relativeDeadBands;
+    private final long[] heartbeatIntervals;
+    private final int maxDevices;
+    private final long idleTimeout;
+    private final ConcurrentMap<String, LastForwarded> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLongArray evaluatedCounts;
+    private final AtomicLongArray suppressedCounts;
+    private final AtomicLongArray heartbeatCounts;
+    private final AtomicLong untrackedDeviceCount = new AtomicLong();
+    private final AtomicLong evictedDeviceCount = new AtomicLong();
+
+    private DeadBandFilter() {
+        int sensorCount = TelemetryProcessor.SENSORS.length;
+        this.absoluteDeadBands = new float[sensorCount];
+        this.relativeDeadBands = new float[sensorCount];
+        this.heartbeatIntervals = new long[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            String prefix = ConnectedCupServiceConfig.FILTER_PREFIX + TelemetryProcessor.SENSORS[i];
+            absoluteDeadBands[i] = Math.max(0, ConnectedCupServiceConfig.getFloat(
+                    prefix + ConnectedCupServiceConfig.FILTER_DEADBAND_ABSOLUTE, 0));
+            relativeDeadBands[i] = Math.max(0, ConnectedCupServiceConfig.getFloat(
+                    prefix + ConnectedCupServiceConfig.FILTER_DEADBAND_RELATIVE, 0));
+            heartbeatIntervals[i] = Math.max(0, ConnectedCupServiceConfig.getLong(
+                    prefix + ConnectedCupServiceConfig.FILTER_HEARTBEAT, DEFAULT_HEARTBEAT));
+        }
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.FILTER_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+        long longestHeartbeat = 0;
+        for (long heartbeatInterval : heartbeatIntervals) {
+            longestHeartbeat = Math.max(longestHeartbeat, heartbeatInterval);
+        }
+        this.idleTimeout = longestHeartbeat;
+        this.evaluatedCounts = new AtomicLongArray(sensorCount);
+        this.suppressedCounts = new AtomicLongArray(sensorCount);
+        this.heartbeatCounts = new AtomicLongArray(sensorCount);
+
+        long sweepInterval = Math.max(MIN_SWEEP_INTERVAL, idleTimeout / 2);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-deadband-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("Error while dropping idle devices from the dead-band filter", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static DeadBandFilter getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return true if the reading should be forwarded to analytics, in which case it becomes the reference for the
+     * next readings of the sensor.
+     */
+    public boolean accept(String deviceId, String sensor, float value, long time) {
+        int sensorIndex = TelemetryProcessor.getSensorIndex(sensor);
+        if (sensorIndex < 0 || heartbeatIntervals[sensorIndex] == 0) {
+            return true;
+        }
+        evaluatedCounts.incrementAndGet(sensorIndex);
+
+        long now = System.currentTimeMillis();
+        while (true) {
+            LastForwarded lastForwarded = devices.get(deviceId);
+            if (lastForwarded == null) {
+                lastForwarded = addDevice(deviceId);
+                if (lastForwarded == null) {
+                    return true;
+                }
+            }
+
+            synchronized (lastForwarded) {
+                if (lastForwarded.evicted) {
+                    // the device was dropped as idle in the meantime, start over
+                    continue;
+                }
+                lastForwarded.lastSeen = Math.max(lastForwarded.lastSeen, now);
+                if (!lastForwarded.forwarded[sensorIndex]) {
+                    lastForwarded.set(sensorIndex, value, time);
+                    return true;
+                }
+                if (time - lastForwarded.times[sensorIndex] >= heartbeatIntervals[sensorIndex]) {
+                    lastForwarded.set(sensorIndex, value, time);
+                    heartbeatCounts.incrementAndGet(sensorIndex);
+                    return true;
+                }
+                float last = lastForwarded.values[sensorIndex];
+                float deadBand = Math.max(absoluteDeadBands[sensorIndex],
+                                          relativeDeadBands[sensorIndex] * Math.abs(last));
+                // written so that NaN readings are always forwarded
+                if (!(Math.abs(value - last) <= deadBand)) {
+                    lastForwarded.set(sensorIndex, value, time);
+                    return true;
+                }
+            }
+            suppressedCounts.incrementAndGet(sensorIndex);
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private LastForwarded addDevice(String deviceId) {
+        if (devices.size() >= maxDevices) {
+            if (untrackedDeviceCount.getAndIncrement() == 0) {
+                log.warn("Dead-band filter is tracking " + maxDevices + " devices, readings of device [" + deviceId +
+                         "] and further devices will not be filtered");
+            }
+            return null;
+        }
+        LastForwarded lastForwarded = new LastForwarded(TelemetryProcessor.SENSORS.length);
+        LastForwarded existing = devices.putIfAbsent(deviceId, lastForwarded);
+        return existing != null ? existing : lastForwarded;
+    }
+
+    private void sweep(long now) {
+        Iterator<LastForwarded> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            LastForwarded lastForwarded = iterator.next();
+            synchronized (lastForwarded) {
+                if (now - lastForwarded.lastSeen < idleTimeout) {
+                    continue;
+                }
+                lastForwarded.evicted = true;
+            }
+            iterator.remove();
+            evictedDeviceCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The last reading of each sensor of a device that was forwarded, and when the device was last seen on the
+     * server clock.
+     */
+    private static class LastForwarded {
+        private final float[] values;
+        private final long[] times;
+        private final boolean[] forwarded;
+        private long lastSeen;
+        private boolean evicted;
+
+        private LastForwarded(int sensorCount) {
+            this.values = new float[sensorCount];
+            this.times = new long[sensorCount];
+            this.forwarded = new boolean[sensorCount];
+        }
+
+        private void set(int sensorIndex, float value, long time) {
+            values[sensorIndex] = value;
+            times[sensorIndex] = time;
+            forwarded[sensorIndex] = true;
+        }
+    }
+
+    @Override
+    public String[] getSensors() {
+        return TelemetryProcessor.SENSORS.clone();
+    }
+
+    @Override
+    public float[] getAbsoluteDeadBands() {
+        return absoluteDeadBands.clone();
+    }
+
+    @Override
+    public float[] getRelativeDeadBands() {
+        return relativeDeadBands.clone();
+    }
+
+    @Override
+    public long[] getHeartbeatIntervals() {
+        return heartbeatIntervals.clone();
+    }
+
+    @Override
+    public long[] getEvaluatedCounts() {
+        return toArray(evaluatedCounts);
+    }
+
+    @Override
+    public long[] getSuppressedCounts() {
+        return toArray(suppressedCounts);
+    }
+
+    @Override
+    public long[] getHeartbeatCounts() {
+        return toArray(heartbeatCounts);
+    }
+
+    @Override
+    public double[] getSuppressionRates() {
+        double[] rates = new double[evaluatedCounts.length()];
+        for (int i = 0; i < rates.length; i++) {
+            long evaluated = evaluatedCounts.get(i);
+            rates[i] = evaluated == 0 ? 0 : (double) suppressedCounts.get(i) / evaluated;
+        }
+        return rates;
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    @Override
+    public long getUntrackedDeviceCount() {
+        return untrackedDeviceCount.get();
+    }
+
+    @Override
+    public long getEvictedDeviceCount() {
+        return evictedDeviceCount.get();
+    }
+
+    private static long[] toArray(AtomicLongArray counts) {
+        long[] values = new long[counts.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks when each device last sent a reading, to tell whether it is online. A device counts as offline once it
+ * has been silent for {@code presence.offline.after} milliseconds; a device that has not been seen since the
+ * service started is assumed to be online. Listeners are told when an offline device sends a reading again.
+ *
+ * At most {@code presence.max.devices} devices are tracked. When that is reached offline devices are forgotten,
+ * and if all of them are online new devices are not tracked until there is room again.
+ */
+public class DevicePresence {
+
+    private static final long DEFAULT_OFFLINE_AFTER = 10 * 60 * 1000;
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+    private static final long PRUNE_INTERVAL = 1000;
+
+    private static final DevicePresence instance = new DevicePresence();
+
+    /**
+     * Told when a device that was offline sends a reading again.
+     */
+    public interface Listener {
+        void deviceOnline(String deviceId);
+    }
+
+    private final ConcurrentMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final long offlineAfter;
+    private final int maxDevices;
+    private volatile long lastPruneTime;
+
+    private DevicePresence() {
+        this.offlineAfter = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.PRESENCE_OFFLINE_AFTER, DEFAULT_OFFLINE_AFTER));
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.PRESENCE_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+    }
+
+    public static DevicePresence getInstance() {
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records that a reading of the device has just been received.
+     */
+    public void seen(String deviceId) {
+        long now = System.currentTimeMillis();
+        if (lastSeen.size() >= maxDevices && !lastSeen.containsKey(deviceId)) {
+            prune(now);
+            if (lastSeen.size() >= maxDevices) {
+                return;
+            }
+        }
+        Long previous = lastSeen.put(deviceId, now);
+        if (previous != null && now - previous >= offlineAfter) {
+            for (Listener listener : listeners) {
+                listener.deviceOnline(deviceId);
+            }
+        }
+    }
+
+    public boolean isOffline(String deviceId) {
+        Long time = lastSeen.get(deviceId);
+        return time != null && System.currentTimeMillis() - time >= offlineAfter;
+    }
+
+    public long getOfflineAfter() {
+        return offlineAfter;
+    }
+
+    private void prune(long now) {
+        // a full map of online devices would otherwise be scanned on every reading of an untracked device
+        if (now - lastPruneTime < PRUNE_INTERVAL) {
+            return;
+        }
+        lastPruneTime = now;
+        for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+            if (now - entry.getValue() >= offlineAfter) {
+                lastSeen.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingests readings that arrived over MQTT on a striped pool of workers.
+ *
+ * Every worker has its own queue and a device is always handled by the same worker, chosen by the hash of its
+ * id, so the readings of a device are ingested in the order they arrived while different devices are spread
+ * over {@code ingest.mqtt.workers} threads. A worker takes whatever has queued up, up to {@value #MAX_BATCH}
+ * readings, and hands it to {@link TelemetryProcessor#processBatch} in one go, so bursts are published to
+ * analytics in batches. When a worker's queue is full the MQTT callback waits up to
+ * {@code ingest.mqtt.offer.timeout} milliseconds, which slows down delivery from the broker, before the reading
+ * is dropped.
+ */
+public class MqttIngestPool implements MqttIngestPoolMXBean {
+    private static final Log log = LogFactory.getLog(MqttIngestPool.class);
+
+    private static final String MBEAN_TYPE = "MqttIngestPool";
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final long DEFAULT_OFFER_TIMEOUT = 1000;
+    private static final int MAX_BATCH = 500;
+    private static final long POLL_INTERVAL = 1000;
+    private static final LatencyHistogram INGEST_BATCH_LATENCY =
+            LatencyMetrics.getInstance().getHistogram("mqtt.ingest_batch");
+
+    private static final MqttIngestPool instance = new MqttIngestPool();
+
+    private final Worker[] workers;
+    private final int queueCapacity;
+    private final long offerTimeout;
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private volatile boolean deliverLocally = true;
+    private volatile boolean stopped;
+
+    private MqttIngestPool() {
+        int workerCount = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_MQTT_WORKERS, Runtime.getRuntime().availableProcessors()));
+        this.queueCapacity = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_MQTT_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+        this.offerTimeout = Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.INGEST_MQTT_OFFER_TIMEOUT, DEFAULT_OFFER_TIMEOUT));
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(queueCapacity);
+            Thread thread = new Thread(workers[i], "connectedcup-mqtt-ingest-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static MqttIngestPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether readings are also handed to the reads and live streams waiting on this node. Turned off when they
+     * reach those through subscriptions of their own, see {@link TelemetryProcessor#deliver}.
+     */
+    public void setDeliverLocally(boolean deliverLocally) {
+        this.deliverLocally = deliverLocally;
+    }
+
+    /**
+     * Queues a reading on the worker of its device.
+     *
+     * @return false if the reading was dropped because the worker is too far behind or the pool is stopped.
+     */
+    public boolean submit(SensorReadingJSON reading) {
+        if (stopped) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        // spread the hash so that similar ids do not land on the same worker
+        int hash = reading.deviceId.hashCode();
+        hash ^= (hash >>> 16);
+        Worker worker = workers[(hash & Integer.MAX_VALUE) % workers.length];
+        boolean queued;
+        try {
+            queued = worker.queue.offer(reading) ||
+                     (offerTimeout > 0 && worker.queue.offer(reading, offerTimeout, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            droppedCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Dropped a reading of device [" + reading.deviceId + "], its ingest worker is full");
+            }
+            return false;
+        }
+        submittedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Ingests what is still queued and stops the workers.
+     */
+    public void shutdown() {
+        stopped = true;
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private void process(List<SensorReadingJSON> batch) {
+        long startTime = System.nanoTime();
+        try {
+            // readings carry their time, resolved when they arrived
+            int accepted = TelemetryProcessor.getInstance().processBatch(batch, deliverLocally);
+            processedCount.addAndGet(accepted);
+            failedCount.addAndGet(batch.size() - accepted);
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(batch.size());
+            log.error("Failed to ingest " + batch.size() + " readings received over MQTT", e);
+        } finally {
+            batchCount.incrementAndGet();
+            INGEST_BATCH_LATENCY.recordSince(startTime);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<SensorReadingJSON> queue;
+        private Thread thread;
+
+        Worker(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<SensorReadingJSON> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    SensorReadingJSON reading = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (reading == null) {
+                        if (stopped) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(reading);
+                } catch (InterruptedException e) {
+                    if (!stopped) {
+                        continue;
+                    }
+                    // stopping: ingest what is left and exit
+                    queue.drainTo(batch);
+                    if (!batch.isEmpty()) {
+                        process(batch);
+                    }
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1);
+                process(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Worker worker : workers) {
+            max = Math.max(max, worker.queue.size());
+        }
+        return max;
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+}
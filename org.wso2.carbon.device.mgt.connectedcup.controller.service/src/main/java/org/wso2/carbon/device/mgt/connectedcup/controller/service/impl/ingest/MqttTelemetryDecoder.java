@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a reading a device published over MQTT.
+ *
+ * The topic is {@code <server>/<owner>/connectedcup/<deviceId>/publisher} and the payload
+ * {@code <sensor>:<value>[:<time>]}, e.g. {@code temperature:61.5:1453274400000}, with the sensor named as in
+ * {@link TelemetryProcessor#SENSORS} and the time in milliseconds. Both are scanned in place: the topic by
+ * separator positions and the payload straight from the message bytes, so the only objects created are the
+ * owner and device id strings and the reading itself.
+ */
+public class MqttTelemetryDecoder {
+
+    public static final String PUBLISHER_TOPIC_SUFFIX = "publisher";
+
+    private static final char TOPIC_SEPARATOR = '/';
+    private static final byte FIELD_SEPARATOR = ':';
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final byte[][] SENSOR_NAMES = new byte[TelemetryProcessor.SENSORS.length][];
+    private static final double[] POWERS_OF_TEN = new double[MAX_MANTISSA_DIGITS + 1];
+
+    static {
+        for (int i = 0; i < SENSOR_NAMES.length; i++) {
+            SENSOR_NAMES[i] = TelemetryProcessor.SENSORS[i].getBytes(StandardCharsets.UTF_8);
+        }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private MqttTelemetryDecoder() {
+    }
+
+    /**
+     * @throws ConnectedCupException if the topic is not a Connected Cup publisher topic or the payload is not a
+     *                               reading.
+     */
+    public static SensorReadingJSON decode(String topic, byte[] payload) throws ConnectedCupException {
+        // <server>/<owner>/connectedcup/<deviceId>/publisher, none of the parts may contain a separator
+        int serverEnd = topic.indexOf(TOPIC_SEPARATOR);
+        int ownerEnd = serverEnd < 0 ? -1 : topic.indexOf(TOPIC_SEPARATOR, serverEnd + 1);
+        int typeEnd = ownerEnd < 0 ? -1 : topic.indexOf(TOPIC_SEPARATOR, ownerEnd + 1);
+        int deviceEnd = typeEnd < 0 ? -1 : topic.indexOf(TOPIC_SEPARATOR, typeEnd + 1);
+        if (deviceEnd < 0 || topic.indexOf(TOPIC_SEPARATOR, deviceEnd + 1) >= 0 ||
+            !isPart(topic, ownerEnd + 1, typeEnd, ConnectedCupConstants.DEVICE_TYPE) ||
+            !isPart(topic, deviceEnd + 1, topic.length(), PUBLISHER_TOPIC_SUFFIX) ||
+            serverEnd + 1 == ownerEnd || typeEnd + 1 == deviceEnd) {
+            throw new ConnectedCupException("Not a Connected Cup publisher topic [" + topic + "]");
+        }
+
+        int sensorEnd = indexOf(payload, FIELD_SEPARATOR, 0);
+        if (sensorEnd < 0) {
+            throw new ConnectedCupException("Reading has no value");
+        }
+        int sensorIndex = getSensorIndex(payload, sensorEnd);
+        if (sensorIndex < 0) {
+            throw new ConnectedCupException("Reading is of an unknown sensor");
+        }
+        int valueEnd = indexOf(payload, FIELD_SEPARATOR, sensorEnd + 1);
+        if (valueEnd < 0) {
+            valueEnd = payload.length;
+        }
+
+        SensorReadingJSON reading = new SensorReadingJSON();
+        reading.owner = topic.substring(serverEnd + 1, ownerEnd);
+        reading.deviceId = topic.substring(typeEnd + 1, deviceEnd);
+        reading.sensor = TelemetryProcessor.SENSORS[sensorIndex];
+        reading.value = parseFloat(payload, sensorEnd + 1, valueEnd);
+        reading.time = valueEnd < payload.length ? parseTime(payload, valueEnd + 1, payload.length) : null;
+        return reading;
+    }
+
+    private static boolean isPart(String topic, int from, int to, String part) {
+        return to - from == part.length() && topic.regionMatches(from, part, 0, part.length());
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getSensorIndex(byte[] payload, int length) {
+        for (int i = 0; i < SENSOR_NAMES.length; i++) {
+            byte[] name = SENSOR_NAMES[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && payload[j] == name[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses plain decimals such as {@code -12.25} directly; anything else, e.g. an exponent, is left to
+     * {@link Float#parseFloat}.
+     */
+    private static float parseFloat(byte[] bytes, int from, int to) throws ConnectedCupException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                if (digits == MAX_MANTISSA_DIGITS) {
+                    return parseFloatSlow(bytes, from, to);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseFloatSlow(bytes, from, to);
+            }
+        }
+        if (digits == 0) {
+            throw new ConnectedCupException("Reading has no value");
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return (float) (negative ? -value : value);
+    }
+
+    private static float parseFloatSlow(byte[] bytes, int from, int to) throws ConnectedCupException {
+        String value = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new ConnectedCupException("Invalid reading value [" + value + "]", e);
+        }
+    }
+
+    private static Long parseTime(byte[] bytes, int from, int to) throws ConnectedCupException {
+        if (from == to) {
+            return null;
+        }
+        if (to - from > MAX_MANTISSA_DIGITS) {
+            throw new ConnectedCupException("Invalid reading time");
+        }
+        long time = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                throw new ConnectedCupException("Invalid reading time");
+            }
+            time = time * 10 + (b - '0');
+        }
+        return time;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.IngestReportJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.LineErrorJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit.RateLimiter;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ingests newline-delimited JSON uploads, one {@link SensorReadingJSON} per line.
+ *
+ * The body is read as a stream and valid readings are handed to {@link TelemetryProcessor#processBatch} every
+ * {@code ingest.chunk.size} lines, so memory use does not depend on the size of the upload: one line buffer of at
+ * most {@code ingest.max.line.length} bytes, one chunk of readings and at most {@code ingest.max.errors} error
+ * entries. Malformed lines are reported by line number and skipped; they do not affect the other lines.
+ *
+ * Every chunk is charged against the push rate limits of its devices and owners like any other push, as a whole.
+ * If any device or owner of a chunk is over its limit, nothing of that chunk is ingested and the rest of the
+ * upload is not read: the report tells how many leading lines were committed, so that the client can send the
+ * remaining lines again once the limit allows.
+ */
+public class NdjsonTelemetryIngester {
+    private static final Log log = LogFactory.getLog(NdjsonTelemetryIngester.class);
+
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+    private static final int DEFAULT_MAX_ERRORS = 100;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int chunkSize;
+    private final int maxLineLength;
+    private final int maxErrors;
+
+    public NdjsonTelemetryIngester() {
+        this.chunkSize = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        this.maxLineLength = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_MAX_LINE_LENGTH, DEFAULT_MAX_LINE_LENGTH));
+        this.maxErrors = Math.max(0, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_MAX_ERRORS, DEFAULT_MAX_ERRORS));
+    }
+
+    /**
+     * Reads the upload to its end, or up to the first chunk that is over the rate limits. Readings without a time
+     * are stamped with the receive time.
+     *
+     * @throws IOException if the body could not be read; readings of the chunks before the failure are kept.
+     */
+    public IngestReportJSON ingest(InputStream in, long receiveTime) throws IOException {
+        IngestReportJSON report = new IngestReportJSON();
+        report.errors = new ArrayList<>();
+        List<SensorReadingJSON> chunk = new ArrayList<>(chunkSize);
+
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        byte[] line = new byte[Math.min(maxLineLength, READ_BUFFER_SIZE)];
+        int lineLength = 0;
+        boolean overflow = false;
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    handleLine(line, lineLength, overflow, report, chunk);
+                    if (chunk.size() >= chunkSize && !flush(chunk, receiveTime, report)) {
+                        return report;
+                    }
+                    lineLength = 0;
+                    overflow = false;
+                } else if (lineLength < maxLineLength) {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(maxLineLength, line.length * 2));
+                    }
+                    line[lineLength++] = b;
+                } else {
+                    overflow = true;
+                }
+            }
+        }
+        if (lineLength > 0 || overflow) {
+            // last line without a trailing newline
+            handleLine(line, lineLength, overflow, report, chunk);
+        }
+        flush(chunk, receiveTime, report);
+        return report;
+    }
+
+    private void handleLine(byte[] line, int length, boolean overflow, IngestReportJSON report,
+                            List<SensorReadingJSON> chunk) {
+        report.lines++;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (overflow) {
+            reject(report, "Line is longer than " + maxLineLength + " bytes");
+            return;
+        }
+        if (isBlank(line, length)) {
+            return;
+        }
+
+        SensorReadingJSON reading;
+        try {
+            reading = objectMapper.readValue(line, 0, length, SensorReadingJSON.class);
+        } catch (IOException e) {
+            reject(report, "Malformed JSON: " + e.getMessage());
+            return;
+        }
+        if (reading == null || reading.deviceId == null) {
+            reject(report, "Missing deviceId");
+        } else if (!TelemetryProcessor.isSupportedSensor(reading.sensor)) {
+            reject(report, "Unknown sensor [" + reading.sensor + "]");
+        } else {
+            chunk.add(reading);
+        }
+    }
+
+    private void reject(IngestReportJSON report, String error) {
+        report.rejected++;
+        if (report.errors.size() < maxErrors) {
+            LineErrorJSON lineError = new LineErrorJSON();
+            lineError.line = report.lines;
+            lineError.error = error;
+            report.errors.add(lineError);
+        } else {
+            report.errorsTruncated = true;
+        }
+    }
+
+    /**
+     * Ingests the chunk, and marks the lines read so far as committed.
+     *
+     * @return false if the chunk is over the rate limits and was not ingested.
+     */
+    private static boolean flush(List<SensorReadingJSON> chunk, long receiveTime, IngestReportJSON report) {
+        if (chunk.isEmpty()) {
+            report.committedLines = report.lines;
+            return true;
+        }
+        long retryAfter = acquirePermits(chunk);
+        if (retryAfter > 0) {
+            report.limited = chunk.size();
+            report.retryAfter = retryAfter;
+            return false;
+        }
+        int accepted = TelemetryProcessor.getInstance().processBatch(chunk, receiveTime);
+        report.accepted += chunk.size();
+        report.dropped += chunk.size() - accepted;
+        if (log.isDebugEnabled()) {
+            log.debug("Ingested a chunk of " + chunk.size() + " streamed readings");
+        }
+        chunk.clear();
+        report.committedLines = report.lines;
+        return true;
+    }
+
+    /**
+     * Takes the permits of all devices and owners of the chunk, or none of them.
+     *
+     * @return 0 if the chunk may be ingested, otherwise the number of seconds to wait before retrying.
+     */
+    private static long acquirePermits(List<SensorReadingJSON> chunk) {
+        Map<String, Integer> devicePermits = new HashMap<>();
+        Map<String, Integer> ownerPermits = new HashMap<>();
+        for (SensorReadingJSON reading : chunk) {
+            addPermit(devicePermits, reading.deviceId);
+            if (reading.owner != null) {
+                addPermit(ownerPermits, reading.owner);
+            }
+        }
+        return RateLimiter.getInstance().acquire(devicePermits, ownerPermits);
+    }
+
+    private static void addPermit(Map<String, Integer> permits, String key) {
+        Integer count = permits.get(key);
+        permits.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static boolean isBlank(byte[] line, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = line[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
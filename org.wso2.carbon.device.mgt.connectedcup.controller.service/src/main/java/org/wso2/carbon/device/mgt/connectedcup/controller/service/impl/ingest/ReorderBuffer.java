@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts the readings of each device back into device time order before they reach history, rollups and analytics.
+ *
+ * Readings wait in a small per-device buffer sorted by time. A reading is released once the device has sent a
+ * reading at least {@code ingest.reorder.window} milliseconds newer (the device's watermark has passed it), or
+ * once it has waited that long on the server clock, so a device that goes quiet does not hold its last readings
+ * back. A device buffer holds at most {@code ingest.reorder.capacity} readings; when it is full the oldest one is
+ * released early. Readings older than what was already released for the sensor cannot be put in order any more
+ * and are released straight away. At most {@code ingest.reorder.max.devices} devices are buffered; readings of
+ * further devices pass through unordered.
+ */
+public class ReorderBuffer implements ReorderBufferMXBean {
+    private static final Log log = LogFactory.getLog(ReorderBuffer.class);
+
+    private static final String MBEAN_TYPE = "ReorderBuffer";
+    static final long DEFAULT_WINDOW = 2000;
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+    private static final long MIN_SWEEP_INTERVAL = 100;
+    // an empty device buffer is dropped after this many windows without readings
+    private static final int IDLE_WINDOWS = 30;
+
+    /**
+     * Receives readings in time order.
+     */
+    interface Sink {
+
+        void release(String owner, String deviceId, String sensor, float value, long time);
+    }
+
+    private final Sink sink;
+    private final long window;
+    private final long windowNanos;
+    private final int capacity;
+    private final int maxDevices;
+    private final ConcurrentMap<String, DeviceBuffer> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong bufferedCount = new AtomicLong();
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicLong reorderedCount = new AtomicLong();
+    private final AtomicLong forcedReleaseCount = new AtomicLong();
+    private final AtomicLong lateCount = new AtomicLong();
+    private final AtomicLong unbufferedDeviceCount = new AtomicLong();
+
+    ReorderBuffer(Sink sink) {
+        this.sink = sink;
+        this.window = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.INGEST_REORDER_WINDOW, DEFAULT_WINDOW));
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+        this.capacity = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_REORDER_CAPACITY, DEFAULT_CAPACITY));
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.INGEST_REORDER_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+
+        long sweepInterval = Math.max(MIN_SWEEP_INTERVAL, window / 2);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-reorder-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.nanoTime());
+                } catch (RuntimeException e) {
+                    log.error("Error while releasing buffered readings", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public void add(String owner, String deviceId, int sensorIndex, float value, long time) {
+        while (true) {
+            DeviceBuffer buffer = devices.get(deviceId);
+            if (buffer == null) {
+                buffer = addDevice(deviceId);
+                if (buffer == null) {
+                    sink.release(owner, deviceId, TelemetryProcessor.SENSORS[sensorIndex], value, time);
+                    return;
+                }
+            }
+            if (buffer.add(owner, sensorIndex, value, time, System.nanoTime())) {
+                return;
+            }
+            // the buffer was dropped as idle in the meantime, start a new one
+        }
+    }
+
+    /**
+     * Releases every buffered reading and stops the sweeper.
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+        for (DeviceBuffer buffer : devices.values()) {
+            buffer.releaseAll();
+        }
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private DeviceBuffer addDevice(String deviceId) {
+        if (devices.size() >= maxDevices) {
+            if (unbufferedDeviceCount.getAndIncrement() == 0) {
+                log.warn("Reorder buffer is full with " + maxDevices + " devices, readings of device [" + deviceId +
+                         "] and further devices will not be reordered");
+            }
+            return null;
+        }
+        DeviceBuffer buffer = new DeviceBuffer(deviceId);
+        DeviceBuffer existing = devices.putIfAbsent(deviceId, buffer);
+        return existing != null ? existing : buffer;
+    }
+
+    private void sweep(long now) {
+        Iterator<Map.Entry<String, DeviceBuffer>> iterator = devices.entrySet().iterator();
+        while (iterator.hasNext()) {
+            DeviceBuffer buffer = iterator.next().getValue();
+            if (buffer.releaseAged(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The readings of one device that have not been released yet, sorted by time. Released under the lock of the
+     * buffer so that the sink sees the readings of a device in order.
+     */
+    private class DeviceBuffer {
+        private final String deviceId;
+        private final long[] times = new long[capacity];
+        private final long[] arrivals = new long[capacity];
+        private final float[] values = new float[capacity];
+        private final int[] sensors = new int[capacity];
+        private final String[] owners = new String[capacity];
+        private final long[] lastReleased = new long[TelemetryProcessor.SENSORS.length];
+        private int size;
+        private long watermark = Long.MIN_VALUE;
+        private long lastArrival;
+        private boolean dropped;
+
+        private DeviceBuffer(String deviceId) {
+            this.deviceId = deviceId;
+            for (int i = 0; i < lastReleased.length; i++) {
+                lastReleased[i] = Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * @return false if the buffer has been dropped and the reading was not taken.
+         */
+        private synchronized boolean add(String owner, int sensorIndex, float value, long time, long now) {
+            if (dropped) {
+                return false;
+            }
+            lastArrival = now;
+            if (time < lastReleased[sensorIndex]) {
+                lateCount.incrementAndGet();
+                release(owner, sensorIndex, value, time);
+                return true;
+            }
+            if (size == capacity) {
+                forcedReleaseCount.incrementAndGet();
+                releaseFirst();
+            }
+
+            // readings mostly arrive in order, so search for the slot from the newest end
+            int slot = size;
+            while (slot > 0 && times[slot - 1] > time) {
+                slot--;
+            }
+            if (slot < size) {
+                reorderedCount.incrementAndGet();
+                System.arraycopy(times, slot, times, slot + 1, size - slot);
+                System.arraycopy(arrivals, slot, arrivals, slot + 1, size - slot);
+                System.arraycopy(values, slot, values, slot + 1, size - slot);
+                System.arraycopy(sensors, slot, sensors, slot + 1, size - slot);
+                System.arraycopy(owners, slot, owners, slot + 1, size - slot);
+            }
+            times[slot] = time;
+            arrivals[slot] = now;
+            values[slot] = value;
+            sensors[slot] = sensorIndex;
+            owners[slot] = owner;
+            size++;
+            bufferedCount.incrementAndGet();
+
+            if (time > watermark) {
+                watermark = time;
+            }
+            while (size > 0 && times[0] <= watermark - window) {
+                releaseFirst();
+            }
+            return true;
+        }
+
+        /**
+         * Releases the readings that have waited a full window and reports whether the buffer has been idle long
+         * enough to be dropped.
+         */
+        private synchronized boolean releaseAged(long now) {
+            // a reading can only leave once every older reading has left
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (now - arrivals[i] >= windowNanos) {
+                    count = i + 1;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                releaseFirst();
+            }
+            dropped = size == 0 && now - lastArrival >= IDLE_WINDOWS * windowNanos;
+            return dropped;
+        }
+
+        private synchronized void releaseAll() {
+            while (size > 0) {
+                releaseFirst();
+            }
+        }
+
+        private void releaseFirst() {
+            String owner = owners[0];
+            int sensorIndex = sensors[0];
+            float value = values[0];
+            long time = times[0];
+            size--;
+            System.arraycopy(times, 1, times, 0, size);
+            System.arraycopy(arrivals, 1, arrivals, 0, size);
+            System.arraycopy(values, 1, values, 0, size);
+            System.arraycopy(sensors, 1, sensors, 0, size);
+            System.arraycopy(owners, 1, owners, 0, size);
+            owners[size] = null;
+            bufferedCount.decrementAndGet();
+            if (time > lastReleased[sensorIndex]) {
+                lastReleased[sensorIndex] = time;
+            }
+            release(owner, sensorIndex, value, time);
+        }
+
+        private void release(String owner, int sensorIndex, float value, long time) {
+            releasedCount.incrementAndGet();
+            try {
+                sink.release(owner, deviceId, TelemetryProcessor.SENSORS[sensorIndex], value, time);
+            } catch (RuntimeException e) {
+                log.error("Error while releasing a reading of device [" + deviceId + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public long getWindow() {
+        return window;
+    }
+
+    @Override
+    public int getCapacityPerDevice() {
+        return capacity;
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    @Override
+    public long getBufferedCount() {
+        return bufferedCount.get();
+    }
+
+    @Override
+    public long getReleasedCount() {
+        return releasedCount.get();
+    }
+
+    @Override
+    public long getReorderedCount() {
+        return reorderedCount.get();
+    }
+
+    @Override
+    public long getForcedReleaseCount() {
+        return forcedReleaseCount.get();
+    }
+
+    @Override
+    public long getLateCount() {
+        return lateCount.get();
+    }
+
+    @Override
+    public long getUnbufferedDeviceCount() {
+        return unbufferedDeviceCount.get();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEvent;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingReadRegistry;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.history.SensorHistoryStore;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupEngine;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream.ReadingStreamHub;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+import org.wso2.carbon.device.mgt.iot.exception.DeviceControllerException;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorDataManager;
+import org.wso2.carbon.device.mgt.iot.sensormgt.SensorRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single ingest path for sensor readings, used by every push endpoint so they all behave the same.
+ *
+ * A reading first marks its device as seen in {@link DevicePresence}, updates the latest value held by
+ * {@link SensorDataManager} unless that holds a later one, completes any read that is waiting for it and is pushed
+ * to live stream subscribers.
+ * It then goes to the device's history and rollups and is forwarded to analytics unless the {@link DeadBandFilter}
+ * holds it back. Forwarding of raw readings can be turned off with {@code das.publish.raw} when rollups are
+ * published instead.
+ *
+ * By default readings are stamped with the time they are received. With {@code ingest.device.time} the time the
+ * device sent is used instead, unless it is ahead of the server clock by more than {@code ingest.max.clock.skew},
+ * and readings pass through a {@link ReorderBuffer} before history, rollups and analytics so that readings that
+ * arrive out of order still land in the right time slots.
+ */
+public class TelemetryProcessor {
+    private static final Log log = LogFactory.getLog(TelemetryProcessor.class);
+
+    public static final String[] SENSORS = {ConnectedCupConstants.SENSOR_TEMPERATURE,
+                                            ConnectedCupConstants.SENSOR_LEVEL};
+
+    private static final long DEFAULT_MAX_CLOCK_SKEW = 5 * 60 * 1000;
+    private static final int LATEST_LOCKS = 64;
+
+    private static final TelemetryProcessor instance = new TelemetryProcessor();
+
+    private final boolean publishRaw;
+    private final boolean useDeviceTime;
+    private final long maxClockSkew;
+    private final long reorderWindow;
+    private final ReorderBuffer reorderBuffer;
+    // striped by device, so that the latest value held by SensorDataManager is compared and set in one step
+    private final Object[] latestLocks = new Object[LATEST_LOCKS];
+
+    private TelemetryProcessor() {
+        this.publishRaw = ConnectedCupServiceConfig.getBoolean(ConnectedCupServiceConfig.DAS_PUBLISH_RAW, true);
+        this.useDeviceTime = ConnectedCupServiceConfig.getBoolean(ConnectedCupServiceConfig.INGEST_DEVICE_TIME, false);
+        this.maxClockSkew = Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.INGEST_MAX_CLOCK_SKEW, DEFAULT_MAX_CLOCK_SKEW));
+        this.reorderWindow = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.INGEST_REORDER_WINDOW, ReorderBuffer.DEFAULT_WINDOW));
+        this.reorderBuffer = useDeviceTime ? new ReorderBuffer(new ReorderBuffer.Sink() {
+            @Override
+            public void release(String owner, String deviceId, String sensor, float value, long time) {
+                commit(owner, deviceId, sensor, value, time);
+            }
+        }) : null;
+        for (int i = 0; i < LATEST_LOCKS; i++) {
+            latestLocks[i] = new Object();
+        }
+    }
+
+    public static TelemetryProcessor getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return how far behind the newest reading of its device a reading can still reach history, rollups and
+     * analytics: it may be held in the reorder buffer, and with device times its time may be off by the allowed
+     * skew. Readings stamped with the receive time arrive in order give or take the ingest queues, which the
+     * reorder window covers as well.
+     */
+    public long getMaxLateness() {
+        return reorderWindow + (useDeviceTime ? maxClockSkew : 0);
+    }
+
+    public static boolean isSupportedSensor(String sensor) {
+        return getSensorIndex(sensor) >= 0;
+    }
+
+    /**
+     * @return the position of the sensor in {@link #SENSORS}, or -1 if it is not a Connected Cup sensor.
+     */
+    public static int getSensorIndex(String sensor) {
+        for (int i = 0; i < SENSORS.length; i++) {
+            if (SENSORS[i].equals(sensor)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the time to stamp a reading with: the time sent by the device when device time is in use and the
+     * device sent one that is not too far ahead of the receive time, otherwise the receive time.
+     */
+    public long resolveTime(Long deviceTime, long receiveTime) {
+        if (!useDeviceTime) {
+            return receiveTime;
+        }
+        return checkClockSkew(deviceTime, receiveTime);
+    }
+
+    /**
+     * @return the time sent by the device, or the receive time if there is none or it is too far ahead.
+     */
+    private long checkClockSkew(Long deviceTime, long receiveTime) {
+        if (deviceTime == null) {
+            return receiveTime;
+        }
+        if (deviceTime - receiveTime > maxClockSkew) {
+            if (log.isDebugEnabled()) {
+                log.debug("Device time " + deviceTime + " is " + (deviceTime - receiveTime) + "ms ahead of the " +
+                          "server, using the receive time instead");
+            }
+            return receiveTime;
+        }
+        return deviceTime;
+    }
+
+    /**
+     * @return false if the reading could not be handed over to analytics.
+     */
+    public boolean process(String owner, String deviceId, String sensor, float value, long time) {
+        DevicePresence.getInstance().seen(deviceId);
+        deliver(owner, deviceId, sensor, value, time);
+        if (reorderBuffer != null) {
+            reorderBuffer.add(owner, deviceId, getSensorIndex(sensor), value, time);
+            return true;
+        }
+        return commit(owner, deviceId, sensor, value, time);
+    }
+
+    /**
+     * Hands a reading to what waits for it on this node only: the latest value held by {@link SensorDataManager},
+     * a read waiting for it and live stream subscribers. Nothing is recorded or forwarded to analytics, e.g. for
+     * a reading that another node of a shared subscription group ingests.
+     */
+    public void deliver(String owner, String deviceId, String sensor, float value, long time) {
+        String sensorValue = String.valueOf(value);
+        setLatest(SensorDataManager.getInstance(), deviceId, sensor, sensorValue, time);
+        PendingReadRegistry.getInstance().complete(deviceId, sensor, new SensorRecord(sensorValue, time));
+        ReadingStreamHub.getInstance().publish(owner, deviceId, sensor, value, time);
+    }
+
+    /**
+     * Processes a batch of readings and forwards all of them to analytics in one pass. The time of each reading
+     * is resolved as for single readings: the receive time, unless {@code ingest.device.time} is set, in which
+     * case readings that were held back on the device keep their time and are put back in order by the reorder
+     * buffer.
+     *
+     * @return the number of readings accepted by analytics or deliberately not forwarded to it.
+     */
+    public int processBatch(List<SensorReadingJSON> readings, long receiveTime) {
+        for (SensorReadingJSON reading : readings) {
+            reading.time = resolveTime(reading.time, receiveTime);
+        }
+        return processBatch(readings, true);
+    }
+
+    /**
+     * Processes a batch of readings whose time has been resolved by {@link #resolveTime} already.
+     *
+     * @param deliverLocally false to leave out waiting reads and live streams, for readings that reach them
+     *                       through {@link #deliver} already.
+     */
+    public int processBatch(List<SensorReadingJSON> readings, boolean deliverLocally) {
+        SensorDataManager sensorDataManager = SensorDataManager.getInstance();
+        SensorHistoryStore sensorHistoryStore = SensorHistoryStore.getInstance();
+        RollupEngine rollupEngine = RollupEngine.getInstance();
+        PendingReadRegistry pendingReadRegistry = PendingReadRegistry.getInstance();
+        ReadingStreamHub readingStreamHub = ReadingStreamHub.getInstance();
+        DeadBandFilter deadBandFilter = DeadBandFilter.getInstance();
+        DevicePresence devicePresence = DevicePresence.getInstance();
+        List<DASEvent> events = new ArrayList<>(readings.size());
+        for (SensorReadingJSON reading : readings) {
+            long time = reading.time;
+            String sensorValue = String.valueOf(reading.value);
+            devicePresence.seen(reading.deviceId);
+            setLatest(sensorDataManager, reading.deviceId, reading.sensor, sensorValue, time);
+            if (deliverLocally) {
+                pendingReadRegistry.complete(reading.deviceId, reading.sensor, new SensorRecord(sensorValue, time));
+                readingStreamHub.publish(reading.owner, reading.deviceId, reading.sensor, reading.value, time);
+            }
+            if (reorderBuffer != null) {
+                reorderBuffer.add(reading.owner, reading.deviceId, getSensorIndex(reading.sensor), reading.value,
+                                  time);
+                continue;
+            }
+            sensorHistoryStore.record(reading.deviceId, reading.sensor, reading.value, time);
+            rollupEngine.record(reading.owner, reading.deviceId, reading.sensor, reading.value, time);
+            if (publishRaw && deadBandFilter.accept(reading.deviceId, reading.sensor, reading.value, time)) {
+                events.add(ConnectedCupServiceUtils.createDASEvent(reading.owner, reading.deviceId, reading.value,
+                                                                   time));
+            }
+        }
+        int accepted = readings.size() - events.size();
+        if (!events.isEmpty()) {
+            accepted += ConnectedCupServiceUtils.publishToDAS(events);
+        }
+        return accepted;
+    }
+
+    /**
+     * Releases the readings held for reordering, e.g. when the service is stopped.
+     */
+    public void shutdown() {
+        if (reorderBuffer != null) {
+            reorderBuffer.shutdown();
+        }
+    }
+
+    /**
+     * Sets the latest value of the sensor, unless a later reading has been set already: readings of a device can
+     * arrive out of order, and a replayed or delayed one must not hide the current value.
+     */
+    private void setLatest(SensorDataManager sensorDataManager, String deviceId, String sensor, String sensorValue,
+                           long time) {
+        synchronized (latestLocks[(deviceId.hashCode() & Integer.MAX_VALUE) % LATEST_LOCKS]) {
+            try {
+                SensorRecord latest = sensorDataManager.getSensorRecord(deviceId, sensor);
+                if (latest != null && latest.getTime() > time) {
+                    return;
+                }
+            } catch (DeviceControllerException e) {
+                // no reading of the device yet
+            }
+            sensorDataManager.setSensorRecord(deviceId, sensor, sensorValue, time);
+        }
+    }
+
+    /**
+     * The time ordered part of ingest: history, rollups and analytics.
+     */
+    private boolean commit(String owner, String deviceId, String sensor, float value, long time) {
+        SensorHistoryStore.getInstance().record(deviceId, sensor, value, time);
+        RollupEngine.getInstance().record(owner, deviceId, sensor, value, time);
+        if (!publishRaw || !DeadBandFilter.getInstance().accept(deviceId, sensor, value, time)) {
+            return true;
+        }
+        return ConnectedCupServiceUtils.publishToDAS(owner, deviceId, value, time);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogramMXBean;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serves the latency histograms of {@link LatencyMetrics} in the Prometheus text exposition format, as a summary
+ * with the 0.5, 0.99 and 0.999 quantiles per operation plus the maximum and the one-minute rate as gauges.
+ *
+ * The histograms are read through their MBeans, as the registry of this webapp only holds its own: those of the
+ * plugin bundle, such as the {@code dao} ones, are in the bundle's copy of it.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final Log log = LogFactory.getLog(MetricsServlet.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+    private static final String LATENCY = "connectedcup_operation_latency_seconds";
+    private static final String LATENCY_MAX = "connectedcup_operation_latency_max_seconds";
+    private static final String RATE = "connectedcup_operation_rate";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Collection<Sample> samples = getSamples();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+
+        writeHeader(writer, LATENCY, "summary", "Latency of Connected Cup operations, quantiles over the last " +
+                "one to two minutes.");
+        for (Sample sample : samples) {
+            writeQuantile(writer, sample.operation, 0.5, sample.p50Millis);
+            writeQuantile(writer, sample.operation, 0.99, sample.p99Millis);
+            writeQuantile(writer, sample.operation, 0.999, sample.p999Millis);
+            writeSample(writer, LATENCY + "_sum", sample.operation, sample.meanMillis * sample.count / 1e3);
+            writeSample(writer, LATENCY + "_count", sample.operation, sample.count);
+        }
+
+        writeHeader(writer, LATENCY_MAX, "gauge", "Highest latency of Connected Cup operations since start.");
+        for (Sample sample : samples) {
+            writeSample(writer, LATENCY_MAX, sample.operation, sample.maxMillis / 1e3);
+        }
+
+        writeHeader(writer, RATE, "gauge", "One-minute moving average of Connected Cup operations per second.");
+        for (Sample sample : samples) {
+            writeSample(writer, RATE, sample.operation, sample.oneMinuteRate);
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return the values of every latency histogram registered on the platform MBean server, by operation.
+     */
+    private static Collection<Sample> getSamples() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        Map<String, Sample> samples = new TreeMap<>();
+        try {
+            for (ObjectName objectName : mBeanServer.queryNames(new ObjectName(LatencyMetrics.MBEAN_QUERY), null)) {
+                String operation = ObjectName.unquote(objectName.getKeyProperty(LatencyMetrics.OPERATION_KEY));
+                LatencyHistogramMXBean histogram = JMX.newMXBeanProxy(mBeanServer, objectName,
+                                                                      LatencyHistogramMXBean.class);
+                try {
+                    samples.put(operation, new Sample(operation, histogram));
+                } catch (UndeclaredThrowableException e) {
+                    // unregistered since the query, e.g. by the webapp being undeployed
+                    if (log.isDebugEnabled()) {
+                        log.debug("Latency MBean " + objectName + " is gone", e);
+                    }
+                }
+            }
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException("Invalid latency MBean query " + LatencyMetrics.MBEAN_QUERY, e);
+        }
+        return samples.values();
+    }
+
+    private static void writeHeader(PrintWriter writer, String metric, String type, String help) {
+        writer.print("# HELP " + metric + " " + help + "\n");
+        writer.print("# TYPE " + metric + " " + type + "\n");
+    }
+
+    private static void writeQuantile(PrintWriter writer, String operation, double quantile, double millis) {
+        writer.print(LATENCY + "{operation=\"" + operation + "\",quantile=\"" + quantile + "\"} ");
+        writer.print(millis / 1e3);
+        writer.print('\n');
+    }
+
+    private static void writeSample(PrintWriter writer, String metric, String operation, long value) {
+        writer.print(metric + "{operation=\"" + operation + "\"} ");
+        writer.print(value);
+        writer.print('\n');
+    }
+
+    private static void writeSample(PrintWriter writer, String metric, String operation, double value) {
+        writer.print(metric + "{operation=\"" + operation + "\"} ");
+        writer.print(value);
+        writer.print('\n');
+    }
+
+    /**
+     * The values of one histogram, read together so that the lines of an operation agree.
+     */
+    private static class Sample {
+        private final String operation;
+        private final long count;
+        private final double meanMillis;
+        private final double maxMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double oneMinuteRate;
+
+        private Sample(String operation, LatencyHistogramMXBean histogram) {
+            this.operation = operation;
+            this.count = histogram.getCount();
+            this.meanMillis = histogram.getMeanMillis();
+            this.maxMillis = histogram.getMaxMillis();
+            this.p50Millis = histogram.getP50Millis();
+            this.p99Millis = histogram.getP99Millis();
+            this.p999Millis = histogram.getP999Millis();
+            this.oneMinuteRate = histogram.getOneMinuteRate();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.metrics;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ConnectedCupControllerService;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the latency of every REST endpoint of {@link ConnectedCupControllerService} in a histogram named
+ * {@code rest.<path>}, e.g. {@code rest.push_temperature}. Requests that are suspended, such as reads waiting
+ * for the device, are recorded when they complete rather than when the request thread returns.
+ */
+public class RequestTimingFilter implements Filter {
+
+    private static final String OPERATION_PREFIX = "rest.";
+
+    private String[] paths;
+    private LatencyHistogram[] histograms;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        List<String> endpointPaths = new ArrayList<>();
+        for (Method method : ConnectedCupControllerService.class.getMethods()) {
+            Path path = method.getAnnotation(Path.class);
+            if (path != null && !endpointPaths.contains("/" + path.value())) {
+                endpointPaths.add("/" + path.value());
+            }
+        }
+        paths = endpointPaths.toArray(new String[endpointPaths.size()]);
+        histograms = new LatencyHistogram[paths.length];
+        LatencyMetrics latencyMetrics = LatencyMetrics.getInstance();
+        for (int i = 0; i < paths.length; i++) {
+            String path = paths[i];
+            histograms[i] = latencyMetrics.getHistogram(OPERATION_PREFIX + path.substring(path.lastIndexOf('/') + 1));
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        LatencyHistogram histogram = getHistogram(((HttpServletRequest) servletRequest).getRequestURI());
+        if (histogram == null) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        long startTime = System.nanoTime();
+        boolean suspended = false;
+        try {
+            chain.doFilter(servletRequest, servletResponse);
+            if (servletRequest.isAsyncStarted()) {
+                servletRequest.getAsyncContext().addListener(new CompletionListener(histogram, startTime));
+                suspended = true;
+            }
+        } finally {
+            if (!suspended) {
+                histogram.recordSince(startTime);
+            }
+        }
+    }
+
+    private LatencyHistogram getHistogram(String requestURI) {
+        for (int i = 0; i < paths.length; i++) {
+            if (requestURI.endsWith(paths[i])) {
+                return histograms[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static class CompletionListener implements AsyncListener {
+        private final LatencyHistogram histogram;
+        private final long startTime;
+
+        CompletionListener(LatencyHistogram histogram, long startTime) {
+            this.histogram = histogram;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            histogram.recordSince(startTime);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEventPublisher;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a telemetry push is admitted, based on how much room is left downstream.
+ *
+ * The service is saturated once the DAS publish queue is filled beyond {@code shed.queue.high} or the recent
+ * DAS flush latency exceeds {@code shed.latency.high} milliseconds while events are waiting, and stays so until
+ * the queue has drained below {@code shed.queue.low} and the latency is back under {@code shed.latency.low}. The
+ * gap between the two thresholds keeps the state from flapping. While saturated pushes are refused with 503;
+ * independently, more than {@code shed.max.inflight} pushes in progress at once are refused with 429. Both carry
+ * a Retry-After of {@code shed.retry.after} seconds. Reads and commands never go through here.
+ */
+public class LoadShedder implements LoadShedderMXBean {
+    private static final Log log = LogFactory.getLog(LoadShedder.class);
+
+    public static final int ADMITTED = 0;
+
+    private static final String MBEAN_TYPE = "LoadShedder";
+    private static final float DEFAULT_QUEUE_HIGH = 0.8f;
+    private static final float DEFAULT_QUEUE_LOW = 0.5f;
+    private static final long DEFAULT_LATENCY_HIGH = 2000;
+    private static final long DEFAULT_LATENCY_LOW = 500;
+    private static final int DEFAULT_MAX_INFLIGHT = 256;
+    private static final long DEFAULT_RETRY_AFTER = 1;
+    private static final long EVALUATION_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final LoadShedder instance = new LoadShedder();
+
+    private final float queueHigh;
+    private final float queueLow;
+    private final long latencyHigh;
+    private final long latencyLow;
+    private final int maxInFlight;
+    private final long retryAfter;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong lastEvaluation = new AtomicLong(System.nanoTime() - EVALUATION_INTERVAL);
+    private volatile boolean saturated;
+    private volatile long saturatedSince;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong saturationCount = new AtomicLong();
+
+    private LoadShedder() {
+        this.queueHigh = Math.min(1f, Math.max(0f, ConnectedCupServiceConfig.getFloat(
+                ConnectedCupServiceConfig.SHED_QUEUE_HIGH, DEFAULT_QUEUE_HIGH)));
+        this.queueLow = Math.min(queueHigh, Math.max(0f, ConnectedCupServiceConfig.getFloat(
+                ConnectedCupServiceConfig.SHED_QUEUE_LOW, DEFAULT_QUEUE_LOW)));
+        this.latencyHigh = Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.SHED_LATENCY_HIGH, DEFAULT_LATENCY_HIGH));
+        this.latencyLow = Math.min(latencyHigh, Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.SHED_LATENCY_LOW, DEFAULT_LATENCY_LOW)));
+        this.maxInFlight = Math.max(0, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.SHED_MAX_INFLIGHT, DEFAULT_MAX_INFLIGHT));
+        this.retryAfter = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.SHED_RETRY_AFTER, DEFAULT_RETRY_AFTER));
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static LoadShedder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Admits a telemetry push. Every admitted push must be followed by a call to {@link #release()}.
+     *
+     * @return {@link #ADMITTED}, or the HTTP status to refuse the push with.
+     */
+    public int tryAdmit() {
+        evaluate(System.nanoTime());
+        if (saturated) {
+            shedCount.incrementAndGet();
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+        if (inFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+            inFlight.decrementAndGet();
+            throttledCount.incrementAndGet();
+            return RateLimiter.STATUS_TOO_MANY_REQUESTS;
+        }
+        admittedCount.incrementAndGet();
+        return ADMITTED;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Re-reads the DAS publisher at most once per evaluation interval; the thread that wins the interval does
+     * the work, the others keep using the current state.
+     */
+    private void evaluate(long now) {
+        long last = lastEvaluation.get();
+        if (now - last < EVALUATION_INTERVAL || !lastEvaluation.compareAndSet(last, now)) {
+            return;
+        }
+        DASEventPublisher publisher = DASEventPublisher.getInstance();
+        int depth = publisher.getQueueDepth();
+        float fill = (float) depth / publisher.getQueueCapacity();
+        // the latency average only moves when batches are sent, so it is ignored once the queue is empty
+        long latency = depth == 0 ? 0 : publisher.getRecentFlushLatencyMillis();
+        if (!saturated) {
+            if (fill >= queueHigh || (latencyHigh > 0 && latency >= latencyHigh)) {
+                saturated = true;
+                saturatedSince = System.currentTimeMillis();
+                saturationCount.incrementAndGet();
+                log.warn("DAS publishing is saturated (queue " + depth + "/" + publisher.getQueueCapacity() +
+                         ", flush latency " + latency + " ms), refusing telemetry pushes");
+            }
+        } else if (fill <= queueLow && (latencyHigh == 0 || latency <= latencyLow)) {
+            saturated = false;
+            log.info("DAS publishing has recovered after " + (System.currentTimeMillis() - saturatedSince) +
+                     " ms, accepting telemetry pushes again");
+        }
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    @Override
+    public long getSaturatedSince() {
+        return saturated ? saturatedSince : 0;
+    }
+
+    @Override
+    public float getQueueHighWatermark() {
+        return queueHigh;
+    }
+
+    @Override
+    public float getQueueLowWatermark() {
+        return queueLow;
+    }
+
+    @Override
+    public long getLatencyHighThreshold() {
+        return latencyHigh;
+    }
+
+    @Override
+    public long getLatencyLowThreshold() {
+        return latencyLow;
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    @Override
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    @Override
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    @Override
+    public long getSaturationCount() {
+        return saturationCount.get();
+    }
+}
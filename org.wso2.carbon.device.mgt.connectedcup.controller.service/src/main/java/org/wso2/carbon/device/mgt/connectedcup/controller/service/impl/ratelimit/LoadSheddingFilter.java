@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Runs telemetry pushes past the {@link LoadShedder} before the JAX-RS runtime reads and binds the request body,
+ * so a refused push costs neither parsing nor any of the work behind it. Every other request passes untouched.
+ */
+public class LoadSheddingFilter implements Filter {
+
+    private static final String PUSH_PATH = "/controller/push_";
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        if (!"POST".equals(request.getMethod()) || !request.getRequestURI().contains(PUSH_PATH)) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        LoadShedder shedder = LoadShedder.getInstance();
+        int status = shedder.tryAdmit();
+        if (status != LoadShedder.ADMITTED) {
+            HttpServletResponse response = (HttpServletResponse) servletResponse;
+            response.setStatus(status);
+            response.setHeader("Retry-After", Long.toString(shedder.getRetryAfter()));
+            return;
+        }
+        try {
+            chain.doFilter(servletRequest, servletResponse);
+        } finally {
+            shedder.release();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
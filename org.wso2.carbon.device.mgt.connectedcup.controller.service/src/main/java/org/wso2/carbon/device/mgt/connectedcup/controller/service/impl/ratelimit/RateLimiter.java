@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-device and per-owner token bucket limits on pushed readings, so that one misbehaving cup or account cannot
+ * starve everyone else.
+ *
+ * A device may push {@code ratelimit.device.rate} readings per second with bursts of up to
+ * {@code ratelimit.device.burst}; an owner, all devices together, {@code ratelimit.owner.rate} with bursts of
+ * {@code ratelimit.owner.burst}. A rate of 0 turns the limit off. Bucket state is kept in fixed-size tables
+ * ({@code ratelimit.device.slots}, {@code ratelimit.owner.slots}), so memory does not grow with the number of
+ * devices. A request for more readings than the burst size is let through once the bucket is full and leaves
+ * it in debt, see {@link TokenBucketTable}.
+ */
+public class RateLimiter implements RateLimiterMXBean {
+
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private static final String MBEAN_TYPE = "RateLimiter";
+    private static final long DEFAULT_DEVICE_RATE = 2;
+    private static final long DEFAULT_DEVICE_BURST = 20;
+    private static final long DEFAULT_OWNER_RATE = 1000;
+    private static final long DEFAULT_OWNER_BURST = 5000;
+    private static final int DEFAULT_DEVICE_SLOTS = 1 << 20;
+    private static final int DEFAULT_OWNER_SLOTS = 1 << 16;
+
+    private static final RateLimiter instance = new RateLimiter();
+
+    private final long deviceRate;
+    private final long deviceBurst;
+    private final long ownerRate;
+    private final long ownerBurst;
+    private final TokenBucketTable deviceBuckets;
+    private final TokenBucketTable ownerBuckets;
+
+    private final AtomicLong allowedCount = new AtomicLong();
+    private final AtomicLong deviceLimitedCount = new AtomicLong();
+    private final AtomicLong ownerLimitedCount = new AtomicLong();
+
+    private RateLimiter() {
+        this.deviceRate = Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.RATELIMIT_DEVICE_RATE, DEFAULT_DEVICE_RATE));
+        this.deviceBurst = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.RATELIMIT_DEVICE_BURST, DEFAULT_DEVICE_BURST));
+        this.ownerRate = Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.RATELIMIT_OWNER_RATE, DEFAULT_OWNER_RATE));
+        this.ownerBurst = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.RATELIMIT_OWNER_BURST, DEFAULT_OWNER_BURST));
+        this.deviceBuckets = deviceRate == 0 ? null : new TokenBucketTable(deviceRate, deviceBurst, Math.max(1,
+                ConnectedCupServiceConfig.getInt(ConnectedCupServiceConfig.RATELIMIT_DEVICE_SLOTS,
+                                                 DEFAULT_DEVICE_SLOTS)));
+        this.ownerBuckets = ownerRate == 0 ? null : new TokenBucketTable(ownerRate, ownerBurst, Math.max(1,
+                ConnectedCupServiceConfig.getInt(ConnectedCupServiceConfig.RATELIMIT_OWNER_SLOTS,
+                                                 DEFAULT_OWNER_SLOTS)));
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static RateLimiter getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes permits for readings of one device. Nothing is taken unless both the device and its owner are within
+     * their limits.
+     *
+     * @return 0 if the readings may be ingested, otherwise the number of seconds to wait before retrying.
+     */
+    public long acquire(String owner, String deviceId, int permits) {
+        long now = System.nanoTime();
+        boolean limitDevice = deviceBuckets != null && deviceId != null;
+        boolean limitOwner = ownerBuckets != null && owner != null;
+        if (limitDevice) {
+            long wait = deviceBuckets.check(deviceId, permits, now);
+            if (wait > 0) {
+                deviceLimitedCount.incrementAndGet();
+                return toRetryAfter(wait);
+            }
+        }
+        if (limitOwner) {
+            long wait = ownerBuckets.check(owner, permits, now);
+            if (wait > 0) {
+                ownerLimitedCount.incrementAndGet();
+                return toRetryAfter(wait);
+            }
+        }
+        if (limitDevice) {
+            deviceBuckets.take(deviceId, permits, now);
+        }
+        if (limitOwner) {
+            ownerBuckets.take(owner, permits, now);
+        }
+        allowedCount.incrementAndGet();
+        return 0;
+    }
+
+    /**
+     * Takes permits for a batch that mixes devices and owners. The batch is refused if any device or owner in it
+     * is over its limit, and then nothing is taken for the others either.
+     *
+     * @return 0 if the batch may be ingested, otherwise the number of seconds to wait before retrying.
+     */
+    public long acquire(Map<String, Integer> devicePermits, Map<String, Integer> ownerPermits) {
+        long now = System.nanoTime();
+        if (deviceBuckets != null) {
+            for (Map.Entry<String, Integer> entry : devicePermits.entrySet()) {
+                long wait = deviceBuckets.check(entry.getKey(), entry.getValue(), now);
+                if (wait > 0) {
+                    deviceLimitedCount.incrementAndGet();
+                    return toRetryAfter(wait);
+                }
+            }
+        }
+        if (ownerBuckets != null) {
+            for (Map.Entry<String, Integer> entry : ownerPermits.entrySet()) {
+                long wait = ownerBuckets.check(entry.getKey(), entry.getValue(), now);
+                if (wait > 0) {
+                    ownerLimitedCount.incrementAndGet();
+                    return toRetryAfter(wait);
+                }
+            }
+        }
+        // a concurrent request may take from the same buckets in between, which only leaves them in debt
+        if (deviceBuckets != null) {
+            for (Map.Entry<String, Integer> entry : devicePermits.entrySet()) {
+                deviceBuckets.take(entry.getKey(), entry.getValue(), now);
+            }
+        }
+        if (ownerBuckets != null) {
+            for (Map.Entry<String, Integer> entry : ownerPermits.entrySet()) {
+                ownerBuckets.take(entry.getKey(), entry.getValue(), now);
+            }
+        }
+        allowedCount.incrementAndGet();
+        return 0;
+    }
+
+    private static long toRetryAfter(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public long getDeviceRate() {
+        return deviceRate;
+    }
+
+    @Override
+    public long getDeviceBurst() {
+        return deviceBurst;
+    }
+
+    @Override
+    public long getOwnerRate() {
+        return ownerRate;
+    }
+
+    @Override
+    public long getOwnerBurst() {
+        return ownerBurst;
+    }
+
+    @Override
+    public int getDeviceSlots() {
+        return deviceBuckets == null ? 0 : deviceBuckets.getSlotCount();
+    }
+
+    @Override
+    public int getOwnerSlots() {
+        return ownerBuckets == null ? 0 : ownerBuckets.getSlotCount();
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return allowedCount.get();
+    }
+
+    @Override
+    public long getDeviceLimitedCount() {
+        return deviceLimitedCount.get();
+    }
+
+    @Override
+    public long getOwnerLimitedCount() {
+        return ownerLimitedCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return (deviceBuckets == null ? 0 : deviceBuckets.getEvictionCount()) +
+               (ownerBuckets == null ? 0 : ownerBuckets.getEvictionCount());
+    }
+}
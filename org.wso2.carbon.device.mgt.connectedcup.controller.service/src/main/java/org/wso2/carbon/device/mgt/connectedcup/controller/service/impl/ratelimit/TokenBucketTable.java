@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for an unbounded set of keys in a fixed amount of memory.
+ *
+ * Buckets live in a fixed-size table of parallel arrays (24 bytes per slot), split into lock stripes. A key hashes
+ * to one stripe and to two candidate slots within it. When neither slot holds the key, the new key takes an empty
+ * slot, otherwise the least recently used of the two. An evicted key simply starts again with a full bucket, so
+ * eviction can only make the limiter more lenient, never reject a well-behaved key. Only evictions of buckets
+ * that were still refilling are counted; an idle bucket is full again anyway.
+ *
+ * A bucket can go into debt: a request for more permits than the burst size is granted once the bucket is full,
+ * and leaves it below empty by the difference. Nothing more is granted until the bucket has refilled past the
+ * debt, so large requests are held to the rate on average just like small ones.
+ */
+class TokenBucketTable {
+
+    // tokens are kept in units of 1/1e9 of a token so that refilling needs no division
+    private static final long UNIT = TimeUnit.SECONDS.toNanos(1);
+    private static final int STRIPES = 64;
+
+    private final long rate;
+    private final long capacityUnits;
+    private final int slotsPerStripe;
+    private final long[] keys;
+    private final long[] units;
+    private final long[] stamps;
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param rate  tokens added per second
+     * @param burst maximum number of tokens a bucket holds
+     * @param slots number of buckets kept, rounded up to a power of two
+     */
+    TokenBucketTable(long rate, long burst, int slots) {
+        this.rate = rate;
+        this.capacityUnits = burst * UNIT;
+        int perStripe = 2;
+        while ((long) perStripe * STRIPES < slots) {
+            perStripe <<= 1;
+        }
+        this.slotsPerStripe = perStripe;
+        this.keys = new long[STRIPES * perStripe];
+        this.units = new long[keys.length];
+        this.stamps = new long[keys.length];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Takes the permits from the bucket of the key if it holds them, or is full when they are more than the
+     * burst size.
+     *
+     * @return 0 if the permits were granted, otherwise how many nanoseconds to wait before they would be.
+     */
+    long acquire(String key, int permits, long now) {
+        long hash = hash(key);
+        int stripe = stripe(hash);
+        synchronized (locks[stripe]) {
+            int slot = slot(hash, stripe, now);
+            long wait = getWait(slot, permits);
+            if (wait == 0) {
+                units[slot] -= permits * UNIT;
+            }
+            return wait;
+        }
+    }
+
+    /**
+     * Like {@link #acquire(String, int, long)} without taking anything, for callers that take the permits of
+     * several keys only once all of them can be granted.
+     */
+    long check(String key, int permits, long now) {
+        long hash = hash(key);
+        int stripe = stripe(hash);
+        synchronized (locks[stripe]) {
+            return getWait(slot(hash, stripe, now), permits);
+        }
+    }
+
+    /**
+     * Takes the permits whether the bucket holds them or not. Following {@link #check(String, int, long)}, a
+     * concurrent request in between can only leave the bucket in debt, which later requests wait out.
+     */
+    void take(String key, int permits, long now) {
+        long hash = hash(key);
+        int stripe = stripe(hash);
+        synchronized (locks[stripe]) {
+            units[slot(hash, stripe, now)] -= permits * UNIT;
+        }
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    int getSlotCount() {
+        return keys.length;
+    }
+
+    private static int stripe(long hash) {
+        return (int) (hash >>> 58) & (STRIPES - 1);
+    }
+
+    /**
+     * Finds or claims the slot of the key and refills it. Called with the lock of the stripe held.
+     */
+    private int slot(long hash, int stripe, long now) {
+        int base = stripe * slotsPerStripe;
+        int first = base + ((int) hash & (slotsPerStripe - 1));
+        int second = base + ((int) (hash >>> 24) & (slotsPerStripe - 1));
+        int slot;
+        if (keys[first] == hash) {
+            slot = first;
+        } else if (keys[second] == hash) {
+            slot = second;
+        } else {
+            slot = chooseVictim(first, second, now);
+            if (keys[slot] != 0 && now - stamps[slot] < getRefillNanos(slot)) {
+                evictionCount.incrementAndGet();
+            }
+            keys[slot] = hash;
+            units[slot] = capacityUnits;
+            stamps[slot] = now;
+        }
+
+        long elapsed = now - stamps[slot];
+        if (elapsed > 0) {
+            // compared first, so that a long idle time cannot overflow the multiplication
+            units[slot] = elapsed > getRefillNanos(slot) ? capacityUnits :
+                          Math.min(capacityUnits, units[slot] + elapsed * rate);
+            stamps[slot] = now;
+        }
+        return slot;
+    }
+
+    /**
+     * @return nanoseconds until the bucket in the slot is full.
+     */
+    private long getRefillNanos(int slot) {
+        return (capacityUnits - units[slot]) / rate;
+    }
+
+    private long getWait(int slot, int permits) {
+        long need = Math.min(permits * UNIT, capacityUnits);
+        if (units[slot] >= need) {
+            return 0;
+        }
+        return (need - units[slot] + rate - 1) / rate;
+    }
+
+    private int chooseVictim(int first, int second, long now) {
+        if (keys[first] == 0) {
+            return first;
+        }
+        if (keys[second] == 0) {
+            return second;
+        }
+        return stamps[first] <= stamps[second] ? first : second;
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of the key, never 0 since 0 marks an empty slot.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 31;
+        return hash == 0 ? 1 : hash;
+    }
+}
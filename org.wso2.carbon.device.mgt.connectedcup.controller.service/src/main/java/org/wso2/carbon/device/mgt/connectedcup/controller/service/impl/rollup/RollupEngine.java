@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEventPublisher;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.TelemetryProcessor;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maintains per-minute, per-hour and per-day min/max/avg/count aggregates of every sensor of every device as
+ * readings are ingested, at O(1) cost per reading and granularity.
+ *
+ * Closed windows are kept in memory for the query endpoint and, when {@code rollup.publish} is enabled, are also
+ * forwarded to DAS as compact rollup events. A window is closed only once readings for it can no longer arrive
+ * in order: its end has to lie the reorder window plus the allowed clock skew of ingest behind the newest reading
+ * of the device, or behind the server clock for the sweeper, which closes the windows of devices that stopped
+ * reporting. Readings replayed from further back than that are left out of the rollups and counted as late; they
+ * still reach history and analytics. The number of devices tracked is capped at {@code rollup.max.devices}; a
+ * device that has not reported for {@code rollup.idle.timeout} milliseconds (default one day) is dropped along with
+ * its closed windows once none of its windows is open any more, so retired devices do not keep their slots.
+ */
+public class RollupEngine implements RollupEngineMXBean {
+    private static final Log log = LogFactory.getLog(RollupEngine.class);
+
+    private static final String MBEAN_TYPE = "RollupEngine";
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+    private static final long DEFAULT_SWEEP_INTERVAL = 10000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 86400000;
+
+    private static final RollupEngine instance = new RollupEngine();
+
+    private final ConcurrentMap<String, DeviceRollups> devices = new ConcurrentHashMap<>();
+    private final int maxDevices;
+    private final boolean publishEnabled;
+    private final int[] retentions;
+    private final long lateness;
+    private final long idleTimeout;
+    private final ScheduledExecutorService sweeper;
+    private final AtomicLong closedWindowCount = new AtomicLong();
+    private final AtomicLong publishedWindowCount = new AtomicLong();
+    private final AtomicLong lateReadingCount = new AtomicLong();
+    private final AtomicLong rejectedDeviceCount = new AtomicLong();
+    private final AtomicLong evictedDeviceCount = new AtomicLong();
+
+    private RollupEngine() {
+        this.maxDevices = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.ROLLUP_MAX_DEVICES, DEFAULT_MAX_DEVICES));
+        this.publishEnabled = ConnectedCupServiceConfig.getBoolean(ConnectedCupServiceConfig.ROLLUP_PUBLISH, false);
+        RollupGranularity[] granularities = RollupGranularity.values();
+        this.retentions = new int[granularities.length];
+        for (int i = 0; i < granularities.length; i++) {
+            retentions[i] = granularities[i].getRetention();
+        }
+        this.lateness = TelemetryProcessor.getInstance().getMaxLateness();
+        this.idleTimeout = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.ROLLUP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+
+        long sweepInterval = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.ROLLUP_SWEEP_INTERVAL, DEFAULT_SWEEP_INTERVAL));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-rollup-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("Error while closing ended rollup windows", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static RollupEngine getInstance() {
+        return instance;
+    }
+
+    public void record(String owner, String deviceId, String sensor, float value, long time) {
+        int sensorIndex = TelemetryProcessor.getSensorIndex(sensor);
+        if (sensorIndex < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DeviceRollups deviceRollups;
+        while (true) {
+            deviceRollups = getDeviceRollups(owner, deviceId);
+            if (deviceRollups == null) {
+                return;
+            }
+            if (deviceRollups.touch(now)) {
+                break;
+            }
+            // the device was dropped as idle in the meantime, start new rollups
+        }
+        RollupSeries[] series = deviceRollups.series[sensorIndex];
+        for (int i = 0; i < series.length; i++) {
+            windowsClosed(deviceRollups, sensor, RollupGranularity.values()[i], series[i].add(time, value));
+        }
+    }
+
+    /**
+     * @return up to limit of the most recent closed windows, oldest first, or null if the device is unknown.
+     */
+    public RollupWindow[] getClosedWindows(String deviceId, String sensor, RollupGranularity granularity,
+                                           int limit) {
+        int sensorIndex = TelemetryProcessor.getSensorIndex(sensor);
+        DeviceRollups deviceRollups = devices.get(deviceId);
+        if (sensorIndex < 0 || deviceRollups == null) {
+            return null;
+        }
+        RollupSeries series = deviceRollups.series[sensorIndex][granularity.ordinal()];
+        windowsClosed(deviceRollups, sensor, granularity, series.closeEnded(System.currentTimeMillis()));
+        return series.getClosedWindows(limit);
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private void sweep(long now) {
+        RollupGranularity[] granularities = RollupGranularity.values();
+        Iterator<DeviceRollups> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            DeviceRollups deviceRollups = iterator.next();
+            for (int sensorIndex = 0; sensorIndex < deviceRollups.series.length; sensorIndex++) {
+                RollupSeries[] series = deviceRollups.series[sensorIndex];
+                for (int i = 0; i < series.length; i++) {
+                    windowsClosed(deviceRollups, TelemetryProcessor.SENSORS[sensorIndex], granularities[i],
+                                  series[i].closeEnded(now));
+                }
+            }
+            if (deviceRollups.evictIfIdle(now, idleTimeout)) {
+                iterator.remove();
+                evictedDeviceCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void windowsClosed(DeviceRollups deviceRollups, String sensor, RollupGranularity granularity,
+                               List<RollupWindow> windows) {
+        if (windows == null) {
+            return;
+        }
+        for (RollupWindow window : windows) {
+            closedWindowCount.incrementAndGet();
+            if (publishEnabled && DASEventPublisher.getInstance().publish(ConnectedCupServiceUtils.createRollupEvent(
+                    deviceRollups.owner, deviceRollups.deviceId, sensor, granularity, window))) {
+                publishedWindowCount.incrementAndGet();
+            }
+        }
+    }
+
+    private DeviceRollups getDeviceRollups(String owner, String deviceId) {
+        DeviceRollups deviceRollups = devices.get(deviceId);
+        if (deviceRollups != null) {
+            if (owner != null && !owner.equals(deviceRollups.owner)) {
+                deviceRollups.owner = owner;
+            }
+            return deviceRollups;
+        }
+        if (devices.size() >= maxDevices) {
+            if (rejectedDeviceCount.getAndIncrement() == 0) {
+                log.warn("Rollups are full with " + maxDevices + " devices, device [" + deviceId +
+                         "] and further devices will not be aggregated");
+            }
+            return null;
+        }
+        deviceRollups = new DeviceRollups(owner, deviceId);
+        DeviceRollups existing = devices.putIfAbsent(deviceId, deviceRollups);
+        return existing != null ? existing : deviceRollups;
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    @Override
+    public boolean isPublishEnabled() {
+        return publishEnabled;
+    }
+
+    @Override
+    public long getClosedWindowCount() {
+        return closedWindowCount.get();
+    }
+
+    @Override
+    public long getPublishedWindowCount() {
+        return publishedWindowCount.get();
+    }
+
+    @Override
+    public long getLateness() {
+        return lateness;
+    }
+
+    @Override
+    public long getLateReadingCount() {
+        return lateReadingCount.get();
+    }
+
+    @Override
+    public long getRejectedDeviceCount() {
+        return rejectedDeviceCount.get();
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public long getEvictedDeviceCount() {
+        return evictedDeviceCount.get();
+    }
+
+    /**
+     * The rollup series of one device and the time it last reported, on the server clock.
+     */
+    private class DeviceRollups {
+        private final String deviceId;
+        private volatile String owner;
+        // [sensor][granularity]
+        private final RollupSeries[][] series;
+        private long lastWrite;
+        private boolean evicted;
+
+        private DeviceRollups(String owner, String deviceId) {
+            this.owner = owner;
+            this.deviceId = deviceId;
+            RollupGranularity[] granularities = RollupGranularity.values();
+            this.series = new RollupSeries[TelemetryProcessor.SENSORS.length][granularities.length];
+            for (int sensorIndex = 0; sensorIndex < series.length; sensorIndex++) {
+                for (int i = 0; i < granularities.length; i++) {
+                    series[sensorIndex][i] = new RollupSeries(granularities[i], retentions[i], lateness,
+                                                              lateReadingCount);
+                }
+            }
+        }
+
+        /**
+         * @return false if the device has been dropped and must not be written to any more.
+         */
+        private synchronized boolean touch(long now) {
+            if (evicted) {
+                return false;
+            }
+            lastWrite = Math.max(lastWrite, now);
+            return true;
+        }
+
+        /**
+         * Readings are added after {@link #touch}, so a device touched within the idle timeout is never dropped
+         * while a reading is being added to it.
+         */
+        private synchronized boolean evictIfIdle(long now, long idleTimeout) {
+            if (now - lastWrite < idleTimeout) {
+                return false;
+            }
+            for (RollupSeries[] sensorSeries : series) {
+                for (RollupSeries granularitySeries : sensorSeries) {
+                    if (granularitySeries.hasOpenWindows()) {
+                        return false;
+                    }
+                }
+            }
+            evicted = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup;
+
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+
+/**
+ * Tumbling window sizes the {@link RollupEngine} aggregates readings into. Windows are aligned to the epoch,
+ * so days are UTC days.
+ */
+public enum RollupGranularity {
+    MINUTE(60000L, 15),
+    HOUR(3600000L, 24),
+    DAY(86400000L, 7);
+
+    private final long windowMillis;
+    private final int defaultRetention;
+
+    RollupGranularity(long windowMillis, int defaultRetention) {
+        this.windowMillis = windowMillis;
+        this.defaultRetention = defaultRetention;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return how many closed windows of this size are kept per device and sensor.
+     */
+    public int getRetention() {
+        return Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.ROLLUP_RETENTION_PREFIX + name().toLowerCase(), defaultRetention));
+    }
+
+    public long getWindowStart(long time) {
+        long offset = time % windowMillis;
+        return offset < 0 ? time - offset - windowMillis : time - offset;
+    }
+
+    public static RollupGranularity fromString(String granularity) {
+        if (granularity == null) {
+            return null;
+        }
+        for (RollupGranularity value : values()) {
+            if (value.name().equalsIgnoreCase(granularity)) {
+                return value;
+            }
+        }
+        return null;
+    }
+}
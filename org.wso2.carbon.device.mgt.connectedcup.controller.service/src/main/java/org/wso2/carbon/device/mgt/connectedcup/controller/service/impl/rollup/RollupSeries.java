@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running aggregate of one sensor of one device at one {@link RollupGranularity}.
+ *
+ * A reading is added in O(1) to the open window it falls in. Several windows can be open at once: a window is
+ * closed only once its end lies the allowed lateness behind the newest reading of the series, or behind the server
+ * clock when the sweeper comes by, so that readings arriving that much out of order still count. Closed windows
+ * are appended, in time order, to a fixed-size ring of closed windows kept in primitive arrays.
+ *
+ * A reading for a window that has already been closed, e.g. a replay of readings older than the lateness, is not
+ * merged into it, as the window may have been published already; it is ignored and counted on the late counter.
+ */
+public class RollupSeries {
+    // upper bound on the windows open at once, whatever the lateness
+    private static final int MAX_OPEN_WINDOWS = 64;
+
+    private final RollupGranularity granularity;
+    private final long lateness;
+    private final AtomicLong lateCounter;
+
+    private long lastClosedStart = -1;
+    private long newestTime = Long.MIN_VALUE;
+    // open windows in no particular order, a count of 0 marks a free slot
+    private final long[] openStarts;
+    private final int[] openCounts;
+    private final float[] openMins;
+    private final float[] openMaxs;
+    private final double[] openSums;
+
+    private final long[] starts;
+    private final int[] counts;
+    private final float[] mins;
+    private final float[] maxs;
+    private final float[] averages;
+    private int next;
+    private int size;
+
+    /**
+     * @param lateness milliseconds past the end of a window during which readings for it are still taken
+     */
+    public RollupSeries(RollupGranularity granularity, int retention, long lateness, AtomicLong lateCounter) {
+        this.granularity = granularity;
+        this.lateness = Math.max(0, lateness);
+        this.lateCounter = lateCounter;
+        int openWindows = (int) Math.min(MAX_OPEN_WINDOWS, this.lateness / granularity.getWindowMillis() + 2);
+        this.openStarts = new long[openWindows];
+        this.openCounts = new int[openWindows];
+        this.openMins = new float[openWindows];
+        this.openMaxs = new float[openWindows];
+        this.openSums = new double[openWindows];
+        this.starts = new long[retention];
+        this.counts = new int[retention];
+        this.mins = new float[retention];
+        this.maxs = new float[retention];
+        this.averages = new float[retention];
+    }
+
+    /**
+     * Adds a reading to its window.
+     *
+     * @return the windows, oldest first, that the reading has left more than the lateness behind and were
+     * closed, or null if there were none.
+     */
+    public synchronized List<RollupWindow> add(long time, float value) {
+        long windowStart = granularity.getWindowStart(time);
+        if (windowStart <= lastClosedStart) {
+            lateCounter.incrementAndGet();
+            return null;
+        }
+        List<RollupWindow> closed = null;
+        int slot = findOpen(windowStart);
+        if (slot < 0) {
+            slot = findFree();
+            if (slot < 0) {
+                // more windows open than the lateness accounts for, e.g. after the device clock jumped
+                int oldest = findOldest();
+                if (openStarts[oldest] > windowStart) {
+                    lateCounter.incrementAndGet();
+                    return null;
+                }
+                closed = new ArrayList<>();
+                closed.add(close(oldest));
+                slot = oldest;
+            }
+            open(slot, windowStart, value);
+        }
+        if (value < openMins[slot]) {
+            openMins[slot] = value;
+        }
+        if (value > openMaxs[slot]) {
+            openMaxs[slot] = value;
+        }
+        openCounts[slot]++;
+        openSums[slot] += value;
+        if (time > newestTime) {
+            newestTime = time;
+        }
+        return closeEnded(newestTime, closed);
+    }
+
+    /**
+     * Closes the open windows that ended more than the lateness before the given time.
+     *
+     * @return the closed windows, oldest first, or null if there was nothing to close.
+     */
+    public synchronized List<RollupWindow> closeEnded(long now) {
+        return closeEnded(now, null);
+    }
+
+    /**
+     * @return up to limit of the most recent closed windows, oldest first.
+     */
+    public synchronized RollupWindow[] getClosedWindows(int limit) {
+        int count = Math.min(Math.max(0, limit), size);
+        RollupWindow[] windows = new RollupWindow[count];
+        for (int i = 0; i < count; i++) {
+            int index = next - count + i;
+            if (index < 0) {
+                index += starts.length;
+            }
+            windows[i] = new RollupWindow(starts[index], counts[index], mins[index], maxs[index], averages[index]);
+        }
+        return windows;
+    }
+
+    /**
+     * @return whether any window is still open.
+     */
+    public synchronized boolean hasOpenWindows() {
+        return findOldest() >= 0;
+    }
+
+    private List<RollupWindow> closeEnded(long now, List<RollupWindow> closed) {
+        long windowMillis = granularity.getWindowMillis();
+        int oldest;
+        // oldest first, so that closed windows stay in time order
+        while ((oldest = findOldest()) >= 0 && now - lateness >= openStarts[oldest] + windowMillis) {
+            if (closed == null) {
+                closed = new ArrayList<>();
+            }
+            closed.add(close(oldest));
+        }
+        return closed;
+    }
+
+    private void open(int slot, long windowStart, float value) {
+        openStarts[slot] = windowStart;
+        openMins[slot] = value;
+        openMaxs[slot] = value;
+        openCounts[slot] = 0;
+        openSums[slot] = 0;
+    }
+
+    private int findOpen(long windowStart) {
+        for (int i = 0; i < openStarts.length; i++) {
+            if (openCounts[i] > 0 && openStarts[i] == windowStart) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findFree() {
+        for (int i = 0; i < openCounts.length; i++) {
+            if (openCounts[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findOldest() {
+        int oldest = -1;
+        for (int i = 0; i < openStarts.length; i++) {
+            if (openCounts[i] > 0 && (oldest < 0 || openStarts[i] < openStarts[oldest])) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    private RollupWindow close(int slot) {
+        float average = (float) (openSums[slot] / openCounts[slot]);
+        RollupWindow closed = new RollupWindow(openStarts[slot], openCounts[slot], openMins[slot], openMaxs[slot],
+                                               average);
+        starts[next] = openStarts[slot];
+        counts[next] = openCounts[slot];
+        mins[next] = openMins[slot];
+        maxs[next] = openMaxs[slot];
+        averages[next] = average;
+        next = next + 1 == starts.length ? 0 : next + 1;
+        if (size < starts.length) {
+            size++;
+        }
+        lastClosedStart = openStarts[slot];
+        openCounts[slot] = 0;
+        return closed;
+    }
+}
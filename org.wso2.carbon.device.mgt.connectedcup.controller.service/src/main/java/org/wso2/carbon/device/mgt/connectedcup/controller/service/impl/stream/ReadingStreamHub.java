@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+
+import javax.servlet.AsyncContext;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans ingested readings out to live stream subscribers.
+ *
+ * Subscribers follow either a single device or every device of an owner. Each reading is formatted into a
+ * Server-Sent Events frame once and queued on every matching subscriber; nothing is formatted when nobody is
+ * subscribed. A heartbeat comment is sent to every subscriber periodically so that dead connections are found
+ * and released.
+ *
+ * Subscribers share {@code stream.writer.threads} writer threads. A subscriber whose write has been blocked for
+ * {@code stream.write.timeout}, because its client stopped reading, is aborted; that many stalled clients can
+ * hold up the other subscribers for at most that long.
+ *
+ * Listeners are told about every subscriber that starts or stops following the devices of an owner, so that
+ * the readings of those devices can be brought to this node when it does not receive all of them.
+ */
+public class ReadingStreamHub implements ReadingStreamHubMXBean {
+    private static final Log log = LogFactory.getLog(ReadingStreamHub.class);
+
+    private static final String MBEAN_TYPE = "ReadingStreamHub";
+    private static final int DEFAULT_MAX_SUBSCRIBERS = 1000;
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+    private static final int DEFAULT_WRITER_THREADS = 2;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+    private static final long DEFAULT_WRITE_TIMEOUT = 10000;
+    private static final long MIN_STALL_CHECK_INTERVAL = 100;
+    private static final String HEARTBEAT_FRAME = ": keep-alive\n\n";
+
+    private static final ReadingStreamHub instance = new ReadingStreamHub();
+
+    /**
+     * Told when a subscriber starts and stops following one or all devices of an owner.
+     */
+    public interface Listener {
+        void ownerWatched(String owner);
+
+        void ownerUnwatched(String owner);
+    }
+
+    private final ConcurrentMap<String, List<StreamSubscriber>> deviceSubscribers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<StreamSubscriber>> ownerSubscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final int maxSubscribers;
+    private final int bufferSize;
+    private final ExecutorService writer;
+    private final long writeTimeoutNanos;
+    private final ScheduledExecutorService heartbeat;
+    private final AtomicLong deliveredFrameCount = new AtomicLong();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private final AtomicLong rejectedSubscriberCount = new AtomicLong();
+    private final AtomicLong stalledSubscriberCount = new AtomicLong();
+
+    private ReadingStreamHub() {
+        this.maxSubscribers = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.STREAM_MAX_SUBSCRIBERS, DEFAULT_MAX_SUBSCRIBERS));
+        this.bufferSize = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.STREAM_BUFFER_SIZE, DEFAULT_BUFFER_SIZE));
+        int writerThreads = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.STREAM_WRITER_THREADS, DEFAULT_WRITER_THREADS));
+        long heartbeatInterval = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.STREAM_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_INTERVAL));
+        long writeTimeout = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.STREAM_WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT));
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+
+        this.writer = Executors.newFixedThreadPool(writerThreads, new DaemonThreadFactory("connectedcup-stream-writer"));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("connectedcup-stream-heartbeat"));
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sendHeartbeat();
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        long stallCheckInterval = Math.max(MIN_STALL_CHECK_INTERVAL, writeTimeout / 2);
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                abortStalled();
+            }
+        }, stallCheckInterval, stallCheckInterval, TimeUnit.MILLISECONDS);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    public static ReadingStreamHub getInstance() {
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers a live stream for a device, or for every device of the owner when deviceId is null.
+     *
+     * @return the subscriber, or null if the maximum number of subscribers has been reached.
+     */
+    StreamSubscriber subscribe(String owner, String deviceId, AsyncContext asyncContext, OutputStream outputStream) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            rejectedSubscriberCount.incrementAndGet();
+            return null;
+        }
+        StreamSubscriber subscriber = new StreamSubscriber(owner, deviceId, asyncContext, outputStream, bufferSize,
+                                                           writer, this);
+        if (deviceId != null) {
+            add(deviceSubscribers, deviceId, subscriber);
+        } else {
+            add(ownerSubscribers, owner, subscriber);
+        }
+        for (Listener listener : listeners) {
+            listener.ownerWatched(owner);
+        }
+        return subscriber;
+    }
+
+    void unsubscribe(StreamSubscriber subscriber) {
+        boolean removed;
+        if (subscriber.getDeviceId() != null) {
+            removed = remove(deviceSubscribers, subscriber.getDeviceId(), subscriber);
+        } else {
+            removed = remove(ownerSubscribers, subscriber.getOwner(), subscriber);
+        }
+        if (removed) {
+            subscriberCount.decrementAndGet();
+            for (Listener listener : listeners) {
+                listener.ownerUnwatched(subscriber.getOwner());
+            }
+        }
+    }
+
+    void delivered(int frames) {
+        deliveredFrameCount.addAndGet(frames);
+    }
+
+    /**
+     * Sends a reading that has just been ingested to the subscribers of its device and of its owner.
+     */
+    public void publish(String owner, String deviceId, String sensor, float value, long time) {
+        if (subscriberCount.get() == 0) {
+            return;
+        }
+        List<StreamSubscriber> forDevice = deviceId != null ? deviceSubscribers.get(deviceId) : null;
+        List<StreamSubscriber> forOwner = owner != null ? ownerSubscribers.get(owner) : null;
+        if (forDevice == null && forOwner == null) {
+            return;
+        }
+        String frame = createFrame(owner, deviceId, sensor, value, time);
+        offer(forDevice, frame);
+        offer(forOwner, frame);
+    }
+
+    public void shutdown() {
+        heartbeat.shutdownNow();
+        closeAll(deviceSubscribers);
+        closeAll(ownerSubscribers);
+        writer.shutdown();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    private void offer(List<StreamSubscriber> subscribers, String frame) {
+        if (subscribers == null) {
+            return;
+        }
+        for (StreamSubscriber subscriber : subscribers) {
+            if (!subscriber.offer(frame)) {
+                droppedFrameCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void sendHeartbeat() {
+        try {
+            for (List<StreamSubscriber> subscribers : deviceSubscribers.values()) {
+                offer(subscribers, HEARTBEAT_FRAME);
+            }
+            for (List<StreamSubscriber> subscribers : ownerSubscribers.values()) {
+                offer(subscribers, HEARTBEAT_FRAME);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error while sending live stream heartbeats", e);
+        }
+    }
+
+    private void abortStalled() {
+        try {
+            long now = System.nanoTime();
+            abortStalled(deviceSubscribers, now);
+            abortStalled(ownerSubscribers, now);
+        } catch (RuntimeException e) {
+            log.error("Error while checking live stream writes", e);
+        }
+    }
+
+    private void abortStalled(ConcurrentMap<String, List<StreamSubscriber>> subscribers, long now) {
+        for (List<StreamSubscriber> list : subscribers.values()) {
+            for (StreamSubscriber subscriber : list) {
+                if (subscriber.isStalled(now, writeTimeoutNanos)) {
+                    stalledSubscriberCount.incrementAndGet();
+                    log.warn("Live stream of owner [" + subscriber.getOwner() + "] has not taken a write for " +
+                             TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos) + "ms, closing it");
+                    subscriber.abort();
+                }
+            }
+        }
+    }
+
+    private static void add(ConcurrentMap<String, List<StreamSubscriber>> subscribers, String key,
+                            StreamSubscriber subscriber) {
+        while (true) {
+            List<StreamSubscriber> list = subscribers.get(key);
+            if (list == null) {
+                List<StreamSubscriber> newList = new CopyOnWriteArrayList<>();
+                list = subscribers.putIfAbsent(key, newList);
+                if (list == null) {
+                    list = newList;
+                }
+            }
+            list.add(subscriber);
+            // the list may have been dropped as empty while adding to it, in which case add to a fresh one
+            if (subscribers.get(key) == list) {
+                return;
+            }
+            list.remove(subscriber);
+        }
+    }
+
+    private static boolean remove(ConcurrentMap<String, List<StreamSubscriber>> subscribers, String key,
+                                  StreamSubscriber subscriber) {
+        List<StreamSubscriber> list = subscribers.get(key);
+        if (list == null || !list.remove(subscriber)) {
+            return false;
+        }
+        if (list.isEmpty()) {
+            subscribers.remove(key, list);
+        }
+        return true;
+    }
+
+    private static void closeAll(ConcurrentMap<String, List<StreamSubscriber>> subscribers) {
+        for (List<StreamSubscriber> list : subscribers.values()) {
+            for (StreamSubscriber subscriber : list) {
+                subscriber.close();
+            }
+        }
+    }
+
+    private static String createFrame(String owner, String deviceId, String sensor, float value, long time) {
+        StringBuilder frame = new StringBuilder(128);
+        frame.append("event: reading\ndata: {\"owner\":");
+        appendJsonString(frame, owner);
+        frame.append(",\"deviceId\":");
+        appendJsonString(frame, deviceId);
+        frame.append(",\"sensor\":");
+        appendJsonString(frame, sensor);
+        frame.append(",\"value\":").append(value);
+        frame.append(",\"time\":").append(time);
+        frame.append("}\n\n");
+        return frame.toString();
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    @Override
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    @Override
+    public int getMaxSubscribers() {
+        return maxSubscribers;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public long getDeliveredFrameCount() {
+        return deliveredFrameCount.get();
+    }
+
+    @Override
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    @Override
+    public long getRejectedSubscriberCount() {
+        return rejectedSubscriberCount.get();
+    }
+
+    @Override
+    public long getStalledSubscriberCount() {
+        return stalledSubscriberCount.get();
+    }
+
+    @Override
+    public long getWriteTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.device.mgt.common.Device;
+import org.wso2.carbon.device.mgt.common.DeviceManagementException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.auth.DeviceAuthorizationCache;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+import org.wso2.carbon.device.mgt.iot.DeviceManagement;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Streams readings to the client as Server-Sent Events while they are ingested.
+ *
+ * A client follows one device by giving the deviceId header (or query parameter) together with the owner
+ * header, or every device of the owner by giving the owner header alone. A stream of a single device is
+ * authorized like the other device operations; a stream of a whole owner is only opened if the request is not
+ * authenticated as another user and the owner has Connected Cups enrolled. The request is held open
+ * asynchronously, so an idle stream does not occupy a container thread.
+ */
+public class ReadingStreamServlet extends HttpServlet {
+    private static final Log log = LogFactory.getLog(ReadingStreamServlet.class);
+
+    private static final String SUPER_TENANT = "carbon.super";
+    private static final long DEFAULT_TIMEOUT = 30 * 60 * 1000;
+    private static final String EVENT_STREAM = "text/event-stream";
+
+    private long timeout;
+
+    @Override
+    public void init() throws ServletException {
+        timeout = ConnectedCupServiceConfig.getLong(ConnectedCupServiceConfig.STREAM_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String owner = request.getHeader("owner");
+        String deviceId = request.getHeader("deviceId");
+        if (deviceId == null) {
+            deviceId = request.getParameter("deviceId");
+        }
+        if (owner == null || owner.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        String remoteUser = request.getRemoteUser();
+        if (remoteUser != null && !remoteUser.equals(owner)) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        try {
+            boolean authorized = deviceId != null ?
+                    DeviceAuthorizationCache.getInstance().isExist(owner, SUPER_TENANT, deviceId) :
+                    hasDevices(owner);
+            if (!authorized) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+        } catch (DeviceManagementException e) {
+            log.error("Failed to authorize live stream of owner [" + owner + "]" +
+                      (deviceId != null ? " and device [" + deviceId + "]" : ""), e);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(EVENT_STREAM);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeout);
+
+        ReadingStreamHub hub = ReadingStreamHub.getInstance();
+        StreamSubscriber subscriber = hub.subscribe(owner, deviceId, asyncContext, response.getOutputStream());
+        if (subscriber == null) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
+            return;
+        }
+        asyncContext.addListener(new SubscriberListener(subscriber));
+        // open the stream at once so that clients and proxies see the headers before the first reading
+        subscriber.offer(": connected\n\n");
+        if (log.isDebugEnabled()) {
+            log.debug("Live stream opened for owner [" + owner + "]" +
+                      (deviceId != null ? " and device [" + deviceId + "]" : ""));
+        }
+    }
+
+    private static boolean hasDevices(String owner) throws DeviceManagementException {
+        DeviceManagement deviceManagement = new DeviceManagement(SUPER_TENANT);
+        try {
+            List<Device> devices = deviceManagement.getDeviceManagementService().getDevicesOfUser(owner);
+            if (devices != null) {
+                for (Device device : devices) {
+                    if (ConnectedCupConstants.DEVICE_TYPE.equals(device.getType())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            deviceManagement.endTenantFlow();
+        }
+    }
+
+    /**
+     * Releases the subscriber when the container ends the request, whether on timeout, error or completion.
+     */
+    private static class SubscriberListener implements AsyncListener {
+        private final StreamSubscriber subscriber;
+
+        private SubscriberListener(StreamSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            subscriber.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            subscriber.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            subscriber.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            // the stream is never restarted
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.AsyncContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One open Server-Sent Events connection.
+ *
+ * Frames are queued in a bounded ring; when a client reads slower than readings arrive the oldest frames are
+ * dropped so memory per subscriber stays fixed. Queued frames are written by the shared writer pool, at most one
+ * task per subscriber at a time, so frames of a subscriber are written in order.
+ *
+ * Writes block while the client is not reading. The start of the write in progress is kept so that the
+ * {@link ReadingStreamHub} can abort a subscriber whose write has been blocked for too long and give its writer
+ * thread back to the others.
+ */
+class StreamSubscriber implements Runnable {
+    private static final Log log = LogFactory.getLog(StreamSubscriber.class);
+
+    private final String owner;
+    private final String deviceId;
+    private final AsyncContext asyncContext;
+    private final OutputStream outputStream;
+    private final Executor writer;
+    private final ReadingStreamHub hub;
+
+    private final String[] frames;
+    private int head;
+    private int size;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // System.nanoTime() at the start of the write or flush in progress, 0 while not writing
+    private volatile long writeStartedAt;
+
+    StreamSubscriber(String owner, String deviceId, AsyncContext asyncContext, OutputStream outputStream,
+                     int bufferSize, Executor writer, ReadingStreamHub hub) {
+        this.owner = owner;
+        this.deviceId = deviceId;
+        this.asyncContext = asyncContext;
+        this.outputStream = outputStream;
+        this.frames = new String[bufferSize];
+        this.writer = writer;
+        this.hub = hub;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the device this subscriber follows, or null if it follows every device of its owner.
+     */
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Queues a frame for writing.
+     *
+     * @return false if the oldest queued frame had to be dropped to make room.
+     */
+    boolean offer(String frame) {
+        if (closed.get()) {
+            return true;
+        }
+        boolean dropped = false;
+        synchronized (this) {
+            if (size == frames.length) {
+                head = head + 1 == frames.length ? 0 : head + 1;
+                size--;
+                dropped = true;
+            }
+            int tail = head + size;
+            frames[tail >= frames.length ? tail - frames.length : tail] = frame;
+            size++;
+        }
+        schedule();
+        return !dropped;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            writer.execute(this);
+        }
+    }
+
+    private synchronized String poll() {
+        if (size == 0) {
+            return null;
+        }
+        String frame = frames[head];
+        frames[head] = null;
+        head = head + 1 == frames.length ? 0 : head + 1;
+        size--;
+        return frame;
+    }
+
+    private synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            String frame;
+            int written = 0;
+            while ((frame = poll()) != null) {
+                writeStartedAt = System.nanoTime();
+                outputStream.write(frame.getBytes(StandardCharsets.UTF_8));
+                written++;
+            }
+            if (written > 0) {
+                writeStartedAt = System.nanoTime();
+                outputStream.flush();
+                hub.delivered(written);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Live stream subscriber of owner [" + owner + "] disconnected", e);
+            }
+            close();
+            return;
+        } finally {
+            writeStartedAt = 0;
+            scheduled.set(false);
+        }
+        // a frame may have been queued after the last poll but before the flag was cleared
+        if (!isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return true if a write or flush has been blocked for longer than the given time.
+     */
+    boolean isStalled(long now, long timeoutNanos) {
+        long startedAt = writeStartedAt;
+        return startedAt != 0 && now - startedAt > timeoutNanos;
+    }
+
+    /**
+     * Closes the subscriber and its output stream, which makes the container fail the blocked write.
+     */
+    void abort() {
+        close();
+        try {
+            outputStream.close();
+        } catch (IOException | RuntimeException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to close the live stream of owner [" + owner + "]", e);
+            }
+        }
+    }
+
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            hub.unsubscribe(this);
+            try {
+                asyncContext.complete();
+            } catch (RuntimeException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Live stream of owner [" + owner + "] was already completed", e);
+                }
+            }
+        }
+    }
+}
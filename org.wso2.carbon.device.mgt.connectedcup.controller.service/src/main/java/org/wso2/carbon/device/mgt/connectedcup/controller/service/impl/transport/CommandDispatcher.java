@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.DevicePresence;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends commands to devices off the caller's thread.
+ *
+ * Commands are published by {@code mqtt.command.inflight} sender threads, so at most that many publishes are
+ * waiting on the broker at a time. Each device is hashed to one sender, which keeps the commands of a device in
+ * order. The senders share {@code mqtt.command.queue.capacity} queued commands; a command that does not fit in
+ * the queue of its sender fails straight away rather than blocking the caller.
+ *
+ * While the broker connection of a device is down, its sender holds the commands in its queue and replays them
+ * in order once the connection is back, instead of failing each of them. A command that has been queued for
+ * {@code mqtt.offline.max.wait} without the connection coming back fails. With the default number of senders, a
+ * multiple of the number of connections, all devices of a sender share a connection, so a lost connection holds
+ * up no other devices.
+ *
+ * Commands for a device that {@link DevicePresence} reports offline are parked instead of being published to
+ * nobody. Only the last command per resource is kept, so e.g. a later sampling policy replaces an earlier one
+ * and both callers are answered when it is sent. Parked commands are queued as soon as the device sends a
+ * reading again. At most {@code mqtt.command.max.parked.devices} devices can have parked commands. A command
+ * parked for longer than {@code mqtt.offline.max.wait} fails; a command that replaces a parked one takes over its
+ * parking time, so no caller waits longer than that.
+ */
+class CommandDispatcher implements CommandDispatcherMXBean, DevicePresence.Listener {
+    private static final Log log = LogFactory.getLog(CommandDispatcher.class);
+
+    private static final String MBEAN_TYPE = "CommandDispatcher";
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    // the default maximum of in-flight messages of a Paho client, per broker connection
+    private static final int DEFAULT_INFLIGHT_PER_CONNECTION = 10;
+    private static final int DEFAULT_MAX_PARKED_DEVICES = 10000;
+    private static final long DEFAULT_OFFLINE_MAX_WAIT = 60000;
+    private static final long MIN_SWEEP_INTERVAL = 100;
+    private static final LatencyHistogram PUBLISH_LATENCY =
+            LatencyMetrics.getInstance().getHistogram("mqtt.publish_device_data");
+
+    /**
+     * Publishes a message to the broker, blocking until the broker has it.
+     */
+    interface Sender {
+        void send(String deviceId, String topic, MqttMessage message) throws TransportHandlerException;
+
+        boolean isConnected(String deviceId);
+
+        /**
+         * @return false if the connection of the device is still down once the timeout has passed.
+         */
+        boolean awaitConnected(String deviceId, long timeout, TimeUnit unit) throws InterruptedException;
+    }
+
+    private static class Command {
+        final String deviceId;
+        final String resource;
+        final String topic;
+        final byte[] payload;
+        final int qos;
+        final List<CommandFuture> futures = new ArrayList<>(1);
+        long queuedAt;
+        long parkedAt;
+
+        Command(String deviceId, String resource, String topic, byte[] payload, int qos) {
+            this.deviceId = deviceId;
+            this.resource = resource;
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+
+        void complete() {
+            for (CommandFuture future : futures) {
+                future.complete();
+            }
+        }
+
+        void fail(Throwable cause) {
+            for (CommandFuture future : futures) {
+                future.fail(cause);
+            }
+        }
+    }
+
+    private final Sender sender;
+    private final List<BlockingQueue<Command>> queues;
+    private final int queueCapacity;
+    private final Thread[] senders;
+    private final ScheduledExecutorService sweeper;
+    private final int maxParkedDevices;
+    private final long offlineMaxWaitNanos;
+    // guarded by itself
+    private final Map<String, Map<String, Command>> parked = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong parkedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * @param connections the number of broker connections the sender publishes over.
+     */
+    CommandDispatcher(Sender sender, int connections) {
+        this.sender = sender;
+        this.maxParkedDevices = Math.max(0, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.MQTT_COMMAND_MAX_PARKED_DEVICES, DEFAULT_MAX_PARKED_DEVICES));
+        this.offlineMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.MQTT_OFFLINE_MAX_WAIT, DEFAULT_OFFLINE_MAX_WAIT)));
+        int senderCount = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.MQTT_COMMAND_INFLIGHT, DEFAULT_INFLIGHT_PER_CONNECTION * connections));
+        int capacity = Math.max(1, ConnectedCupServiceConfig.getInt(
+                ConnectedCupServiceConfig.MQTT_COMMAND_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY) / senderCount);
+        this.queueCapacity = capacity * senderCount;
+        this.queues = new ArrayList<>(senderCount);
+        this.senders = new Thread[senderCount];
+        for (int i = 0; i < senderCount; i++) {
+            final BlockingQueue<Command> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+            senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop(queue);
+                }
+            }, "connectedcup-mqtt-command-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+        long sweepInterval = Math.max(MIN_SWEEP_INTERVAL, TimeUnit.NANOSECONDS.toMillis(offlineMaxWaitNanos) / 4);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connectedcup-mqtt-command-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireParked();
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        DevicePresence.getInstance().addListener(this);
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    /**
+     * Queues a command, or parks it while its device is offline.
+     */
+    CommandFuture submit(String deviceId, String resource, String topic, byte[] payload, int qos) {
+        Command command = new Command(deviceId, resource, topic, payload, qos);
+        CommandFuture future = new CommandFuture();
+        command.futures.add(future);
+        submittedCount.incrementAndGet();
+        DevicePresence devicePresence = DevicePresence.getInstance();
+        if (devicePresence.isOffline(deviceId) && park(command)) {
+            // the device may have come back while parking, in which case nothing would release the command
+            if (!devicePresence.isOffline(deviceId)) {
+                deviceOnline(deviceId);
+            }
+            return future;
+        }
+        enqueue(command);
+        return future;
+    }
+
+    @Override
+    public void deviceOnline(String deviceId) {
+        Map<String, Command> commands;
+        synchronized (parked) {
+            commands = parked.remove(deviceId);
+        }
+        if (commands == null) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Device [" + deviceId + "] is back, sending " + commands.size() + " parked commands");
+        }
+        for (Command command : commands.values()) {
+            enqueue(command);
+        }
+    }
+
+    /**
+     * Fails the commands that are still queued or parked and stops the senders.
+     */
+    void shutdown() {
+        stopped = true;
+        DevicePresence.getInstance().removeListener(this);
+        sweeper.shutdownNow();
+        for (Thread thread : senders) {
+            thread.interrupt();
+        }
+        TransportHandlerException cause = new TransportHandlerException("MQTT connector is shutting down");
+        List<Command> remaining = new ArrayList<>();
+        for (BlockingQueue<Command> queue : queues) {
+            queue.drainTo(remaining);
+        }
+        synchronized (parked) {
+            for (Map<String, Command> commands : parked.values()) {
+                remaining.addAll(commands.values());
+            }
+            parked.clear();
+        }
+        for (Command command : remaining) {
+            command.fail(cause);
+        }
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+    }
+
+    /**
+     * @return false if the command could not be parked because too many devices have parked commands.
+     */
+    private boolean park(Command command) {
+        synchronized (parked) {
+            Map<String, Command> commands = parked.get(command.deviceId);
+            if (commands == null) {
+                if (parked.size() >= maxParkedDevices) {
+                    return false;
+                }
+                commands = new LinkedHashMap<>();
+                parked.put(command.deviceId, commands);
+            }
+            // remove first so that the command moves to the end and commands keep the order they were given in
+            Command previous = commands.remove(command.resource);
+            if (previous != null) {
+                command.futures.addAll(0, previous.futures);
+                command.parkedAt = previous.parkedAt;
+                supersededCount.incrementAndGet();
+            } else {
+                command.parkedAt = System.nanoTime();
+            }
+            commands.put(command.resource, command);
+        }
+        parkedCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Device [" + command.deviceId + "] is offline, parked its " + command.resource + " command");
+        }
+        return true;
+    }
+
+    /**
+     * Fails the commands that have been parked for longer than {@code mqtt.offline.max.wait}.
+     */
+    private void expireParked() {
+        List<Command> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (parked) {
+            Iterator<Map<String, Command>> devices = parked.values().iterator();
+            while (devices.hasNext()) {
+                Map<String, Command> commands = devices.next();
+                Iterator<Command> deviceCommands = commands.values().iterator();
+                while (deviceCommands.hasNext()) {
+                    Command command = deviceCommands.next();
+                    if (now - command.parkedAt >= offlineMaxWaitNanos) {
+                        expired.add(command);
+                        deviceCommands.remove();
+                    }
+                }
+                if (commands.isEmpty()) {
+                    devices.remove();
+                }
+            }
+        }
+        for (Command command : expired) {
+            expiredCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Device [" + command.deviceId + "] did not come back within " +
+                          TimeUnit.NANOSECONDS.toMillis(offlineMaxWaitNanos) + "ms, dropping its parked " +
+                          command.resource + " command");
+            }
+            command.fail(new TransportHandlerException("Device [" + command.deviceId + "] is offline, command " +
+                                                       "was not sent"));
+        }
+    }
+
+    private void enqueue(Command command) {
+        BlockingQueue<Command> queue = queues.get((command.deviceId.hashCode() & Integer.MAX_VALUE) % queues.size());
+        command.queuedAt = System.nanoTime();
+        if (stopped || !queue.offer(command)) {
+            rejectedCount.incrementAndGet();
+            command.fail(new TransportHandlerException("MQTT command queue is full, command to device [" +
+                                                       command.deviceId + "] was not sent"));
+        }
+    }
+
+    private void sendLoop(BlockingQueue<Command> queue) {
+        while (!stopped) {
+            Command command;
+            try {
+                command = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                send(command);
+            } catch (InterruptedException e) {
+                command.fail(new TransportHandlerException("MQTT connector is shutting down"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes a command, first waiting for the connection of its device if that is down. A publish that fails
+     * because the connection dropped under it is retried once the connection is back.
+     */
+    private void send(Command command) throws InterruptedException {
+        long deadline = command.queuedAt + offlineMaxWaitNanos;
+        boolean waited = false;
+        while (true) {
+            if (!sender.isConnected(command.deviceId)) {
+                waited = true;
+                if (!awaitConnected(command.deviceId, deadline)) {
+                    expiredCount.incrementAndGet();
+                    if (log.isDebugEnabled()) {
+                        log.debug("No broker connection within " + TimeUnit.NANOSECONDS.toMillis(offlineMaxWaitNanos) +
+                                  "ms for the " + command.resource + " command to device [" + command.deviceId +
+                                  "]");
+                    }
+                    command.fail(new TransportHandlerException("No connection to the MQTT broker, command to " +
+                                                               "device [" + command.deviceId + "] was not sent"));
+                    return;
+                }
+            }
+            inFlight.incrementAndGet();
+            long startTime = System.nanoTime();
+            try {
+                MqttMessage message = new MqttMessage(command.payload);
+                message.setQos(command.qos);
+                message.setRetained(false);
+                sender.send(command.deviceId, command.topic, message);
+                sentCount.incrementAndGet();
+                if (waited) {
+                    delayedCount.incrementAndGet();
+                }
+                command.complete();
+                return;
+            } catch (TransportHandlerException | RuntimeException e) {
+                if (!sender.isConnected(command.deviceId) && System.nanoTime() < deadline) {
+                    continue;
+                }
+                failedCount.incrementAndGet();
+                log.error("Failed to send " + command.resource + " command to device [" + command.deviceId + "]", e);
+                command.fail(e);
+                return;
+            } finally {
+                inFlight.decrementAndGet();
+                PUBLISH_LATENCY.recordSince(startTime);
+            }
+        }
+    }
+
+    private boolean awaitConnected(String deviceId, long deadline) throws InterruptedException {
+        waitingCount.incrementAndGet();
+        try {
+            return sender.awaitConnected(deviceId, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            waitingCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int getInFlightLimit() {
+        return senders.length;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getOfflineMaxWait() {
+        return TimeUnit.NANOSECONDS.toMillis(offlineMaxWaitNanos);
+    }
+
+    @Override
+    public int getWaitingForConnection() {
+        return waitingCount.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Command> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getParkedDeviceCount() {
+        synchronized (parked) {
+            return parked.size();
+        }
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public long getParkedCount() {
+        return parkedCount.get();
+    }
+
+    @Override
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    @Override
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+}
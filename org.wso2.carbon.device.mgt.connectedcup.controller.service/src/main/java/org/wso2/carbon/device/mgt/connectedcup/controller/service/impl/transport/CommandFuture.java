@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outcome of a command handed to the {@link ConnectedCupMQTTConnector}: done once the broker has taken the
+ * command, or once sending it failed. A command for an offline device stays pending until the device is back.
+ */
+public class CommandFuture implements Future<Void> {
+    private static final Log log = LogFactory.getLog(CommandFuture.class);
+
+    private final List<Runnable> listeners = new ArrayList<>();
+    private boolean done;
+    private Throwable cause;
+
+    /**
+     * @return a future of a command that needs no sending, e.g. one collapsed into an identical command.
+     */
+    static CommandFuture completed() {
+        CommandFuture future = new CommandFuture();
+        future.complete();
+        return future;
+    }
+
+    /**
+     * Registers a callback to run once the command is sent or has failed. Runs immediately, on the calling
+     * thread, if that has already happened.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * @return why the command could not be sent, or null if it was sent or is still pending.
+     */
+    public synchronized Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * @return true once the broker has taken the command.
+     */
+    public synchronized boolean isSent() {
+        return done && cause == null;
+    }
+
+    void complete() {
+        finish(null);
+    }
+
+    void fail(Throwable cause) {
+        finish(cause);
+    }
+
+    private void finish(Throwable cause) {
+        List<Runnable> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.cause = cause;
+            this.done = true;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+            notifyAll();
+        }
+        for (Runnable listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private static void notifyListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.error("Error in a command listener", e);
+        }
+    }
+
+    /**
+     * Commands cannot be taken back once queued.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private Void getResult() throws ExecutionException {
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return null;
+    }
+}
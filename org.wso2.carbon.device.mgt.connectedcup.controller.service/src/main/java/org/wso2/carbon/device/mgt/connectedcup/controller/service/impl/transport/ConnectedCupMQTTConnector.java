@@ -20,9 +20,17 @@ package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transpor
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingRead;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.correlation.PendingReadRegistry;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
 import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.MqttIngestPool;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.MqttTelemetryDecoder;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest.TelemetryProcessor;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit.RateLimiter;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.stream.ReadingStreamHub;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
 import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
 import org.wso2.carbon.device.mgt.iot.config.server.DeviceManagementConfigurationManager;
@@ -31,56 +39,187 @@ import org.wso2.carbon.device.mgt.iot.sensormgt.SensorDataManager;
 import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
 import org.wso2.carbon.device.mgt.iot.transport.mqtt.MQTTTransportHandler;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Calendar;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("no JAX-WS annotation")
-public class ConnectedCupMQTTConnector extends MQTTTransportHandler {
+public class ConnectedCupMQTTConnector extends MQTTTransportHandler implements ConnectedCupMQTTConnectorMXBean {
     private static Log log = LogFactory.getLog(ConnectedCupMQTTConnector.class);
 
+    private static final String MBEAN_TYPE = "ConnectedCupMQTTConnector";
+    private static final long DEFAULT_COALESCING_WINDOW = 1000;
+    private static final int MAX_RECENT_COMMANDS = 10000;
+    private static final int MAX_CACHED_TOPICS = 100000;
+    private static final int MAX_CACHED_PAYLOADS = 64;
+    private static final int DEFAULT_CONNECTIONS = 1;
+    private static final String SHARED_SUBSCRIPTION_PREFIX = "$share/";
+
     private static String serverName = DeviceManagementConfigurationManager.getInstance().
             getDeviceManagementServerInfo().getName();
 
     private static String subscribeTopic = serverName + File.separator + "+" + File.separator +
-                                           ConnectedCupConstants.DEVICE_TYPE + File.separator + "+" + File.separator + "publisher";
+                                           ConnectedCupConstants.DEVICE_TYPE + File.separator + "+" + File.separator +
+                                           MqttTelemetryDecoder.PUBLISHER_TOPIC_SUFFIX;
 
     private static String iotServerSubscriber = UUID.randomUUID().toString().substring(0, 5);
 
-    private ConnectedCupMQTTConnector() {
+    // prefix of the client ids of the pool, unique per connector so that several can share a JVM and a broker
+    private final String clientIdPrefix = UUID.randomUUID().toString().substring(0, 5);
+    private final String subscription;
+
+    // last send time of each distinct command, used to collapse identical commands sent close together
+    private final ConcurrentMap<String, Long> recentCommands = new ConcurrentHashMap<>();
+    private final long coalescingWindowNanos;
+    // command topic of each device, keyed by device id
+    private final ConcurrentMap<String, CommandTopic> commandTopics = new ConcurrentHashMap<>();
+    // encoded command payloads by resource and state, shared by all messages carrying the same command
+    private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> commandPayloads = new ConcurrentHashMap<>();
+    private final MqttConnectionPool connectionPool;
+    // null unless readings are subscribed to through a shared subscription group
+    private final ReplySubscriptions replySubscriptions;
+    private final ReadingStreamHub.Listener streamListener;
+    private final CommandDispatcher commandDispatcher;
+    private final AtomicLong suppressedCommandCount = new AtomicLong();
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+    private final AtomicLong malformedMessageCount = new AtomicLong();
+    private final AtomicLong throttledMessageCount = new AtomicLong();
+
+    private ConnectedCupMQTTConnector() throws TransportHandlerException {
         super(iotServerSubscriber, ConnectedCupConstants.DEVICE_TYPE,
               MqttConfig.getInstance().getMqttQueueEndpoint(), subscribeTopic);
-    }
-
-    @Override
-    public void connect() {
-        Runnable connector = new Runnable() {
-            public void run() {
-                while (!isConnected()) {
-                    try {
-                        connectToQueue();
-                        subscribeToQueue();
-                    } catch (TransportHandlerException e) {
-                        log.warn("Connection/Subscription to MQTT Broker at: " + mqttBrokerEndPoint + " failed");
-                        try {
-                            Thread.sleep(timeoutInterval);
-                        } catch (InterruptedException ex) {
-                            log.error("MQTT-Subscriber: Thread Sleep Interrupt Exception.", ex);
-                        }
+        this.coalescingWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.MQTT_COALESCING_WINDOW, DEFAULT_COALESCING_WINDOW)));
+        this.subscription = getSubscription(subscribeTopic);
+        // the broker connections are those of the pool, the client of the base handler is never connected
+        this.connectionPool = new MqttConnectionPool(
+                ConnectedCupServiceConfig.getInt(ConnectedCupServiceConfig.MQTT_CONNECTIONS, DEFAULT_CONNECTIONS),
+                clientIdPrefix, mqttBrokerEndPoint, subscription, DEFAULT_MQTT_QUALITY_OF_SERVICE,
+                new MqttConnection.MessageHandler() {
+                    @Override
+                    public void messageArrived(String topic, MqttMessage message) {
+                        ingest(topic, message);
                     }
+                });
+        if (subscription.equals(subscribeTopic)) {
+            this.replySubscriptions = null;
+            this.streamListener = null;
+        } else {
+            this.replySubscriptions = new ReplySubscriptions(
+                    connectionPool.getSize(), clientIdPrefix + "-replies", mqttBrokerEndPoint,
+                    DEFAULT_MQTT_QUALITY_OF_SERVICE, new MqttConnection.MessageHandler() {
+                        @Override
+                        public void messageArrived(String topic, MqttMessage message) {
+                            deliver(topic, message);
+                        }
+                    });
+            this.streamListener = new ReadingStreamHub.Listener() {
+                @Override
+                public void ownerWatched(String owner) {
+                    replySubscriptions.acquire(getReplyTopic(owner));
+                }
+
+                @Override
+                public void ownerUnwatched(String owner) {
+                    replySubscriptions.release(getReplyTopic(owner));
                 }
+            };
+            // reads and live streams of this node are served by the reply subscriptions
+            MqttIngestPool.getInstance().setDeliverLocally(false);
+            ReadingStreamHub.getInstance().addListener(streamListener);
+        }
+        this.commandDispatcher = new CommandDispatcher(new CommandDispatcher.Sender() {
+            @Override
+            public void send(String deviceId, String topic, MqttMessage message) throws TransportHandlerException {
+                connectionPool.publish(deviceId, topic, message);
+            }
+
+            @Override
+            public boolean isConnected(String deviceId) {
+                return connectionPool.isConnected(deviceId);
+            }
+
+            @Override
+            public boolean awaitConnected(String deviceId, long timeout, TimeUnit unit) throws InterruptedException {
+                return connectionPool.awaitConnected(deviceId, timeout, unit);
             }
-        };
+        }, connectionPool.getSize());
+        ConnectedCupServiceUtils.registerMBean(MBEAN_TYPE, this);
+    }
+
+    /**
+     * With {@code mqtt.shared.group} set, the readings are subscribed to through the shared subscription of that
+     * group: the broker hands each reading to one of the nodes in the group instead of to all of them, so adding
+     * nodes splits the load. Readings of a device reach one node at a time as long as the broker is set to
+     * dispatch by topic (e.g. a hash_topic or sticky strategy); each node keeps them in order through its
+     * single subscribing connection and the per-device workers of the {@link MqttIngestPool}.
+     *
+     * Only ingest is shared. The reply to a read command, and the readings of a live stream, are needed on the
+     * node that sent the command or serves the stream, which is usually not the node the broker picks. Each node
+     * therefore also subscribes, on a connection of its own and outside the group, to the readings of the owners
+     * whose devices it is waiting for, see {@link ReplySubscriptions}.
+     */
+    private static String getSubscription(String topic) {
+        String group = ConnectedCupServiceConfig.getString(ConnectedCupServiceConfig.MQTT_SHARED_GROUP, "");
+        if (group.isEmpty()) {
+            return topic;
+        }
+        if (group.indexOf('/') >= 0 || group.indexOf('+') >= 0 || group.indexOf('#') >= 0) {
+            log.warn("Invalid shared subscription group [" + group + "], subscribing to " + topic +
+                     " without a group");
+            return topic;
+        }
+        if (!ConnectedCupServiceConfig.getBoolean(ConnectedCupServiceConfig.INGEST_DEVICE_TIME, false)) {
+            log.warn("Readings of a device may be handled by different nodes of shared subscription group [" +
+                     group + "] around a failover; set " + ConnectedCupServiceConfig.PROPERTY_PREFIX +
+                     ConnectedCupServiceConfig.INGEST_DEVICE_TIME + " to keep them in device order");
+        }
+        return SHARED_SUBSCRIPTION_PREFIX + group + "/" + topic;
+    }
 
-        Thread connectorThread = new Thread(connector);
-        connectorThread.setDaemon(true);
-        connectorThread.start();
+    /**
+     * Topic of the readings of all devices of an owner.
+     */
+    private static String getReplyTopic(String owner) {
+        return serverName + File.separator + owner + File.separator + ConnectedCupConstants.DEVICE_TYPE +
+               File.separator + "+" + File.separator + MqttTelemetryDecoder.PUBLISHER_TOPIC_SUFFIX;
     }
 
+    private static class CommandTopic {
+        final String owner;
+        final String topic;
+
+        CommandTopic(String owner, String topic) {
+            this.owner = owner;
+            this.topic = topic;
+        }
+    }
 
+    @Override
+    public void connect() {
+        connectionPool.connect();
+        if (replySubscriptions != null) {
+            replySubscriptions.connect();
+        }
+    }
 
+    /**
+     * @return true if every connection of the pool is up.
+     */
+    @Override
+    public boolean isConnected() {
+        return connectionPool.getConnectedCount() == connectionPool.getSize();
+    }
+
+    /**
+     * Queues a command without waiting for the broker; only fails if the command could not even be queued.
+     */
     @Override
     public void publishDeviceData(String... publishData) throws TransportHandlerException {
         if (publishData.length != 4) {
@@ -89,69 +228,311 @@ public class ConnectedCupMQTTConnector extends MQTTTransportHandler {
             log.error(errorMsg);
             throw new TransportHandlerException(errorMsg);
         }
+        CommandFuture future = sendCommand(publishData[0], publishData[1], publishData[2], publishData[3]);
+        checkQueued(future, publishData[1]);
+    }
 
-        String deviceOwner = publishData[0];
-        String deviceId = publishData[1];
-        String resource = publishData[2];
-        String state = publishData[3];
+    /**
+     * Hands a command to the outbound queue. Commands to a device that has gone quiet are held until it sends
+     * a reading again, keeping only the latest state per resource.
+     *
+     * @return a future that is done once the broker has taken the command, or sending it failed.
+     */
+    public CommandFuture sendCommand(String deviceOwner, String deviceId, String resource, String state) {
+        final String commandKey = getCommandKey(deviceOwner, deviceId, resource, state);
+        if (!acquireCommand(commandKey)) {
+            suppressedCommandCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Suppressed duplicate command [" + resource + ":" + state + "] to device [" + deviceId +
+                          "], an identical command was sent within the last " +
+                          TimeUnit.NANOSECONDS.toMillis(coalescingWindowNanos) + "ms");
+            }
+            return CommandFuture.completed();
+        }
 
-        MqttMessage pushMessage = new MqttMessage();
-        String publishTopic =
-                serverName + File.separator + deviceOwner + File.separator +
-                        ConnectedCupConstants.DEVICE_TYPE + File.separator + deviceId;
+        final CommandFuture future = commandDispatcher.submit(deviceId, resource,
+                                                              getCommandTopic(deviceOwner, deviceId),
+                                                              getCommandPayload(resource, state),
+                                                              DEFAULT_MQTT_QUALITY_OF_SERVICE);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.getCause() != null) {
+                    // let the next caller retry instead of being suppressed
+                    recentCommands.remove(commandKey);
+                }
+            }
+        });
+        return future;
+    }
 
-        try {
+    /**
+     * Sends the command of a read that waits for the device's reply, unless another caller of the same read has
+     * already sent it. The coalescing window of the command ends as soon as the read completes or expires, and
+     * the read is expired straight away if the command cannot be sent.
+     */
+    public void sendReadCommand(final String deviceOwner, final String deviceId, final String resource,
+                                final PendingRead pendingRead) throws TransportHandlerException {
+        if (!pendingRead.claimCommand()) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Sending request to read " + pendingRead.getSensor() + " of device [" + deviceId +
+                      "] via MQTT");
+        }
+        if (replySubscriptions != null) {
+            // subscribed before the command goes out, so that the reply reaches this node
+            final String replyTopic = getReplyTopic(deviceOwner);
+            replySubscriptions.acquire(replyTopic);
+            pendingRead.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    replySubscriptions.release(replyTopic);
+                }
+            });
+        }
+        pendingRead.addListener(new Runnable() {
+            @Override
+            public void run() {
+                completeCommand(deviceOwner, deviceId, resource, "");
+            }
+        });
+        final CommandFuture future = sendCommand(deviceOwner, deviceId, resource, "");
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.getCause() != null) {
+                    PendingReadRegistry.getInstance().expire(pendingRead);
+                }
+            }
+        });
+        checkQueued(future, deviceId);
+    }
 
-            String actualMessage = resource + ":" + state;
+    private static void checkQueued(CommandFuture future, String deviceId) throws TransportHandlerException {
+        Throwable cause = future.getCause();
+        if (cause != null) {
+            throw new TransportHandlerException("Unable to send command to device [" + deviceId + "]", cause);
+        }
+    }
 
-            pushMessage.setPayload(actualMessage.getBytes(StandardCharsets.UTF_8));
-            pushMessage.setQos(DEFAULT_MQTT_QUALITY_OF_SERVICE);
-            pushMessage.setRetained(false);
+    private String getCommandTopic(String deviceOwner, String deviceId) {
+        CommandTopic commandTopic = commandTopics.get(deviceId);
+        if (commandTopic == null || !commandTopic.owner.equals(deviceOwner)) {
+            if (commandTopics.size() >= MAX_CACHED_TOPICS) {
+                commandTopics.clear();
+            }
+            commandTopic = new CommandTopic(deviceOwner,
+                                            ConnectedCupServiceUtils.getCommandTopic(serverName, deviceOwner,
+                                                                                     deviceId));
+            commandTopics.put(deviceId, commandTopic);
+        }
+        return commandTopic.topic;
+    }
 
-            publishToQueue(publishTopic, pushMessage);
+    private byte[] getCommandPayload(String resource, String state) {
+        ConcurrentMap<String, byte[]> payloads = commandPayloads.get(resource);
+        if (payloads == null) {
+            if (commandPayloads.size() >= MAX_CACHED_PAYLOADS) {
+                commandPayloads.clear();
+            }
+            payloads = new ConcurrentHashMap<>();
+            ConcurrentMap<String, byte[]> existing = commandPayloads.putIfAbsent(resource, payloads);
+            if (existing != null) {
+                payloads = existing;
+            }
+        }
+        byte[] payload = payloads.get(state);
+        if (payload == null) {
+            if (payloads.size() >= MAX_CACHED_PAYLOADS) {
+                payloads.clear();
+            }
+            payload = ConnectedCupServiceUtils.getCommandPayload(resource, state);
+            payloads.put(state, payload);
+        }
+        return payload;
+    }
 
-        } catch (Exception e) {
-            String errorMsg = "Preparing Secure payload failed for device - [" + deviceId + "] of owner - " +
-                    "[" + deviceOwner + "].";
-            log.error(errorMsg);
-            throw new TransportHandlerException(errorMsg, e);
+    /**
+     * Claims the right to send a command. Identical commands (same owner, device, resource and state) are
+     * collapsed into one for the length of the coalescing window; callers of the suppressed commands are served
+     * by the device's single reply.
+     *
+     * @return false if an identical command was sent within the coalescing window.
+     */
+    private boolean acquireCommand(String commandKey) {
+        if (coalescingWindowNanos == 0) {
+            return true;
         }
+        long now = System.nanoTime();
+        Long lastSent = recentCommands.get(commandKey);
+        if (lastSent == null) {
+            if (recentCommands.size() >= MAX_RECENT_COMMANDS) {
+                pruneRecentCommands(now);
+            }
+            return recentCommands.putIfAbsent(commandKey, now) == null;
+        }
+        return now - lastSent >= coalescingWindowNanos && recentCommands.replace(commandKey, lastSent, now);
+    }
+
+    /**
+     * Ends the coalescing window of a command once the device has answered it, so that the next identical
+     * command is sent to the device instead of being suppressed.
+     */
+    public void completeCommand(String deviceOwner, String deviceId, String resource, String state) {
+        recentCommands.remove(getCommandKey(deviceOwner, deviceId, resource, state));
     }
 
+    private static String getCommandKey(String deviceOwner, String deviceId, String resource, String state) {
+        return deviceOwner + File.separator + deviceId + File.separator + resource + ":" + state;
+    }
+
+    private void pruneRecentCommands(long now) {
+        for (Map.Entry<String, Long> entry : recentCommands.entrySet()) {
+            if (now - entry.getValue() >= coalescingWindowNanos) {
+                recentCommands.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
 
     @Override
-    public void processIncomingMessage(MqttMessage mqttMessage, String... strings) throws TransportHandlerException {
+    public String getSubscription() {
+        return subscription;
+    }
 
+    @Override
+    public int getConnectionCount() {
+        return connectionPool.getSize();
     }
 
+    @Override
+    public int getConnectedCount() {
+        return connectionPool.getConnectedCount();
+    }
 
     @Override
-    public void disconnect() {
-        Runnable stopConnection = new Runnable() {
-            public void run() {
-                while (isConnected()) {
-                    try {
-                        closeConnection();
-                    } catch (MqttException e) {
-                        if (log.isDebugEnabled()) {
-                            log.warn("Unable to 'STOP' MQTT connection at broker at: " + mqttBrokerEndPoint
-                                             + " for device-type - " + ConnectedCupConstants.DEVICE_TYPE, e);
-                        }
+    public long getCoalescingWindow() {
+        return TimeUnit.NANOSECONDS.toMillis(coalescingWindowNanos);
+    }
 
-                        try {
-                            Thread.sleep(timeoutInterval);
-                        } catch (InterruptedException e1) {
-                            log.error("MQTT-Terminator: Thread Sleep Interrupt Exception at device-type - " +
-                                                                        ConnectedCupConstants.DEVICE_TYPE, e1);
-                        }
-                    }
-                }
+    @Override
+    public long getPublishedCommandCount() {
+        return commandDispatcher.getSentCount();
+    }
+
+    @Override
+    public long getSuppressedCommandCount() {
+        return suppressedCommandCount.get();
+    }
+
+    @Override
+    public long getReceivedMessageCount() {
+        return receivedMessageCount.get();
+    }
+
+    @Override
+    public long getMalformedMessageCount() {
+        return malformedMessageCount.get();
+    }
+
+    @Override
+    public long getThrottledMessageCount() {
+        return throttledMessageCount.get();
+    }
+
+    @Override
+    public int getReplySubscriptionCount() {
+        return replySubscriptions != null ? replySubscriptions.getTopicCount() : 0;
+    }
+
+    /**
+     * Ingests the reading straight away instead of starting a thread per message as the base handler does; the
+     * reading is handed to the {@link MqttIngestPool}, so the MQTT callback thread is only held while the reading
+     * is decoded and queued.
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage mqttMessage) {
+        ingest(topic, mqttMessage);
+    }
+
+    /**
+     * @param mqttMessage
+     * @param strings     the topic the message was published to
+     */
+    @Override
+    public void processIncomingMessage(MqttMessage mqttMessage, String... strings) throws TransportHandlerException {
+        if (strings.length == 0) {
+            throw new TransportHandlerException("Topic of the incoming MQTT message is missing");
+        }
+        ingest(strings[0], mqttMessage);
+    }
+
+    /**
+     * Takes a reading a device published through the same path as the push endpoints: rate limits, the choice
+     * between device and receive time, and then {@link TelemetryProcessor} on the worker of the device.
+     */
+    private void ingest(String topic, MqttMessage mqttMessage) {
+        long receiveTime = System.currentTimeMillis();
+        receivedMessageCount.incrementAndGet();
+        SensorReadingJSON reading;
+        try {
+            reading = MqttTelemetryDecoder.decode(topic, mqttMessage.getPayload());
+        } catch (ConnectedCupException e) {
+            malformedMessageCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring MQTT message on topic [" + topic + "]: " + e.getMessage());
             }
-        };
+            return;
+        }
+        if (RateLimiter.getInstance().acquire(reading.owner, reading.deviceId, 1) > 0) {
+            throttledMessageCount.incrementAndGet();
+            return;
+        }
+        reading.time = TelemetryProcessor.getInstance().resolveTime(reading.time, receiveTime);
+        MqttIngestPool.getInstance().submit(reading);
+    }
+
+    /**
+     * Takes a reading that arrived through the reply subscriptions of this node. It is ingested by whichever node
+     * of the group the broker handed it to, here it only goes to the reads and live streams waiting for it.
+     */
+    private void deliver(String topic, MqttMessage mqttMessage) {
+        long receiveTime = System.currentTimeMillis();
+        SensorReadingJSON reading;
+        try {
+            reading = MqttTelemetryDecoder.decode(topic, mqttMessage.getPayload());
+        } catch (ConnectedCupException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring MQTT message on topic [" + topic + "]: " + e.getMessage());
+            }
+            return;
+        }
+        TelemetryProcessor.getInstance().deliver(reading.owner, reading.deviceId, reading.sensor, reading.value,
+                                                 TelemetryProcessor.getInstance().resolveTime(reading.time,
+                                                                                              receiveTime));
+    }
 
-        Thread terminatorThread = new Thread(stopConnection);
-        terminatorThread.setDaemon(true);
-        terminatorThread.start();
+
+    /**
+     * Fails the commands still waiting to be sent and closes the connections to the broker. The subscription is
+     * dropped before the connections are closed, so that the broker moves the devices of a shared subscription
+     * group over to the other nodes right away.
+     */
+    public void shutdown() {
+        if (streamListener != null) {
+            ReadingStreamHub.getInstance().removeListener(streamListener);
+        }
+        commandDispatcher.shutdown();
+        ConnectedCupServiceUtils.unregisterMBean(MBEAN_TYPE);
+        disconnect();
+    }
+
+    @Override
+    public void disconnect() {
+        connectionPool.close();
+        if (replySubscriptions != null) {
+            replySubscriptions.close();
+        }
     }
 
     @Override
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceConfig;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util.ConnectedCupServiceUtils;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
+import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanNotificationInfo;
+import javax.management.NotificationBroadcasterSupport;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One broker connection of the {@link MqttConnectionPool}. It has its own client id and is re-established in the
+ * background whenever it is lost, independently of the other connections of the pool.
+ *
+ * Reconnect attempts back off exponentially from {@code mqtt.reconnect.initial.delay} up to
+ * {@code mqtt.reconnect.max.delay}, with a random part so that the nodes of a cluster do not all come back at the
+ * same moment after a broker restart; the first attempt after a lost connection is jittered as well. Every change
+ * of the connection state is sent as a JMX {@link AttributeChangeNotification} of the {@code State} attribute.
+ *
+ * Besides the subscription it is created with, topics can be subscribed to and dropped while the connection is
+ * running; they are subscribed to again whenever the connection is re-established.
+ */
+class MqttConnection extends NotificationBroadcasterSupport implements MqttCallback, MqttConnectionMXBean {
+    private static final Log log = LogFactory.getLog(MqttConnection.class);
+
+    private static final long DEFAULT_RECONNECT_INITIAL_DELAY = 1000;
+    private static final long DEFAULT_RECONNECT_MAX_DELAY = 60000;
+    private static final String STATE_ATTRIBUTE = "State";
+
+    /**
+     * Receives the messages of the subscription of a connection.
+     */
+    interface MessageHandler {
+        void messageArrived(String topic, MqttMessage message);
+    }
+
+    enum State {
+        DISCONNECTED, CONNECTING, CONNECTED, CLOSED
+    }
+
+    private final String clientId;
+    private final String brokerEndPoint;
+    private final String subscribeTopic;
+    private final Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final int qos;
+    private final long reconnectInitialDelay;
+    private final long reconnectMaxDelay;
+    private final MessageHandler messageHandler;
+    private final MqttClient client;
+    private final MqttConnectOptions options;
+    private final String mBeanType;
+    private final LatencyHistogram publishLatency;
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong publishFailedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong connectionLostCount = new AtomicLong();
+    private final AtomicLong connectAttemptCount = new AtomicLong();
+    private final AtomicLong notificationSequence = new AtomicLong();
+    // guarded by itself, waited on by publishers that wait for the connection to come back
+    private final Object stateLock = new Object();
+    private State state = State.DISCONNECTED;
+    private long lastConnectedTime;
+    private long lastDisconnectedTime;
+    private long downtimeMillis;
+    private volatile long reconnectDelay;
+    private volatile boolean closed;
+
+    /**
+     * @param subscribeTopic topic to subscribe to on every (re)connect, or null for a publish-only connection.
+     */
+    MqttConnection(int index, String clientId, String brokerEndPoint, String subscribeTopic, int qos,
+                   MessageHandler messageHandler) throws TransportHandlerException {
+        this.clientId = clientId;
+        this.brokerEndPoint = brokerEndPoint;
+        this.subscribeTopic = subscribeTopic;
+        this.qos = qos;
+        this.reconnectInitialDelay = Math.max(1, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.MQTT_RECONNECT_INITIAL_DELAY, DEFAULT_RECONNECT_INITIAL_DELAY));
+        this.reconnectMaxDelay = Math.max(reconnectInitialDelay, ConnectedCupServiceConfig.getLong(
+                ConnectedCupServiceConfig.MQTT_RECONNECT_MAX_DELAY, DEFAULT_RECONNECT_MAX_DELAY));
+        this.messageHandler = messageHandler;
+        try {
+            this.client = new MqttClient(brokerEndPoint, clientId, new MemoryPersistence());
+        } catch (MqttException e) {
+            throw new TransportHandlerException("Unable to create MQTT client [" + clientId + "] for broker at " +
+                                                brokerEndPoint, e);
+        }
+        this.options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        client.setCallback(this);
+        this.mBeanType = "MqttConnection-" + index;
+        this.publishLatency = LatencyMetrics.getInstance().getHistogram("mqtt.connection_" + index + ".publish");
+        ConnectedCupServiceUtils.registerMBean(mBeanType, this);
+    }
+
+    /**
+     * Connects, and subscribes, on a background thread that retries until it succeeds or the connection is
+     * closed. Does nothing if that thread is already running.
+     */
+    void connect() {
+        connect(false);
+    }
+
+    private void connect(final boolean reconnect) {
+        if (closed || !connecting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread connectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectUntilConnected(reconnect);
+                } finally {
+                    connecting.set(false);
+                }
+                // the connection may have been lost again before this thread was done
+                if (!closed && !client.isConnected()) {
+                    connect(true);
+                }
+            }
+        }, "connectedcup-mqtt-connect-" + clientId);
+        connectorThread.setDaemon(true);
+        connectorThread.start();
+    }
+
+    private void connectUntilConnected(boolean reconnect) {
+        setState(State.CONNECTING);
+        int failedAttempts = 0;
+        long delay = reconnect ? ThreadLocalRandom.current().nextLong(reconnectInitialDelay + 1) : 0;
+        while (!closed && !client.isConnected()) {
+            if (delay > 0) {
+                reconnectDelay = delay;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            connectAttemptCount.incrementAndGet();
+            try {
+                client.connect(options);
+                if (subscribeTopic != null) {
+                    client.subscribe(subscribeTopic, qos);
+                }
+                for (String topic : topics) {
+                    client.subscribe(topic, qos);
+                }
+                reconnectDelay = 0;
+                setState(State.CONNECTED);
+                log.info("MQTT connection [" + clientId + "] to broker at " + brokerEndPoint + " established");
+                return;
+            } catch (MqttException e) {
+                disconnectQuietly();
+                delay = getReconnectDelay(++failedAttempts);
+                log.warn("Connection/Subscription of [" + clientId + "] to MQTT Broker at: " + brokerEndPoint +
+                         " failed, retrying in " + delay + "ms");
+            }
+        }
+    }
+
+    /**
+     * @return a delay between half and all of the exponential backoff after the given number of failed attempts.
+     */
+    private long getReconnectDelay(int failedAttempts) {
+        long backoff = reconnectInitialDelay << Math.min(failedAttempts - 1, 30);
+        if (backoff <= 0 || backoff > reconnectMaxDelay) {
+            backoff = reconnectMaxDelay;
+        }
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Waits until the connection is up.
+     *
+     * @return false if it is still down once the timeout has passed, or if the connection has been closed.
+     */
+    boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (stateLock) {
+            while (!client.isConnected()) {
+                long remaining = deadline - System.nanoTime();
+                if (closed || remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(stateLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Publishes a message, blocking until the client has handed it to the broker.
+     */
+    void publish(String topic, MqttMessage message) throws TransportHandlerException {
+        long startTime = System.nanoTime();
+        try {
+            if (!client.isConnected()) {
+                throw new TransportHandlerException("MQTT connection [" + clientId + "] is not connected");
+            }
+            client.publish(topic, message);
+            publishedCount.incrementAndGet();
+        } catch (MqttException e) {
+            publishFailedCount.incrementAndGet();
+            throw new TransportHandlerException("Publishing to topic [" + topic + "] over MQTT connection [" +
+                                                clientId + "] failed", e);
+        } catch (TransportHandlerException e) {
+            publishFailedCount.incrementAndGet();
+            throw e;
+        } finally {
+            publishLatency.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Subscribes to a further topic, waiting for the broker to confirm it if the connection is up. If it is down,
+     * the topic is subscribed to once it is back.
+     */
+    void subscribe(String topic) {
+        topics.add(topic);
+        if (!client.isConnected()) {
+            return;
+        }
+        try {
+            client.subscribe(topic, qos);
+        } catch (MqttException e) {
+            // the connection went down meanwhile, the topic is subscribed to when it is back
+            log.warn("Unable to subscribe MQTT connection [" + clientId + "] to " + topic, e);
+        }
+    }
+
+    /**
+     * Drops a topic added by {@link #subscribe(String)}.
+     */
+    void unsubscribe(String topic) {
+        if (!topics.remove(topic) || !client.isConnected()) {
+            return;
+        }
+        try {
+            client.unsubscribe(topic);
+        } catch (MqttException e) {
+            log.warn("Unable to unsubscribe MQTT connection [" + clientId + "] from " + topic, e);
+        }
+    }
+
+    /**
+     * Unsubscribes before disconnecting, so that the broker stops routing messages to this connection at once
+     * rather than when it notices the connection is gone.
+     */
+    void close() {
+        closed = true;
+        if (subscribeTopic != null && client.isConnected()) {
+            try {
+                client.unsubscribe(subscribeTopic);
+            } catch (MqttException e) {
+                log.warn("Unable to unsubscribe MQTT connection [" + clientId + "] from " + subscribeTopic, e);
+            }
+        }
+        for (String topic : topics) {
+            unsubscribe(topic);
+        }
+        disconnectQuietly();
+        try {
+            client.close();
+        } catch (MqttException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to close MQTT client [" + clientId + "]", e);
+            }
+        }
+        setState(State.CLOSED);
+        ConnectedCupServiceUtils.unregisterMBean(mBeanType);
+    }
+
+    private void disconnectQuietly() {
+        if (!client.isConnected()) {
+            return;
+        }
+        try {
+            client.disconnect();
+        } catch (MqttException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to disconnect MQTT client [" + clientId + "]", e);
+            }
+        }
+    }
+
+    private void setState(State newState) {
+        State oldState;
+        long now = System.currentTimeMillis();
+        synchronized (stateLock) {
+            oldState = state;
+            if (oldState == newState || oldState == State.CLOSED) {
+                return;
+            }
+            state = newState;
+            if (newState == State.CONNECTED) {
+                if (lastDisconnectedTime > 0) {
+                    downtimeMillis += now - lastDisconnectedTime;
+                }
+                lastConnectedTime = now;
+            } else if (oldState == State.CONNECTED) {
+                lastDisconnectedTime = now;
+            }
+            stateLock.notifyAll();
+        }
+        sendNotification(new AttributeChangeNotification(
+                this, notificationSequence.incrementAndGet(), now,
+                "MQTT connection [" + clientId + "] is " + newState.name().toLowerCase(), STATE_ATTRIBUTE,
+                String.class.getName(), oldState.name(), newState.name()));
+    }
+
+    @Override
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return new MBeanNotificationInfo[]{
+                new MBeanNotificationInfo(new String[]{AttributeChangeNotification.ATTRIBUTE_CHANGE},
+                                          AttributeChangeNotification.class.getName(),
+                                          "State changes of the MQTT connection")};
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        connectionLostCount.incrementAndGet();
+        setState(State.DISCONNECTED);
+        log.warn("MQTT connection [" + clientId + "] to broker at " + brokerEndPoint + " lost, reconnecting", cause);
+        connect(true);
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        receivedCount.incrementAndGet();
+        messageHandler.messageArrived(topic, message);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // nothing to do
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String getState() {
+        synchronized (stateLock) {
+            return state.name();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public boolean isSubscriber() {
+        return subscribeTopic != null || !topics.isEmpty();
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    @Override
+    public long getPublishFailedCount() {
+        return publishFailedCount.get();
+    }
+
+    @Override
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    @Override
+    public long getConnectionLostCount() {
+        return connectionLostCount.get();
+    }
+
+    @Override
+    public long getConnectAttemptCount() {
+        return connectAttemptCount.get();
+    }
+
+    @Override
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    @Override
+    public long getLastConnectedTime() {
+        synchronized (stateLock) {
+            return lastConnectedTime;
+        }
+    }
+
+    @Override
+    public long getLastDisconnectedTime() {
+        synchronized (stateLock) {
+            return lastDisconnectedTime;
+        }
+    }
+
+    /**
+     * @return the time spent disconnected since the connection was first established, including the current
+     * outage.
+     */
+    @Override
+    public long getDowntimeMillis() {
+        synchronized (stateLock) {
+            if (state != State.CONNECTED && lastDisconnectedTime > 0) {
+                return downtimeMillis + System.currentTimeMillis() - lastDisconnectedTime;
+            }
+            return downtimeMillis;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of broker connections, {@code mqtt.connections} of them. Each device is hashed to one connection, so
+ * commands to a device always take the same connection while commands to different devices are spread over all
+ * of them. A connection that is lost only affects the devices hashed to it.
+ *
+ * The wildcard subscription to the readings of all devices is held by the first connection: a subscription
+ * cannot be split by device hash, and subscribing on every connection would deliver each reading once per
+ * connection, or, with a shared subscription, spread the readings of a device over several callback threads.
+ */
+class MqttConnectionPool {
+
+    private final MqttConnection[] connections;
+
+    MqttConnectionPool(int size, String clientIdPrefix, String brokerEndPoint, String subscribeTopic, int qos,
+                       MqttConnection.MessageHandler messageHandler)
+            throws TransportHandlerException {
+        this.connections = new MqttConnection[Math.max(1, size)];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new MqttConnection(i, clientIdPrefix + "-" + i, brokerEndPoint,
+                                                i == 0 ? subscribeTopic : null, qos, messageHandler);
+        }
+    }
+
+    void connect() {
+        for (MqttConnection connection : connections) {
+            connection.connect();
+        }
+    }
+
+    void close() {
+        for (MqttConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Publishes a message on the connection of the device.
+     */
+    void publish(String deviceId, String topic, MqttMessage message) throws TransportHandlerException {
+        getConnection(deviceId).publish(topic, message);
+    }
+
+    /**
+     * Waits until the connection of the device is up.
+     */
+    boolean awaitConnected(String deviceId, long timeout, TimeUnit unit) throws InterruptedException {
+        return getConnection(deviceId).awaitConnected(timeout, unit);
+    }
+
+    boolean isConnected(String deviceId) {
+        return getConnection(deviceId).isConnected();
+    }
+
+    MqttConnection getConnection(String deviceId) {
+        return connections[(deviceId.hashCode() & Integer.MAX_VALUE) % connections.length];
+    }
+
+    int getSize() {
+        return connections.length;
+    }
+
+    int getConnectedCount() {
+        int connected = 0;
+        for (MqttConnection connection : connections) {
+            if (connection.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * @return true if the connection holding the subscription is up.
+     */
+    boolean isSubscribed() {
+        return connections[0].isConnected();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.wso2.carbon.device.mgt.iot.transport.TransportHandlerException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Subscriptions of a single node, outside of its shared subscription group, to the readings that something on
+ * the node is waiting for: the reply to a read command it sent, or the readings of a live stream it serves.
+ *
+ * With a shared subscription the broker hands each reading to one node of the group, which need not be the node
+ * waiting for it. These subscriptions are held on a connection of their own, so the waiting node receives the
+ * reading as well, whichever node ingests it. Topics are reference counted: a topic is subscribed to when the
+ * first waiter asks for it, and dropped when the last one is done. Subscribing waits for the broker to confirm,
+ * so a reply sent after {@link #acquire(String)} returns is not missed while the connection is up.
+ */
+class ReplySubscriptions {
+
+    private final MqttConnection connection;
+    private final ConcurrentMap<String, Interest> interests = new ConcurrentHashMap<>();
+
+    ReplySubscriptions(int index, String clientId, String brokerEndPoint, int qos,
+                       MqttConnection.MessageHandler messageHandler) throws TransportHandlerException {
+        this.connection = new MqttConnection(index, clientId, brokerEndPoint, null, qos, messageHandler);
+    }
+
+    void connect() {
+        connection.connect();
+    }
+
+    void close() {
+        connection.close();
+    }
+
+    /**
+     * Subscribes to the topic unless it is subscribed to already.
+     */
+    void acquire(String topic) {
+        while (true) {
+            Interest interest = interests.get(topic);
+            if (interest == null) {
+                Interest newInterest = new Interest();
+                interest = interests.putIfAbsent(topic, newInterest);
+                if (interest == null) {
+                    interest = newInterest;
+                }
+            }
+            synchronized (interest) {
+                if (interest.dropped) {
+                    // the last waiter released it in the meantime, start over
+                    continue;
+                }
+                if (interest.count++ == 0) {
+                    connection.subscribe(topic);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the subscription once every caller of {@link #acquire(String)} has released it.
+     */
+    void release(String topic) {
+        Interest interest = interests.get(topic);
+        if (interest == null) {
+            return;
+        }
+        synchronized (interest) {
+            if (interest.dropped || --interest.count > 0) {
+                return;
+            }
+            // unsubscribed before a new interest in the topic can be created, so it cannot undo that one
+            connection.unsubscribe(topic);
+            interest.dropped = true;
+            interests.remove(topic, interest);
+        }
+    }
+
+    boolean isSubscribed(String topic) {
+        return interests.containsKey(topic);
+    }
+
+    int getTopicCount() {
+        return interests.size();
+    }
+
+    boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    private static class Interest {
+        private int count;
+        private boolean dropped;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tunables of the Connected Cup controller service. Every value can be overridden with a JVM system property
+ * (e.g. -Dconnectedcup.das.batch.size=500) and falls back to the default given by the caller.
+ */
+public class ConnectedCupServiceConfig {
+    private static final Log log = LogFactory.getLog(ConnectedCupServiceConfig.class);
+
+    public static final String PROPERTY_PREFIX = "connectedcup.";
+
+    // DAS publisher
+    public static final String DAS_QUEUE_CAPACITY = "das.queue.capacity";
+    public static final String DAS_BATCH_SIZE = "das.batch.size";
+    public static final String DAS_FLUSH_INTERVAL = "das.flush.interval";
+    public static final String DAS_WORKER_COUNT = "das.workers";
+
+    // device read commands
+    public static final String READ_TIMEOUT = "read.timeout";
+    public static final String MQTT_COALESCING_WINDOW = "mqtt.coalescing.window";
+
+    // broker connections
+    public static final String MQTT_CONNECTIONS = "mqtt.connections";
+    public static final String MQTT_SHARED_GROUP = "mqtt.shared.group";
+    public static final String MQTT_RECONNECT_INITIAL_DELAY = "mqtt.reconnect.initial.delay";
+    public static final String MQTT_RECONNECT_MAX_DELAY = "mqtt.reconnect.max.delay";
+    public static final String MQTT_OFFLINE_MAX_WAIT = "mqtt.offline.max.wait";
+
+    // outbound commands
+    public static final String MQTT_COMMAND_QUEUE_CAPACITY = "mqtt.command.queue.capacity";
+    public static final String MQTT_COMMAND_INFLIGHT = "mqtt.command.inflight";
+    public static final String MQTT_COMMAND_MAX_PARKED_DEVICES = "mqtt.command.max.parked.devices";
+    public static final String PRESENCE_OFFLINE_AFTER = "presence.offline.after";
+    public static final String PRESENCE_MAX_DEVICES = "presence.max.devices";
+
+    // multi-device reads
+    public static final String FANOUT_WINDOW = "fanout.window";
+    public static final String FANOUT_MAX_DEVICES = "fanout.max.devices";
+    public static final String FANOUT_TIMEOUT = "fanout.timeout";
+    public static final String FANOUT_THREADS = "fanout.threads";
+
+    // device authorization cache
+    public static final String AUTH_CACHE_SIZE = "auth.cache.size";
+    public static final String AUTH_CACHE_TTL = "auth.cache.ttl";
+    public static final String AUTH_CACHE_NEGATIVE_TTL = "auth.cache.negative.ttl";
+
+    // sensor history
+    public static final String HISTORY_CAPACITY = "history.capacity";
+    public static final String HISTORY_MAX_DEVICES = "history.max.devices";
+    public static final String HISTORY_IDLE_TIMEOUT = "history.idle.timeout";
+
+    // rollups
+    public static final String ROLLUP_RETENTION_PREFIX = "rollup.retention.";
+    public static final String ROLLUP_MAX_DEVICES = "rollup.max.devices";
+    public static final String ROLLUP_SWEEP_INTERVAL = "rollup.sweep.interval";
+    public static final String ROLLUP_IDLE_TIMEOUT = "rollup.idle.timeout";
+    public static final String ROLLUP_PUBLISH = "rollup.publish";
+    public static final String DAS_PUBLISH_RAW = "das.publish.raw";
+
+    // push rate limits
+    public static final String RATELIMIT_DEVICE_RATE = "ratelimit.device.rate";
+    public static final String RATELIMIT_DEVICE_BURST = "ratelimit.device.burst";
+    public static final String RATELIMIT_DEVICE_SLOTS = "ratelimit.device.slots";
+    public static final String RATELIMIT_OWNER_RATE = "ratelimit.owner.rate";
+    public static final String RATELIMIT_OWNER_BURST = "ratelimit.owner.burst";
+    public static final String RATELIMIT_OWNER_SLOTS = "ratelimit.owner.slots";
+
+    // load shedding of telemetry pushes
+    public static final String SHED_QUEUE_HIGH = "shed.queue.high";
+    public static final String SHED_QUEUE_LOW = "shed.queue.low";
+    public static final String SHED_LATENCY_HIGH = "shed.latency.high";
+    public static final String SHED_LATENCY_LOW = "shed.latency.low";
+    public static final String SHED_MAX_INFLIGHT = "shed.max.inflight";
+    public static final String SHED_RETRY_AFTER = "shed.retry.after";
+
+    // device time and reordering
+    public static final String INGEST_DEVICE_TIME = "ingest.device.time";
+    public static final String INGEST_MAX_CLOCK_SKEW = "ingest.max.clock.skew";
+    public static final String INGEST_REORDER_WINDOW = "ingest.reorder.window";
+    public static final String INGEST_REORDER_CAPACITY = "ingest.reorder.capacity";
+    public static final String INGEST_REORDER_MAX_DEVICES = "ingest.reorder.max.devices";
+
+    // streamed uploads
+    public static final String INGEST_CHUNK_SIZE = "ingest.chunk.size";
+    public static final String INGEST_MAX_LINE_LENGTH = "ingest.max.line.length";
+    public static final String INGEST_MAX_ERRORS = "ingest.max.errors";
+
+    // readings published over MQTT
+    public static final String INGEST_MQTT_WORKERS = "ingest.mqtt.workers";
+    public static final String INGEST_MQTT_QUEUE_CAPACITY = "ingest.mqtt.queue.capacity";
+    public static final String INGEST_MQTT_OFFER_TIMEOUT = "ingest.mqtt.offer.timeout";
+
+    // dead-band filtering of readings forwarded to analytics, e.g. filter.temperature.deadband.absolute
+    public static final String FILTER_PREFIX = "filter.";
+    public static final String FILTER_DEADBAND_ABSOLUTE = ".deadband.absolute";
+    public static final String FILTER_DEADBAND_RELATIVE = ".deadband.relative";
+    public static final String FILTER_HEARTBEAT = ".heartbeat";
+    public static final String FILTER_MAX_DEVICES = "filter.max.devices";
+
+    // live reading streams
+    public static final String STREAM_MAX_SUBSCRIBERS = "stream.max.subscribers";
+    public static final String STREAM_BUFFER_SIZE = "stream.buffer.size";
+    public static final String STREAM_WRITER_THREADS = "stream.writer.threads";
+    public static final String STREAM_HEARTBEAT_INTERVAL = "stream.heartbeat.interval";
+    public static final String STREAM_TIMEOUT = "stream.timeout";
+    public static final String STREAM_WRITE_TIMEOUT = "stream.write.timeout";
+
+    private ConnectedCupServiceConfig() {
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for property " + PROPERTY_PREFIX + key +
+                     ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for property " + PROPERTY_PREFIX + key +
+                     ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static float getFloat(String key, float defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value [" + value + "] for property " + PROPERTY_PREFIX + key +
+                     ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        return value == null ? defaultValue : value.trim();
+    }
+}
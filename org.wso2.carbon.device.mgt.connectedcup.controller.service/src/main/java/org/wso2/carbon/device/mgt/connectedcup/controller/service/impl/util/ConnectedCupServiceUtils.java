@@ -25,20 +25,31 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
-import org.wso2.carbon.context.PrivilegedCarbonContext;
-import org.wso2.carbon.device.mgt.analytics.exception.DataPublisherConfigurationException;
-import org.wso2.carbon.device.mgt.analytics.service.DeviceAnalyticsService;
 import org.wso2.carbon.device.mgt.common.DeviceManagementException;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEvent;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.analytics.DASEventPublisher;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupGranularity;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.rollup.RollupWindow;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.ws.rs.HttpMethod;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 
@@ -48,6 +59,12 @@ public class ConnectedCupServiceUtils {
     //TODO; replace this tenant domain
     private static final String SUPER_TENANT = "carbon.super";
     private static final String TEMPERATURE_STREAM_DEFINITION = "org.wso2.iot.devices.temperature";
+    private static final String ROLLUP_STREAM_DEFINITION = "org.wso2.iot.devices.connectedcup.rollup";
+    private static final String MBEAN_DOMAIN = "org.wso2.carbon.device.mgt.connectedcup";
+    private static final LatencyHistogram PUBLISH_TO_DAS_LATENCY =
+            LatencyMetrics.getInstance().getHistogram("das.publish_to_das");
+    private static final LatencyHistogram PUBLISH_TO_DAS_BATCH_LATENCY =
+            LatencyMetrics.getInstance().getHistogram("das.publish_to_das_batch");
 
     public static String sendCommandViaHTTP(final String deviceHTTPEndpoint, String urlContext,
                                             boolean fireAndForgot) throws DeviceManagementException {
@@ -194,24 +211,101 @@ public class ConnectedCupServiceUtils {
         return completeResponse.toString();
     }
 
+    /**
+     * Hands a reading over to the asynchronous {@link DASEventPublisher}.
+     *
+     * @return false if the publish queue is full and the reading was dropped.
+     */
     public static boolean publishToDAS(String owner, String deviceId, float temperature) {
-        PrivilegedCarbonContext.startTenantFlow();
-        PrivilegedCarbonContext ctx = PrivilegedCarbonContext.getThreadLocalCarbonContext();
-        ctx.setTenantDomain(SUPER_TENANT, true);
-        DeviceAnalyticsService deviceAnalyticsService = (DeviceAnalyticsService) ctx.getOSGiService(
-                DeviceAnalyticsService.class, null);
-        Object metdaData[] = {owner, ConnectedCupConstants.DEVICE_TYPE, deviceId,
-                System.currentTimeMillis()};
-        Object payloadData[] = {temperature};
+        return publishToDAS(owner, deviceId, temperature, System.currentTimeMillis());
+    }
+
+    /**
+     * Same as {@link #publishToDAS(String, String, float)} for a reading taken at the given time.
+     */
+    public static boolean publishToDAS(String owner, String deviceId, float temperature, long time) {
+        long startTime = System.nanoTime();
+        try {
+            return DASEventPublisher.getInstance().publish(createDASEvent(owner, deviceId, temperature, time));
+        } finally {
+            PUBLISH_TO_DAS_LATENCY.recordSince(startTime);
+        }
+    }
 
+    /**
+     * Hands a batch of events over to the {@link DASEventPublisher} in one go. Timed in its own histogram, as one
+     * batch costs more than one reading.
+     *
+     * @return the number of events accepted; the rest were dropped because the publish queue is full.
+     */
+    public static int publishToDAS(List<DASEvent> events) {
+        long startTime = System.nanoTime();
         try {
-            deviceAnalyticsService.publishEvent(TEMPERATURE_STREAM_DEFINITION, "1.0.0", metdaData,
-                                                new Object[0], payloadData);
-        } catch (DataPublisherConfigurationException e) {
-            return false;
+            return DASEventPublisher.getInstance().publish(events);
         } finally {
-            PrivilegedCarbonContext.endTenantFlow();
+            PUBLISH_TO_DAS_BATCH_LATENCY.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Topic on which commands are published to a device.
+     */
+    public static String getCommandTopic(String serverName, String owner, String deviceId) {
+        return serverName + File.separator + owner + File.separator + ConnectedCupConstants.DEVICE_TYPE +
+               File.separator + deviceId;
+    }
+
+    /**
+     * Payload of a command, {@code resource:state}.
+     */
+    public static byte[] getCommandPayload(String resource, String state) {
+        return (resource + ":" + state).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static DASEvent createDASEvent(String owner, String deviceId, float temperature, long time) {
+        Object metdaData[] = {owner, ConnectedCupConstants.DEVICE_TYPE, deviceId, time};
+        Object payloadData[] = {temperature};
+        return new DASEvent(TEMPERATURE_STREAM_DEFINITION, "1.0.0", metdaData, payloadData);
+    }
+
+    /**
+     * Creates the compact analytics event of a closed rollup window: one event carries the count, min, max and
+     * average of all readings of the sensor within the window.
+     */
+    public static DASEvent createRollupEvent(String owner, String deviceId, String sensor,
+                                             RollupGranularity granularity, RollupWindow window) {
+        Object metdaData[] = {owner, ConnectedCupConstants.DEVICE_TYPE, deviceId, window.getWindowStart()};
+        Object payloadData[] = {sensor, granularity.name().toLowerCase(), window.getCount(), window.getMin(),
+                window.getMax(), window.getAverage()};
+        return new DASEvent(ROLLUP_STREAM_DEFINITION, "1.0.0", metdaData, payloadData);
+    }
+
+    public static void registerMBean(String type, Object mBean) {
+        try {
+            ObjectName objectName = getObjectName(type);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            log.warn("Unable to register the " + type + " MBean", e);
         }
-        return true;
+    }
+
+    public static void unregisterMBean(String type) {
+        try {
+            ObjectName objectName = getObjectName(type);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to unregister the " + type + " MBean", e);
+        }
+    }
+
+    private static ObjectName getObjectName(String type) throws MalformedObjectNameException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=" + type);
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.annotations.Test;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+/**
+ * Readings pushed in the binary format have to come out exactly as the same readings pushed as JSON.
+ */
+public class BinaryTelemetryDecoderTest {
+
+    private static final String OWNER = "alice";
+    private static final String[] DEVICE_IDS = {"cup-1", "cup-\u00e9"};
+    private static final long BASE_TIME = 1453274400000L;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testTimedReadingsMatchJson() throws Exception {
+        float[] values = {61.5f, 0.1f, -12.25f, 100f, Float.MAX_VALUE, 3.4028235e-38f};
+        long[] deltas = {0, 1000, 0, 4294967295L, 1, 60000};
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = writeHeader(payload, BASE_TIME);
+        List<SensorReadingJSON> expected = new ArrayList<>();
+        long time = BASE_TIME;
+        for (int i = 0; i < values.length; i++) {
+            int deviceIndex = i % DEVICE_IDS.length;
+            int sensorIndex = (i / DEVICE_IDS.length) % TelemetryProcessor.SENSORS.length;
+            writeReading(out, deviceIndex, sensorIndex, deltas[i], values[i]);
+            time += deltas[i];
+            expected.add(fromJson(DEVICE_IDS[deviceIndex], TelemetryProcessor.SENSORS[sensorIndex], time,
+                                  values[i]));
+        }
+
+        assertReadings(decode(payload.toByteArray()), expected);
+    }
+
+    @Test
+    public void testUntimedReadingsMatchJson() throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = writeHeader(payload, 0);
+        // without a base time the deltas are meaningless and must not leak into the readings
+        writeReading(out, 1, 0, 1000, 58.0f);
+        writeReading(out, 0, 1, 0, 0.75f);
+
+        List<SensorReadingJSON> readings = decode(payload.toByteArray());
+        assertReadings(readings, Arrays.asList(fromJson(DEVICE_IDS[1], TelemetryProcessor.SENSORS[0], null, 58.0f),
+                                               fromJson(DEVICE_IDS[0], TelemetryProcessor.SENSORS[1], null, 0.75f)));
+        assertNull(readings.get(0).time);
+    }
+
+    @Test
+    public void testEmptyPayloadBody() throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeHeader(payload, BASE_TIME);
+        assertEquals(decode(payload.toByteArray()).size(), 0);
+    }
+
+    @Test
+    public void testInvalidPayloads() throws Exception {
+        assertInvalid(new byte[0]);
+        assertInvalid(new byte[]{2});
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeHeader(header, BASE_TIME);
+        byte[] headerBytes = header.toByteArray();
+        assertInvalid(Arrays.copyOf(headerBytes, headerBytes.length - 1));
+
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        writeReading(writeHeader(truncated, BASE_TIME), 0, 0, 0, 1f);
+        byte[] truncatedBytes = truncated.toByteArray();
+        assertInvalid(Arrays.copyOf(truncatedBytes, truncatedBytes.length - 1));
+
+        ByteArrayOutputStream unknownDevice = new ByteArrayOutputStream();
+        writeReading(writeHeader(unknownDevice, BASE_TIME), DEVICE_IDS.length, 0, 0, 1f);
+        assertInvalid(unknownDevice.toByteArray());
+
+        ByteArrayOutputStream unknownSensor = new ByteArrayOutputStream();
+        writeReading(writeHeader(unknownSensor, BASE_TIME), 0, TelemetryProcessor.SENSORS.length, 0, 1f);
+        assertInvalid(unknownSensor.toByteArray());
+    }
+
+    private static DataOutputStream writeHeader(ByteArrayOutputStream payload, long baseTime) throws IOException {
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(1);
+        writeString(out, OWNER);
+        out.writeShort(DEVICE_IDS.length);
+        for (String deviceId : DEVICE_IDS) {
+            writeString(out, deviceId);
+        }
+        out.writeLong(baseTime);
+        return out;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeReading(DataOutputStream out, int deviceIndex, int sensorIndex, long delta,
+                                     float value) throws IOException {
+        out.writeShort(deviceIndex);
+        out.writeByte(sensorIndex);
+        out.writeInt((int) delta);
+        out.writeFloat(value);
+    }
+
+    private static List<SensorReadingJSON> decode(byte[] payload) throws ConnectedCupException, IOException {
+        return BinaryTelemetryDecoder.decode(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * @return the reading as the JSON push endpoints would decode it.
+     */
+    private SensorReadingJSON fromJson(String deviceId, String sensor, Long time, float value) throws IOException {
+        String json = "{\"owner\":\"" + OWNER + "\",\"deviceId\":\"" + deviceId + "\",\"sensor\":\"" + sensor +
+                      "\"," + (time == null ? "" : "\"time\":" + time + ",") + "\"value\":" + value + "}";
+        return objectMapper.readValue(json, SensorReadingJSON.class);
+    }
+
+    private static void assertReadings(List<SensorReadingJSON> actual, List<SensorReadingJSON> expected) {
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SensorReadingJSON reading = actual.get(i);
+            SensorReadingJSON json = expected.get(i);
+            assertEquals(reading.owner, json.owner, "owner of reading " + i);
+            assertEquals(reading.deviceId, json.deviceId, "device of reading " + i);
+            assertEquals(reading.sensor, json.sensor, "sensor of reading " + i);
+            assertEquals(reading.time, json.time, "time of reading " + i);
+            assertEquals(Float.floatToIntBits(reading.value), Float.floatToIntBits(json.value),
+                         "value of reading " + i);
+        }
+    }
+
+    private static void assertInvalid(byte[] payload) throws IOException {
+        try {
+            decode(payload);
+            fail("Invalid payload of " + payload.length + " bytes was decoded");
+        } catch (ConnectedCupException e) {
+            // expected
+        }
+    }
+}
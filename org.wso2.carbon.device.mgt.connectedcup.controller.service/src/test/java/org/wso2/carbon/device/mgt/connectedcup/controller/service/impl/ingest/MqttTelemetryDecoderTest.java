@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ingest;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.dto.SensorReadingJSON;
+import org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.exception.ConnectedCupException;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+/**
+ * Topics and payloads of readings published over MQTT, including the ones the in-place scanning has to reject.
+ */
+public class MqttTelemetryDecoderTest {
+
+    private static final String TOPIC = "carbon.super/alice/connectedcup/cup-1/publisher";
+
+    @Test
+    public void testDecode() throws Exception {
+        SensorReadingJSON reading = decode(TOPIC, "temperature:61.5:1453274400000");
+        assertEquals(reading.owner, "alice");
+        assertEquals(reading.deviceId, "cup-1");
+        assertEquals(reading.sensor, ConnectedCupConstants.SENSOR_TEMPERATURE);
+        assertEquals(reading.value, 61.5f);
+        assertEquals(reading.time, Long.valueOf(1453274400000L));
+
+        reading = decode("server/bob/connectedcup/cup:2/publisher", "level:40");
+        assertEquals(reading.owner, "bob");
+        assertEquals(reading.deviceId, "cup:2");
+        assertEquals(reading.sensor, ConnectedCupConstants.SENSOR_LEVEL);
+        assertEquals(reading.value, 40f);
+        assertNull(reading.time);
+    }
+
+    @Test
+    public void testEmptyTimeIsAbsent() throws Exception {
+        assertNull(decode(TOPIC, "level:40:").time);
+    }
+
+    @DataProvider
+    public Object[][] values() {
+        return new Object[][]{
+                {"0"}, {"-0"}, {"+7"}, {"-12.25"}, {"0.1"}, {".5"}, {"5."}, {"61.50000000000000001"},
+                {"123456789012345678"}, {"1234567890123456789"}, {"1e3"}, {"-2.5E-3"}, {"NaN"}, {"Infinity"},
+                {"3.4028235e38"}, {"1e39"}
+        };
+    }
+
+    /**
+     * The fast path has to agree with {@link Float#parseFloat} wherever it applies, and hand over to it elsewhere.
+     */
+    @Test(dataProvider = "values")
+    public void testValueMatchesParseFloat(String value) throws Exception {
+        float expected = Float.parseFloat(value);
+        assertEquals(Float.floatToIntBits(decode(TOPIC, "temperature:" + value).value),
+                     Float.floatToIntBits(expected), value);
+    }
+
+    @DataProvider
+    public Object[][] invalidTopics() {
+        return new Object[][]{
+                {""}, {"carbon.super"}, {"carbon.super/alice/connectedcup/cup-1"},
+                {"carbon.super/alice/connectedcup/cup-1/publisher/extra"},
+                {"carbon.super/alice/connectedcup/cup-1/publishers"},
+                {"carbon.super/alice/virtualfirealarm/cup-1/publisher"},
+                {"carbon.super/alice/connectedcups/cup-1/publisher"},
+                {"carbon.super//connectedcup/cup-1/publisher"},
+                {"carbon.super/alice/connectedcup//publisher"},
+                {"carbon.super/alice/connectedcup/cup-1/"}
+        };
+    }
+
+    @Test(dataProvider = "invalidTopics")
+    public void testInvalidTopic(String topic) {
+        assertInvalid(topic, "temperature:61.5");
+    }
+
+    @DataProvider
+    public Object[][] invalidPayloads() {
+        return new Object[][]{
+                {""}, {"temperature"}, {"temperature:"}, {"temperature:-"}, {"temperature:."}, {"temperature:abc"},
+                {"temperature:1..2"}, {"temp:61.5"}, {"temperatures:61.5"}, {":61.5"}, {"Temperature:61.5"},
+                {"temperature:61.5:abc"}, {"temperature:61.5:-1"}, {"temperature:61.5:1453274400000:1"},
+                {"temperature:61.5:1234567890123456789"}
+        };
+    }
+
+    @Test(dataProvider = "invalidPayloads")
+    public void testInvalidPayload(String payload) {
+        assertInvalid(TOPIC, payload);
+    }
+
+    private static SensorReadingJSON decode(String topic, String payload) throws ConnectedCupException {
+        return MqttTelemetryDecoder.decode(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalid(String topic, String payload) {
+        try {
+            decode(topic, payload);
+            fail("Reading [" + payload + "] on [" + topic + "] was decoded");
+        } catch (ConnectedCupException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.ratelimit;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Refill, debt and eviction of the token buckets, driven by explicit nano times.
+ */
+public class TokenBucketTableTest {
+
+    private static final long RATE = 10;
+    private static final int BURST = 5;
+    // nanoseconds to refill one token
+    private static final long TOKEN_NANOS = TimeUnit.SECONDS.toNanos(1) / RATE;
+
+    @Test
+    public void testNewKeyStartsFull() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1024);
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(table.acquire("cup-1", 1, 0), 0L);
+        }
+        assertEquals(table.acquire("cup-1", 1, 0), TOKEN_NANOS);
+        // other keys have buckets of their own
+        assertEquals(table.acquire("cup-2", BURST, 0), 0L);
+    }
+
+    @Test
+    public void testRefill() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1024);
+        assertEquals(table.acquire("cup-1", BURST, 0), 0L);
+        assertEquals(table.acquire("cup-1", 1, TOKEN_NANOS / 2), TOKEN_NANOS / 2);
+        assertEquals(table.acquire("cup-1", 1, TOKEN_NANOS), 0L);
+        assertEquals(table.acquire("cup-1", 2, 2 * TOKEN_NANOS), TOKEN_NANOS);
+
+        // however long the key was idle, the bucket holds no more than the burst
+        long later = TimeUnit.HOURS.toNanos(1);
+        assertEquals(table.acquire("cup-1", BURST, later), 0L);
+        assertEquals(table.acquire("cup-1", 1, later), TOKEN_NANOS);
+    }
+
+    @Test
+    public void testOversizedRequestLeavesDebt() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1024);
+        assertEquals(table.acquire("cup-1", 1, 0), 0L);
+        // more than the burst is granted only from a full bucket
+        assertEquals(table.acquire("cup-1", 4 * BURST, 0), TOKEN_NANOS);
+        assertEquals(table.acquire("cup-1", 4 * BURST, TOKEN_NANOS), 0L);
+
+        // the bucket is 15 tokens below empty, a single token is 16 tokens away
+        assertEquals(table.acquire("cup-1", 1, TOKEN_NANOS), 16 * TOKEN_NANOS);
+        assertEquals(table.acquire("cup-1", 1, 17 * TOKEN_NANOS), 0L);
+    }
+
+    @Test
+    public void testCheckAndTake() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1024);
+        assertEquals(table.check("cup-1", BURST, 0), 0L);
+        assertEquals(table.check("cup-1", BURST, 0), 0L);
+        table.take("cup-1", BURST, 0);
+        assertEquals(table.check("cup-1", 1, 0), TOKEN_NANOS);
+
+        // take does not wait for the bucket, a concurrent request leaves it in debt
+        table.take("cup-1", 2, 0);
+        assertEquals(table.check("cup-1", 1, 0), 3 * TOKEN_NANOS);
+        assertEquals(table.acquire("cup-1", 1, 3 * TOKEN_NANOS), 0L);
+    }
+
+    @Test
+    public void testEvictedKeysStartOver() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1);
+        int keys = 10 * table.getSlotCount();
+        for (int i = 0; i < keys; i++) {
+            assertEquals(table.acquire("cup-" + i, BURST, 0), 0L);
+        }
+        assertTrue(table.getEvictionCount() >= keys - table.getSlotCount(),
+                   table.getEvictionCount() + " evictions");
+
+        // at most one drained key per slot is still tracked, every other one gets a full bucket again
+        int granted = 0;
+        for (int i = 0; i < keys; i++) {
+            if (table.check("cup-" + i, BURST, 0) == 0) {
+                granted++;
+            }
+        }
+        assertTrue(granted >= keys - table.getSlotCount(), granted + " of " + keys + " keys granted");
+    }
+
+    @Test
+    public void testIdleEvictionsAreNotCounted() {
+        TokenBucketTable table = new TokenBucketTable(RATE, BURST, 1);
+        int keys = 10 * table.getSlotCount();
+        for (int i = 0; i < keys; i++) {
+            table.acquire("cup-" + i, BURST, 0);
+        }
+        long evictions = table.getEvictionCount();
+
+        // once every bucket has refilled, replacing them is free
+        long refilled = BURST * TOKEN_NANOS;
+        for (int i = 0; i < keys; i++) {
+            assertEquals(table.check("mug-" + i, BURST, refilled), 0L);
+        }
+        assertEquals(table.getEvictionCount(), evictions);
+    }
+}
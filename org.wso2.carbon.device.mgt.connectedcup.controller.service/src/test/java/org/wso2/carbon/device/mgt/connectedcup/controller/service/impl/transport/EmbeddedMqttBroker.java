@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A broker of MQTT 3.1 and 3.1.1 for tests, listening on a free port of the loopback interface. It keeps no
+ * sessions or retained messages and hands out messages at QoS 0 or 1 only.
+ *
+ * A subscription to {@code $share/<group>/<filter>} joins the shared subscription group: each matching message
+ * goes to one member of the group, chosen by the hash of its topic, so the messages of a topic always reach the
+ * same member as long as the group does not change.
+ */
+class EmbeddedMqttBroker {
+
+    private static final String SHARED_PREFIX = "$share/";
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // guarded by itself
+    private final Map<String, List<Session>> sharedGroups = new LinkedHashMap<>();
+    private final AtomicInteger publishedCount = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "embedded-mqtt-broker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getEndPoint() {
+        return "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of messages published to the broker so far.
+     */
+    int getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    void stop() throws IOException {
+        stopped = true;
+        serverSocket.close();
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+    }
+
+    private void accept() {
+        while (!stopped) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "embedded-mqtt-broker-session");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        Session session = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            Packet connect = Packet.read(in);
+            if (connect.type != CONNECT) {
+                return;
+            }
+            session = new Session(connect.readClientId(), socket);
+            Session previous = sessions.put(session.clientId, session);
+            if (previous != null) {
+                previous.close();
+            }
+            session.write(CONNACK, 0, new byte[]{0, 0});
+            while (!stopped) {
+                Packet packet = Packet.read(in);
+                switch (packet.type) {
+                    case PUBLISH:
+                        received(session, packet);
+                        break;
+                    case PUBREL:
+                        session.write(PUBCOMP, 0, packet.body(2));
+                        break;
+                    case SUBSCRIBE:
+                        subscribe(session, packet);
+                        break;
+                    case UNSUBSCRIBE:
+                        unsubscribe(session, packet);
+                        break;
+                    case PINGREQ:
+                        session.write(PINGRESP, 0, new byte[0]);
+                        break;
+                    case DISCONNECT:
+                        return;
+                    default:
+                        // acknowledgements of messages sent at QoS 1, nothing is resent
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            if (session != null) {
+                sessions.remove(session.clientId, session);
+                leaveGroups(session);
+                session.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    private void received(Session publisher, Packet packet) throws IOException {
+        int qos = (packet.flags >> 1) & 3;
+        String topic = packet.readString();
+        byte[] packetId = qos > 0 ? packet.body(2) : null;
+        byte[] payload = packet.remaining();
+        publishedCount.incrementAndGet();
+        route(topic, payload, qos);
+        if (qos == 1) {
+            publisher.write(PUBACK, 0, packetId);
+        } else if (qos == 2) {
+            publisher.write(PUBREC, 0, packetId);
+        }
+    }
+
+    private void route(String topic, byte[] payload, int qos) {
+        for (Session session : sessions.values()) {
+            Integer grantedQos = session.getMatchingQos(topic);
+            if (grantedQos != null) {
+                session.publish(topic, payload, Math.min(qos, grantedQos));
+            }
+        }
+        List<Session> receivers = new ArrayList<>();
+        synchronized (sharedGroups) {
+            for (Map.Entry<String, List<Session>> group : sharedGroups.entrySet()) {
+                String filter = group.getKey().substring(group.getKey().indexOf('/') + 1);
+                List<Session> members = group.getValue();
+                if (!members.isEmpty() && matches(filter, topic)) {
+                    receivers.add(members.get((topic.hashCode() & Integer.MAX_VALUE) % members.size()));
+                }
+            }
+        }
+        for (Session receiver : receivers) {
+            receiver.publish(topic, payload, Math.min(qos, 1));
+        }
+    }
+
+    private void subscribe(Session session, Packet packet) throws IOException {
+        byte[] packetId = packet.body(2);
+        ByteArrayOutputStream granted = new ByteArrayOutputStream();
+        granted.write(packetId);
+        while (packet.hasRemaining()) {
+            String filter = packet.readString();
+            int qos = Math.min(packet.body(1)[0] & 3, 1);
+            if (filter.startsWith(SHARED_PREFIX)) {
+                String sharedFilter = filter.substring(SHARED_PREFIX.length());
+                synchronized (sharedGroups) {
+                    List<Session> members = sharedGroups.get(sharedFilter);
+                    if (members == null) {
+                        members = new ArrayList<>();
+                        sharedGroups.put(sharedFilter, members);
+                    }
+                    if (!members.contains(session)) {
+                        members.add(session);
+                    }
+                }
+            } else {
+                session.filters.put(filter, qos);
+            }
+            granted.write(qos);
+        }
+        session.write(SUBACK, 0, granted.toByteArray());
+    }
+
+    private void unsubscribe(Session session, Packet packet) throws IOException {
+        byte[] packetId = packet.body(2);
+        while (packet.hasRemaining()) {
+            String filter = packet.readString();
+            if (filter.startsWith(SHARED_PREFIX)) {
+                synchronized (sharedGroups) {
+                    List<Session> members = sharedGroups.get(filter.substring(SHARED_PREFIX.length()));
+                    if (members != null) {
+                        members.remove(session);
+                    }
+                }
+            } else {
+                session.filters.remove(filter);
+            }
+        }
+        session.write(UNSUBACK, 0, packetId);
+    }
+
+    private void leaveGroups(Session session) {
+        synchronized (sharedGroups) {
+            for (List<Session> members : sharedGroups.values()) {
+                members.remove(session);
+            }
+        }
+    }
+
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            if ("#".equals(filterLevels[i])) {
+                return true;
+            }
+            if (i >= topicLevels.length ||
+                (!"+".equals(filterLevels[i]) && !filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private static class Session {
+        private final String clientId;
+        private final Socket socket;
+        private final OutputStream out;
+        private final ConcurrentMap<String, Integer> filters = new ConcurrentHashMap<>();
+        // guarded by out
+        private int nextPacketId;
+
+        private Session(String clientId, Socket socket) throws IOException {
+            this.clientId = clientId;
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        /**
+         * @return the highest QoS of the filters of this session matching the topic, or null if none does.
+         */
+        private Integer getMatchingQos(String topic) {
+            Integer qos = null;
+            for (Map.Entry<String, Integer> filter : filters.entrySet()) {
+                if (matches(filter.getKey(), topic) && (qos == null || filter.getValue() > qos)) {
+                    qos = filter.getValue();
+                }
+            }
+            return qos;
+        }
+
+        private void publish(String topic, byte[] payload, int qos) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            body.write(topicBytes.length >> 8);
+            body.write(topicBytes.length & 0xff);
+            body.write(topicBytes, 0, topicBytes.length);
+            try {
+                synchronized (out) {
+                    if (qos > 0) {
+                        nextPacketId = nextPacketId % 0xffff + 1;
+                        body.write(nextPacketId >> 8);
+                        body.write(nextPacketId & 0xff);
+                    }
+                    body.write(payload);
+                    write(PUBLISH, qos << 1, body.toByteArray());
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write(int type, int flags, byte[] body) throws IOException {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+            packet.write(type << 4 | flags);
+            int length = body.length;
+            do {
+                int digit = length % 128;
+                length /= 128;
+                packet.write(length > 0 ? digit | 0x80 : digit);
+            } while (length > 0);
+            packet.write(body);
+            synchronized (out) {
+                packet.writeTo(out);
+                out.flush();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    private static class Packet {
+        private final int type;
+        private final int flags;
+        private final byte[] body;
+        private int position;
+
+        private Packet(int type, int flags, byte[] body) {
+            this.type = type;
+            this.flags = flags;
+            this.body = body;
+        }
+
+        private static Packet read(DataInputStream in) throws IOException {
+            int header = in.read();
+            if (header < 0) {
+                throw new EOFException();
+            }
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+            do {
+                digit = in.readUnsignedByte();
+                length += (digit & 0x7f) * multiplier;
+                multiplier *= 128;
+            } while ((digit & 0x80) != 0);
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new Packet(header >> 4, header & 0x0f, body);
+        }
+
+        /**
+         * Skips the variable header of a CONNECT packet, which is the same for 3.1 and 3.1.1 apart from the
+         * protocol name, and returns the client id from the payload.
+         */
+        private String readClientId() throws IOException {
+            readString();
+            body(4);
+            return readString();
+        }
+
+        private String readString() throws IOException {
+            byte[] length = body(2);
+            return new String(body(((length[0] & 0xff) << 8) | (length[1] & 0xff)), StandardCharsets.UTF_8);
+        }
+
+        private byte[] body(int count) throws IOException {
+            if (position + count > body.length) {
+                throw new EOFException("Malformed packet of type " + type);
+            }
+            byte[] bytes = new byte[count];
+            System.arraycopy(body, position, bytes, 0, count);
+            position += count;
+            return bytes;
+        }
+
+        private byte[] remaining() throws IOException {
+            return body(body.length - position);
+        }
+
+        private boolean hasRemaining() {
+            return position < body.length;
+        }
+    }
+}
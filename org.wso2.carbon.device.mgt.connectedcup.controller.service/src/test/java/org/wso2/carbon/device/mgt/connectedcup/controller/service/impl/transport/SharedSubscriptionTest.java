@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.controller.service.impl.transport;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Two nodes of a cluster sharing the subscription to the readings, against an embedded broker: each reading is
+ * ingested by one node only, while a node waiting for the readings of an owner receives them whichever node
+ * ingests them.
+ */
+public class SharedSubscriptionTest {
+
+    private static final String READINGS = "+/+/connectedcup/+/publisher";
+    private static final String SHARED_READINGS = "$share/nodes/" + READINGS;
+    private static final int QOS = 1;
+    private static final long TIMEOUT = 10000;
+
+    private EmbeddedMqttBroker broker;
+    private Node first;
+    private Node second;
+    private MqttConnection publisher;
+
+    @BeforeClass
+    public void start() throws Exception {
+        broker = new EmbeddedMqttBroker();
+        broker.start();
+        first = new Node(0, "node-a");
+        second = new Node(2, "node-b");
+        publisher = new MqttConnection(4, "publisher", broker.getEndPoint(), null, QOS, null);
+        publisher.connect();
+        awaitConnected(publisher);
+    }
+
+    @AfterClass
+    public void stop() throws Exception {
+        publisher.close();
+        first.close();
+        second.close();
+        broker.stop();
+    }
+
+    @BeforeMethod
+    public void clear() {
+        for (Node node : new Node[]{first, second}) {
+            node.ingested.clear();
+            node.replies.clear();
+        }
+    }
+
+    @Test
+    public void testReadingIngestedByOneNode() throws Exception {
+        int devices = 8;
+        int readingsPerDevice = 50;
+        for (int sequence = 0; sequence < readingsPerDevice; sequence++) {
+            for (int device = 0; device < devices; device++) {
+                publish("alice", "cup-" + device, sequence);
+            }
+        }
+        awaitCount(devices * readingsPerDevice, first.ingested, second.ingested);
+
+        Set<String> ingested = new HashSet<>();
+        Map<String, Node> ingestingNode = new HashMap<>();
+        Map<String, Integer> lastSequence = new HashMap<>();
+        for (Node node : new Node[]{first, second}) {
+            assertFalse(node.ingested.isEmpty(), node.name + " ingested no readings");
+            for (String reading : node.ingested) {
+                assertTrue(ingested.add(reading), "Reading ingested twice: " + reading);
+                String device = reading.substring(0, reading.indexOf(':'));
+                int sequence = Integer.parseInt(reading.substring(reading.indexOf(':') + 1));
+                Node previousNode = ingestingNode.put(device, node);
+                assertTrue(previousNode == null || previousNode == node, "Readings of " + device + " split");
+                Integer previousSequence = lastSequence.put(device, sequence);
+                assertEquals(sequence, previousSequence == null ? 0 : previousSequence + 1,
+                             "Readings of " + device + " out of order");
+            }
+        }
+        assertEquals(ingested.size(), devices * readingsPerDevice);
+        assertTrue(first.replies.isEmpty() && second.replies.isEmpty());
+    }
+
+    @Test
+    public void testRepliesReachWaitingNode() throws Exception {
+        String bobReadings = "carbon.super/bob/connectedcup/+/publisher";
+        first.replySubscriptions.acquire(bobReadings);
+        first.replySubscriptions.acquire(bobReadings);
+        first.replySubscriptions.release(bobReadings);
+        assertTrue(first.replySubscriptions.isSubscribed(bobReadings));
+
+        int devices = 8;
+        for (int device = 0; device < devices; device++) {
+            publish("bob", "cup-" + device, 0);
+        }
+        awaitCount(devices, first.replies);
+        awaitCount(devices, first.ingested, second.ingested);
+        assertFalse(second.ingested.isEmpty(), "No reading of bob was ingested by the other node");
+        assertTrue(second.replies.isEmpty());
+
+        first.replySubscriptions.release(bobReadings);
+        assertFalse(first.replySubscriptions.isSubscribed(bobReadings));
+        String carolReadings = "carbon.super/carol/connectedcup/+/publisher";
+        first.replySubscriptions.acquire(carolReadings);
+        first.replies.clear();
+        publish("bob", "cup-0", 1);
+        // published after the reading of bob, so it arrives after it would have
+        publish("carol", "cup-0", 0);
+        awaitCount(1, first.replies);
+        assertEquals(new ArrayList<>(first.replies), Collections.singletonList("cup-0:0"));
+        first.replySubscriptions.release(carolReadings);
+        assertEquals(first.replySubscriptions.getTopicCount(), 0);
+    }
+
+    private void publish(String owner, String deviceId, int sequence) throws Exception {
+        MqttMessage message = new MqttMessage((deviceId + ":" + sequence).getBytes(StandardCharsets.UTF_8));
+        message.setQos(QOS);
+        publisher.publish("carbon.super/" + owner + "/connectedcup/" + deviceId + "/publisher", message);
+    }
+
+    @SafeVarargs
+    private static void awaitCount(int count, Queue<String>... queues) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        int received;
+        do {
+            received = 0;
+            for (Queue<String> queue : queues) {
+                received += queue.size();
+            }
+            if (received >= count) {
+                return;
+            }
+            Thread.sleep(10);
+        } while (System.currentTimeMillis() < deadline);
+        fail("Received " + received + " of " + count + " messages");
+    }
+
+    /**
+     * Waits for the subscriptions as well, which are made once the client is connected.
+     */
+    private static void awaitConnected(MqttConnection connection) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!MqttConnection.State.CONNECTED.name().equals(connection.getState())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("MQTT connection [" + connection.getClientId() + "] not established");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static MqttConnection.MessageHandler recordTo(final Queue<String> queue) {
+        return new MqttConnection.MessageHandler() {
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                queue.add(new String(message.getPayload(), StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * The connections of a node: its member of the shared subscription group, and its own reply subscriptions.
+     */
+    private class Node {
+        private final String name;
+        private final Queue<String> ingested = new ConcurrentLinkedQueue<>();
+        private final Queue<String> replies = new ConcurrentLinkedQueue<>();
+        private final MqttConnection subscriber;
+        private final ReplySubscriptions replySubscriptions;
+
+        private Node(int index, String name) throws Exception {
+            this.name = name;
+            this.subscriber = new MqttConnection(index, name + "-0", broker.getEndPoint(), SHARED_READINGS, QOS,
+                                                 recordTo(ingested));
+            this.replySubscriptions = new ReplySubscriptions(index + 1, name + "-replies", broker.getEndPoint(),
+                                                             QOS, recordTo(replies));
+            subscriber.connect();
+            replySubscriptions.connect();
+            awaitConnected(subscriber);
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!replySubscriptions.isConnected()) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Reply subscriptions of " + name + " not connected");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        private void close() {
+            subscriber.close();
+            replySubscriptions.close();
+        }
+    }
+}
@@ -235,7 +235,10 @@ public class ConnectedCupManagerService {
     }
 
 
-    private static String shortUUID() {
+    /**
+     * Generates a short random device id, a base 36 rendering of 8 bytes of a random UUID.
+     */
+    public static String shortUUID() {
         UUID uuid = UUID.randomUUID();
         long l = ByteBuffer.wrap(uuid.toString().getBytes(StandardCharsets.UTF_8)).getLong();
         return Long.toString(l, Character.MAX_RADIX);
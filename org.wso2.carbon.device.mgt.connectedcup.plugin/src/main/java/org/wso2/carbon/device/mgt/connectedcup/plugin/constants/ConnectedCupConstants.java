@@ -13,8 +13,13 @@ public class ConnectedCupConstants {
     public static final String URL_PREFIX = "http://";
     public static final String LEVEL_CONTEXT = "/LEVEL/";
     public static final String TEMPERATURE_CONTEXT = "/TEMPERATURE/";
+    public static final String SAMPLING_CONTEXT = "/SAMPLING/";
+    public static final String SAMPLING_AUTO = "auto";
 
     public static final String SENSOR_TEMPERATURE = "temperature";
     public static final String SENSOR_LEVEL = "level";
 
+    public static final String ENROLMENT_NOTIFIER_MBEAN = "org.wso2.carbon.device.mgt.connectedcup:type=EnrolmentNotifier";
+    public static final String ENROLMENT_CHANGED_NOTIFICATION = "connectedcup.device.enrolment.changed";
+
 }
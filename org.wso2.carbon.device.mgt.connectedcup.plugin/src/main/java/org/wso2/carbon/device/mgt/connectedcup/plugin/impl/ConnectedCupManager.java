@@ -31,6 +31,7 @@ import org.wso2.carbon.device.mgt.common.configuration.mgt.TenantConfiguration;
 import org.wso2.carbon.device.mgt.common.license.mgt.License;
 import org.wso2.carbon.device.mgt.common.license.mgt.LicenseManagementException;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.dao.ConnectedCupDAO;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.util.ConnectedCupEnrolmentNotifier;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dao.IotDeviceManagementDAOException;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dao.IotDeviceManagementDAOFactory;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dto.IotDevice;
@@ -79,6 +80,7 @@ public class ConnectedCupManager implements DeviceManager {
             status = iotDeviceManagementDAOFactory.getIotDeviceDAO().addIotDevice(
                     iotDevice);
             ConnectedCupDAO.commitTransaction();
+            ConnectedCupEnrolmentNotifier.getInstance().enrolmentChanged(device.getDeviceIdentifier());
         } catch (IotDeviceManagementDAOException e) {
             try {
                 ConnectedCupDAO.rollbackTransaction();
@@ -105,6 +107,7 @@ public class ConnectedCupManager implements DeviceManager {
             status = iotDeviceManagementDAOFactory.getIotDeviceDAO()
                     .updateIotDevice(iotDevice);
             ConnectedCupDAO.commitTransaction();
+            ConnectedCupEnrolmentNotifier.getInstance().enrolmentChanged(device.getDeviceIdentifier());
         } catch (IotDeviceManagementDAOException e) {
             try {
                 ConnectedCupDAO.rollbackTransaction();
@@ -131,6 +134,7 @@ public class ConnectedCupManager implements DeviceManager {
             status = iotDeviceManagementDAOFactory.getIotDeviceDAO()
                     .deleteIotDevice(deviceId.getId());
             ConnectedCupDAO.commitTransaction();
+            ConnectedCupEnrolmentNotifier.getInstance().enrolmentChanged(deviceId.getId());
         } catch (IotDeviceManagementDAOException e) {
             try {
                 ConnectedCupDAO.rollbackTransaction();
@@ -240,6 +244,7 @@ public class ConnectedCupManager implements DeviceManager {
             status = iotDeviceManagementDAOFactory.getIotDeviceDAO()
                     .updateIotDevice(iotDevice);
             ConnectedCupDAO.commitTransaction();
+            ConnectedCupEnrolmentNotifier.getInstance().enrolmentChanged(device.getDeviceIdentifier());
         } catch (IotDeviceManagementDAOException e) {
             try {
                 ConnectedCupDAO.rollbackTransaction();
@@ -22,6 +22,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.dao.ConnectedCupDAO;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyHistogram;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics.LatencyMetrics;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dao.IotDeviceDAO;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dao.IotDeviceManagementDAOException;
 import org.wso2.carbon.device.mgt.iot.util.iotdevice.dao.util.IotDeviceManagementDAOUtil;
@@ -43,10 +45,21 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	
 
 	    private static final Log log = LogFactory.getLog(ConnectedCupDAOImpl.class);
+	    private static final LatencyHistogram GET_IOT_DEVICE =
+	            LatencyMetrics.getInstance().getHistogram("dao.get_iot_device");
+	    private static final LatencyHistogram ADD_IOT_DEVICE =
+	            LatencyMetrics.getInstance().getHistogram("dao.add_iot_device");
+	    private static final LatencyHistogram UPDATE_IOT_DEVICE =
+	            LatencyMetrics.getInstance().getHistogram("dao.update_iot_device");
+	    private static final LatencyHistogram DELETE_IOT_DEVICE =
+	            LatencyMetrics.getInstance().getHistogram("dao.delete_iot_device");
+	    private static final LatencyHistogram GET_ALL_IOT_DEVICES =
+	            LatencyMetrics.getInstance().getHistogram("dao.get_all_iot_devices");
 
 	    @Override
 	    public IotDevice getIotDevice(String iotDeviceId)
 			    throws IotDeviceManagementDAOException {
+	        long startTime = System.nanoTime();
 	        Connection conn = null;
 	        PreparedStatement stmt = null;
 	        IotDevice iotDevice = null;
@@ -82,6 +95,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	        } finally {
 	            IotDeviceManagementDAOUtil.cleanupResources(stmt, resultSet);
 	            ConnectedCupDAO.closeConnection();
+	            GET_IOT_DEVICE.recordSince(startTime);
 	        }
 
 	        return iotDevice;
@@ -90,6 +104,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	    @Override
 	    public boolean addIotDevice(IotDevice iotDevice)
 			    throws IotDeviceManagementDAOException {
+	        long startTime = System.nanoTime();
 	        boolean status = false;
 	        Connection conn = null;
 	        PreparedStatement stmt = null;
@@ -121,6 +136,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	            throw new IotDeviceManagementDAOException(msg, e);
 	        } finally {
 	            IotDeviceManagementDAOUtil.cleanupResources(stmt, null);
+	            ADD_IOT_DEVICE.recordSince(startTime);
 	        }
 	        return status;
 	    }
@@ -128,6 +144,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	    @Override
 	    public boolean updateIotDevice(IotDevice iotDevice)
 			    throws IotDeviceManagementDAOException {
+	        long startTime = System.nanoTime();
 	        boolean status = false;
 	        Connection conn = null;
 	        PreparedStatement stmt = null;
@@ -159,6 +176,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	            throw new IotDeviceManagementDAOException(msg, e);
 	        } finally {
 	            IotDeviceManagementDAOUtil.cleanupResources(stmt, null);
+	            UPDATE_IOT_DEVICE.recordSince(startTime);
 	        }
 	        return status;
 	    }
@@ -166,6 +184,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	    @Override
 	    public boolean deleteIotDevice(String iotDeviceId)
 			    throws IotDeviceManagementDAOException {
+	        long startTime = System.nanoTime();
 	        boolean status = false;
 	        Connection conn = null;
 	        PreparedStatement stmt = null;
@@ -189,6 +208,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	            throw new IotDeviceManagementDAOException(msg, e);
 	        } finally {
 	            IotDeviceManagementDAOUtil.cleanupResources(stmt, null);
+	            DELETE_IOT_DEVICE.recordSince(startTime);
 	        }
 	        return status;
 	    }
@@ -196,6 +216,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	    @Override
 	    public List<IotDevice> getAllIotDevices()
 			    throws IotDeviceManagementDAOException {
+	        long startTime = System.nanoTime();
 
 	        Connection conn = null;
 	        PreparedStatement stmt = null;
@@ -231,6 +252,7 @@ public class ConnectedCupDAOImpl implements IotDeviceDAO {
 	        } finally {
 	            IotDeviceManagementDAOUtil.cleanupResources(stmt, resultSet);
 	            ConnectedCupDAO.closeConnection();
+	            GET_ALL_IOT_DEVICES.recordSince(startTime);
 	        }
 	        
 	    }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution of one operation, in the spirit of HdrHistogram.
+ *
+ * Values are recorded in microseconds into log-linear buckets: below 64 every value has its own bucket, above it
+ * every power of two is split into 32 buckets, so a reported percentile is within about 3% of the real value
+ * from one microsecond up to the clamp of roughly twelve days. Recording touches a handful of atomic counters
+ * and never allocates, so it can stay on the hot path in production.
+ *
+ * Percentiles describe the last one to two minutes: recording goes to the current of two bucket sets, and every
+ * {@link #WINDOW} the older set is cleared and takes over. The count, sum and maximum cover the whole lifetime,
+ * and the one-minute rate is an exponentially weighted moving average like the Unix load average.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+    public static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = (VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_ALPHA = 1 - Math.exp(-5 / 60.0);
+
+    private final String name;
+    private final long createdAt = System.nanoTime();
+
+    private final AtomicLongArray[] windows = {new AtomicLongArray(BUCKET_COUNT), new AtomicLongArray(BUCKET_COUNT)};
+    private volatile int currentWindow;
+    private final AtomicLong windowStart = new AtomicLong(createdAt);
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick = new AtomicLong(createdAt);
+    private volatile double rate;
+    private volatile boolean rateInitialized;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a value taken from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos, now);
+    }
+
+    /**
+     * Records a latency given in nanoseconds.
+     */
+    public void record(long nanos) {
+        record(nanos, System.nanoTime());
+    }
+
+    private void record(long nanos, long now) {
+        rotateIfNecessary(now);
+        tickIfNecessary(now);
+        long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+        windows[currentWindow].incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        uncounted.incrementAndGet();
+        long currentMax = max.get();
+        while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+            currentMax = max.get();
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+    }
+
+    /**
+     * The largest value that falls into the given bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long mantissa = index - exponent * SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    private void rotateIfNecessary(long now) {
+        long start = windowStart.get();
+        if (now - start < WINDOW || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        int next = 1 - currentWindow;
+        clear(windows[next]);
+        currentWindow = next;
+        if (now - start >= 2 * WINDOW) {
+            // nothing was recorded for a whole window, so the previous one is stale as well
+            clear(windows[1 - next]);
+        }
+    }
+
+    private static void clear(AtomicLongArray buckets) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    private void tickIfNecessary(long now) {
+        long last = lastTick.get();
+        long age = now - last;
+        if (age < TICK_INTERVAL) {
+            return;
+        }
+        long ticks = age / TICK_INTERVAL;
+        if (!lastTick.compareAndSet(last, last + ticks * TICK_INTERVAL)) {
+            return;
+        }
+        double instantRate = uncounted.getAndSet(0) / (TICK_INTERVAL / 1e9);
+        double current = rate;
+        if (rateInitialized) {
+            current += TICK_ALPHA * (instantRate - current);
+        } else {
+            current = instantRate;
+            rateInitialized = true;
+        }
+        // intervals without any recording decay the average as if each one had been recorded with a rate of 0
+        for (long i = 1; i < ticks && current > 0; i++) {
+            current -= TICK_ALPHA * current;
+        }
+        rate = current;
+    }
+
+    /**
+     * The value in microseconds below which the given fraction (0 to 1) of the recent values fall.
+     */
+    public long getValueAtQuantile(double quantile) {
+        rotateIfNecessary(System.nanoTime());
+        AtomicLongArray current = windows[currentWindow];
+        AtomicLongArray previous = windows[1 - currentWindow];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += current.get(i) + previous.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += current.get(i) + previous.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Sum of all recorded values in microseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long values = count.get();
+        return values == 0 ? 0 : sum.get() / (values * 1000.0);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getValueAtQuantile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getValueAtQuantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return getValueAtQuantile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        tickIfNecessary(System.nanoTime());
+        return rate;
+    }
+
+    @Override
+    public double getMeanRate() {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed <= 0 ? 0 : count.get() / (elapsed / 1e9);
+    }
+}
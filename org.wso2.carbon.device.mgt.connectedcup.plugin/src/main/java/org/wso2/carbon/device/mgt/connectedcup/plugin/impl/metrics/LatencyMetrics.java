@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.device.mgt.connectedcup.plugin.impl.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the {@link LatencyHistogram} of every instrumented operation of the Connected Cup device type and
+ * registers each of them on the platform MBean server.
+ *
+ * Operation names are dotted, lower case and grouped by layer, e.g. {@code rest.push_temperature},
+ * {@code mqtt.publish_device_data} or {@code dao.get_iot_device}. Callers look their histogram up once and keep
+ * it in a static field, so recording a value does not go through the registry.
+ *
+ * The plugin bundle and the controller webapp each load their own copy of this class, so neither registry holds
+ * every histogram; the MBean server does. Readers of all histograms query it with {@link #MBEAN_QUERY}.
+ */
+public class LatencyMetrics {
+    private static final Log log = LogFactory.getLog(LatencyMetrics.class);
+
+    public static final String MBEAN_QUERY = "org.wso2.carbon.device.mgt.connectedcup:type=Latency,*";
+    public static final String OPERATION_KEY = "operation";
+
+    private static final String MBEAN_NAME = "org.wso2.carbon.device.mgt.connectedcup:type=Latency," +
+                                             OPERATION_KEY + "=";
+
+    private static final LatencyMetrics instance = new LatencyMetrics();
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private LatencyMetrics() {
+    }
+
+    public static LatencyMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the histogram of the operation, creating and registering it on first use.
+     */
+    public LatencyHistogram getHistogram(String operation) {
+        LatencyHistogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(operation);
+            histogram = histograms.putIfAbsent(operation, created);
+            if (histogram == null) {
+                histogram = created;
+                register(created);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * All histograms, ordered by operation name.
+     */
+    public List<LatencyHistogram> getHistograms() {
+        List<LatencyHistogram> result = new ArrayList<>(histograms.values());
+        Collections.sort(result, new Comparator<LatencyHistogram>() {
+            @Override
+            public int compare(LatencyHistogram first, LatencyHistogram second) {
+                return first.getName().compareTo(second.getName());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Unregisters the MBeans of the histograms of this copy, e.g. when the webapp that loaded it is undeployed.
+     */
+    public void shutdown() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (LatencyHistogram histogram : histograms.values()) {
+            try {
+                ObjectName objectName = getObjectName(histogram);
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                log.warn("Unable to unregister the latency MBean of " + histogram.getName(), e);
+            }
+        }
+    }
+
+    private static ObjectName getObjectName(LatencyHistogram histogram) throws MalformedObjectNameException {
+        return new ObjectName(MBEAN_NAME + ObjectName.quote(histogram.getName()));
+    }
+
+    private void register(LatencyHistogram histogram) {
+        try {
+            ObjectName objectName = getObjectName(histogram);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(histogram, objectName);
+        } catch (JMException e) {
+            log.warn("Unable to register the latency MBean of " + histogram.getName(), e);
+        }
+    }
+}
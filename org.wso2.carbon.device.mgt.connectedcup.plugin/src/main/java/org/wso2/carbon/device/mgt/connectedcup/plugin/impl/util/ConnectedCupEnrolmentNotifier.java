@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.device.mgt.connectedcup.plugin.impl.util;
+
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcasts Connected Cup enrolment changes as JMX notifications on the platform MBean server.
+ * The controller webapp loads its own copy of the plugin classes, so JMX is used to reach it across
+ * class loaders; the notification's user data is the id of the device that changed.
+ */
+public class ConnectedCupEnrolmentNotifier extends NotificationBroadcasterSupport
+        implements ConnectedCupEnrolmentNotifierMBean {
+
+    private static final ConnectedCupEnrolmentNotifier instance = new ConnectedCupEnrolmentNotifier();
+
+    private final AtomicLong sequenceNumber = new AtomicLong();
+
+    private ConnectedCupEnrolmentNotifier() {
+        super(new MBeanNotificationInfo(new String[]{ConnectedCupConstants.ENROLMENT_CHANGED_NOTIFICATION},
+                                        Notification.class.getName(),
+                                        "Enrolment of a Connected Cup device changed"));
+    }
+
+    public static ConnectedCupEnrolmentNotifier getInstance() {
+        return instance;
+    }
+
+    public void enrolmentChanged(String deviceId) {
+        Notification notification = new Notification(ConnectedCupConstants.ENROLMENT_CHANGED_NOTIFICATION, this,
+                                                      sequenceNumber.incrementAndGet(), System.currentTimeMillis());
+        notification.setUserData(deviceId);
+        sendNotification(notification);
+    }
+
+    @Override
+    public long getNotificationCount() {
+        return sequenceNumber.get();
+    }
+}
@@ -25,7 +25,15 @@ import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.wso2.carbon.device.mgt.common.spi.DeviceManagementService;
 import org.wso2.carbon.device.mgt.iot.service.DeviceTypeService;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.constants.ConnectedCupConstants;
 import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.ConnectedCupManagerService;
+import org.wso2.carbon.device.mgt.connectedcup.plugin.impl.util.ConnectedCupEnrolmentNotifier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 /**
  * @scr.component name="org.coffeeking.connectedcup.plugin.internal
  * .ConnectedCupServiceComponent"
@@ -51,6 +59,7 @@ public class ConnectedCupServiceComponent {
             connectedCupServiceRegRef =
                     bundleContext.registerService(DeviceManagementService.class.getName(),
                             new ConnectedCupManagerService(), null);
+            registerEnrolmentNotifier();
 
             if (log.isDebugEnabled()) {
                 log.debug("Connected Cup Service Component has been successfully activated");
@@ -68,6 +77,7 @@ public class ConnectedCupServiceComponent {
             if (connectedCupServiceRegRef != null) {
                 connectedCupServiceRegRef.unregister();
             }
+            unregisterEnrolmentNotifier();
 
             if (log.isDebugEnabled()) {
                 log.debug("Connected Cup Service Component has been successfully de-activated");
@@ -77,6 +87,22 @@ public class ConnectedCupServiceComponent {
         }
     }
 
+    private void registerEnrolmentNotifier() throws JMException {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(ConnectedCupConstants.ENROLMENT_NOTIFIER_MBEAN);
+        if (!mBeanServer.isRegistered(objectName)) {
+            mBeanServer.registerMBean(ConnectedCupEnrolmentNotifier.getInstance(), objectName);
+        }
+    }
+
+    private void unregisterEnrolmentNotifier() throws JMException {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(ConnectedCupConstants.ENROLMENT_NOTIFIER_MBEAN);
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+    }
+
     protected void setDeviceTypeService(DeviceTypeService deviceTypeService) {
         /* This is to avoid this component getting initialized before the
 		common registered */